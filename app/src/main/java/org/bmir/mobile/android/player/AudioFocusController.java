@@ -0,0 +1,288 @@
+/**
+ * Requests audio focus and smooths the volume changes that focus changes cause.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.AudioFocusRequest;
+import android.media.AudioManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+/**
+ * Helper for PlayerService, which remains the focus change listener:
+ * - Requests and abandons focus, with AudioFocusRequest on Android API 26 and later.
+ * - Ramps the volume on its own thread when ducking and when regaining focus.
+ * - Runs a grace timer after a permanent focus loss, so that the paused player stays
+ *   connected and a quick regain resumes at once.
+ * - Measures the time from focus loss to resumed playback.
+ */
+public class AudioFocusController {
+
+	/**
+	 * Logs messages to the console.
+     * Enable/disable logging here when publishing to Android Market.
+	 */
+	private static final String _logTag = AudioFocusController.class.getName().toString();
+	private static void sop(String method, String message) {
+		//Log.d(_logTag, method + ": " + message);
+	}
+
+	/**
+	 * Volume while ducked, and ramp timing.
+	 */
+	public static final float DUCK_VOLUME = 0.1f;
+	public static final float FULL_VOLUME = 1.0f;
+	private static final long RAMP_MS = 300;
+	private static final long RAMP_STEP_MS = 20;
+
+	/**
+	 * How long a paused player is kept after a permanent focus loss.
+	 */
+	public static final long LOSS_GRACE_MS = 15000;
+
+	private AudioManager _audioManager = null;
+	private AudioManager.OnAudioFocusChangeListener _listener = null;
+	private AudioFocusRequest _focusRequest = null;
+
+	/**
+	 * Runs the volume ramps.
+	 */
+	private HandlerThread _rampThread = null;
+	private Handler _rampHandler = null;
+
+	/**
+	 * Runs the grace timer on the main thread.
+	 */
+	private Handler _mainHandler = null;
+	private Runnable _graceExpired = null;
+
+	/**
+	 * The player whose volume is ramped.  Set from the main thread, used by the ramp thread.
+	 */
+	private volatile PlaybackEngine _player = null;
+
+	/**
+	 * Ramp state.  Used only by the ramp thread, except that a handover reads _volume.
+	 */
+	private volatile float _volume = FULL_VOLUME;
+	private float _rampFrom = FULL_VOLUME;
+	private float _rampTarget = FULL_VOLUME;
+	private long _rampStartMillis = 0;
+
+	/**
+	 * Focus loss to resume latency.  Used only by the main thread.
+	 */
+	private long _lossMillis = 0;
+	private long _lastResumeLatencyMillis = -1;
+	private int _resumeCount = 0;
+
+	/**
+	 * Steps the current ramp.
+	 */
+	private final Runnable _rampStep = new Runnable() {
+		public void run() {
+			long wakeup = WakeupLedger.begin();
+			long elapsed = SystemClock.uptimeMillis() - _rampStartMillis;
+			float fraction = Math.min(1.0f, (float) elapsed / RAMP_MS);
+			applyVolume(_rampFrom + (_rampTarget - _rampFrom) * fraction);
+			if (1.0f > fraction) {
+				_rampHandler.postDelayed(this, RAMP_STEP_MS);
+			}
+			WakeupLedger.end(WakeupLedger.FOCUS_RAMP, wakeup);
+		}
+	};
+
+	/**
+	 * Constructor.  Call from the main thread.
+	 */
+	public AudioFocusController(Context context, AudioManager.OnAudioFocusChangeListener listener) {
+		_audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+		_listener = listener;
+		_mainHandler = new Handler();
+		_rampThread = new HandlerThread("AudioFocusRamp");
+		_rampThread.start();
+		_rampHandler = new Handler(_rampThread.getLooper());
+
+		// For Android API 26 (Android 8 Oreo) and newer, build one reusable AudioFocusRequest.
+		if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
+			AudioAttributes.Builder builder = new AudioAttributes.Builder();
+			builder.setUsage(AudioAttributes.USAGE_MEDIA);
+			builder.setContentType(AudioAttributes.CONTENT_TYPE_MUSIC);
+			_focusRequest = new AudioFocusRequest.Builder(AudioManager.AUDIOFOCUS_GAIN)
+					.setAudioAttributes(builder.build())
+					.setOnAudioFocusChangeListener(_listener, _mainHandler)
+					.setWillPauseWhenDucked(false)
+					.build();
+		}
+	}
+
+	/**
+	 * Returns true if Android grants permission to play music.
+	 */
+	public boolean requestFocus() {
+		String m = "requestFocus";
+		int rc;
+		if (null != _focusRequest) {
+			rc = _audioManager.requestAudioFocus(_focusRequest);
+		}
+		else {
+			rc = _audioManager.requestAudioFocus(_listener, AudioManager.STREAM_MUSIC, AudioManager.AUDIOFOCUS_GAIN);
+		}
+		boolean granted = (AudioManager.AUDIOFOCUS_REQUEST_GRANTED == rc);
+		sop(m,"Requested audio focus from Android. Returning granted=" + granted);
+		return granted;
+	}
+
+	/**
+	 * Relinquishes audio focus to another app, and stops any ramp or grace timer.
+	 */
+	public void abandonFocus() {
+		cancelGrace();
+		_lossMillis = 0;
+		_rampHandler.removeCallbacks(_rampStep);
+		if (null != _focusRequest) {
+			_audioManager.abandonAudioFocusRequest(_focusRequest);
+		}
+		else {
+			_audioManager.abandonAudioFocus(_listener);
+		}
+	}
+
+	/**
+	 * Sets the player whose volume is controlled, at full volume.  May be null.
+	 */
+	public void setPlayer(final PlaybackEngine player) {
+		_player = player;
+		_rampHandler.post(new Runnable() {
+			public void run() {
+				_rampHandler.removeCallbacks(_rampStep);
+				applyVolume(FULL_VOLUME);
+			}
+		});
+	}
+
+	/**
+	 * Moves volume control to the player which takes over from the current one, at the current volume,
+	 * so that a handover while ducked stays ducked.  Any ramp goes on with the new player.
+	 * Call from the main thread before the player starts.
+	 */
+	public void handOverTo(final PlaybackEngine player) {
+		player.setVolume(_volume);
+		_player = player;
+		_rampHandler.post(new Runnable() {
+			public void run() {
+				if (player == _player) {
+					applyVolume(_volume);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Ramps the volume down to the ducked volume.
+	 */
+	public void duck() {
+		rampTo(DUCK_VOLUME);
+	}
+
+	/**
+	 * Ramps the volume back up to full volume.
+	 */
+	public void unduck() {
+		rampTo(FULL_VOLUME);
+	}
+
+	private void rampTo(final float target) {
+		_rampHandler.post(new Runnable() {
+			public void run() {
+				_rampHandler.removeCallbacks(_rampStep);
+				_rampFrom = _volume;
+				_rampTarget = target;
+				_rampStartMillis = SystemClock.uptimeMillis();
+				_rampStep.run();
+			}
+		});
+	}
+
+	/**
+	 * Sets the volume of the player.  Called on the ramp thread.
+	 */
+	private void applyVolume(float volume) {
+		_volume = volume;
+		PlaybackEngine player = _player;
+		if (null != player) {
+			player.setVolume(volume);
+		}
+	}
+
+	/**
+	 * Notes that playback paused because of a focus loss.
+	 */
+	public void markLoss() {
+		if (0 == _lossMillis) {
+			_lossMillis = SystemClock.elapsedRealtime();
+		}
+	}
+
+	/**
+	 * Notes that playback resumed after a focus loss.  Returns the latency in ms, or -1.
+	 */
+	public long markResumed() {
+		String m = "markResumed";
+		if (0 == _lossMillis) {
+			return -1;
+		}
+		_lastResumeLatencyMillis = SystemClock.elapsedRealtime() - _lossMillis;
+		_resumeCount++;
+		_lossMillis = 0;
+		sop(m,"Resumed after focus loss. latencyMs=" + _lastResumeLatencyMillis + " count=" + _resumeCount);
+		return _lastResumeLatencyMillis;
+	}
+
+	/**
+	 * Starts the grace period after a permanent focus loss.  When it expires, onExpired runs on the main thread.
+	 */
+	public void startGrace(Runnable onExpired) {
+		cancelGrace();
+		_graceExpired = onExpired;
+		_mainHandler.postDelayed(_graceExpired, LOSS_GRACE_MS);
+	}
+
+	/**
+	 * Cancels the grace period.  Returns true if one was running.
+	 */
+	public boolean cancelGrace() {
+		if (null == _graceExpired) {
+			return false;
+		}
+		_mainHandler.removeCallbacks(_graceExpired);
+		_graceExpired = null;
+		return true;
+	}
+
+	/**
+	 * Frees the ramp thread.
+	 */
+	public void release() {
+		abandonFocus();
+		_player = null;
+		_rampThread.quit();
+	}
+}
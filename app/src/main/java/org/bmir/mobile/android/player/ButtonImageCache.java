@@ -0,0 +1,248 @@
+/**
+ * Decodes the play/stop/dots button images once, at the size they are displayed.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.view.ViewGroup;
+import android.widget.ImageButton;
+
+/**
+ * Keeps one downsampled bitmap per button image, so that state changes
+ * swap images without decoding the full-size JPEGs again on the UI thread.
+ * Bitmaps dropped after a size change are pooled and reused for later decodes.
+ * Not thread safe.  Use from the UI thread only.
+ */
+public class ButtonImageCache implements Trimmable {
+
+	/**
+	 * Logs messages to the console.
+     * Enable/disable logging here when publishing to Android Market.
+	 */
+	private static final String _logTag = ButtonImageCache.class.getName().toString();
+	private static void sop(String method, String message) {
+		//Log.d(_logTag, method + ": " + message);
+	}
+
+	/**
+	 * Source of the drawables.
+	 */
+	private Resources _resources = null;
+
+	/**
+	 * Decoded bitmaps, keyed by drawable resource id.
+	 */
+	private Map<Integer, Bitmap> _bitmaps = new HashMap<Integer, Bitmap>();
+
+	/**
+	 * Spare bitmaps which may be reused by the next decode.
+	 */
+	private List<Bitmap> _pool = new ArrayList<Bitmap>();
+
+	/**
+	 * The size at which the cached bitmaps were decoded.
+	 */
+	private int _width = 0;
+	private int _height = 0;
+
+	/**
+	 * Statistics.
+	 */
+	private int _decodeCount = 0;
+	private int _reuseCount = 0;
+	private long _decodeNanos = 0;
+
+	/**
+	 * Constructor
+	 */
+	public ButtonImageCache(Resources resources) {
+		_resources = resources;
+	}
+
+	/**
+	 * Sets the image of the button, decoding it at the button's size on first use.
+	 */
+	public void setImage(ImageButton imageButton, int resId) {
+		String m = "setImage";
+
+		// Use the measured size, or the layout size if the button has not been measured yet.
+		int width = imageButton.getWidth();
+		int height = imageButton.getHeight();
+		if (0 >= width || 0 >= height) {
+			ViewGroup.LayoutParams params = imageButton.getLayoutParams();
+			if (null != params) {
+				width = params.width;
+				height = params.height;
+			}
+		}
+		if (0 >= width || 0 >= height) {
+			sop(m,"Size is unknown. Setting image resource directly. resId=" + resId);
+			imageButton.setImageResource(resId);
+			return;
+		}
+
+		// Decoded bitmaps for a different size go to the pool.
+		if (width != _width || height != _height) {
+			sop(m,"Size changed from " + _width + "x" + _height + " to " + width + "x" + height);
+			clear();
+			_width = width;
+			_height = height;
+		}
+
+		Bitmap bitmap = _bitmaps.get(resId);
+		if (null == bitmap) {
+			bitmap = decode(resId, width, height);
+			if (null == bitmap) {
+				sop(m,"Could not decode image. Setting image resource directly. resId=" + resId);
+				imageButton.setImageResource(resId);
+				return;
+			}
+			_bitmaps.put(resId, bitmap);
+		}
+		imageButton.setImageBitmap(bitmap);
+	}
+
+	/**
+	 * Moves all decoded bitmaps to the pool.
+	 */
+	public void clear() {
+		_pool.addAll(_bitmaps.values());
+		_bitmaps.clear();
+	}
+
+	/**
+	 * Drops the pooled bitmaps.  Once the UI is hidden, or while running in critical trouble, also drops the decoded ones,
+	 * which are decoded again when next shown.  Bitmaps on screen stay alive through their buttons.
+	 */
+	public void trim(int level) {
+		boolean hidden = ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN <= level;
+		boolean critical = ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL <= level && ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN > level;
+		if (hidden || critical) {
+			_bitmaps.clear();
+		}
+		for (Bitmap bitmap : _pool) {
+			bitmap.recycle();
+		}
+		_pool.clear();
+	}
+
+	/**
+	 * Decodes a drawable with the largest power-of-two downsampling that still covers the requested size.
+	 */
+	private Bitmap decode(int resId, int width, int height) {
+		String m = "decode";
+		long start = System.nanoTime();
+
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeResource(_resources, resId, options);
+		int sampleSize = computeSampleSize(options.outWidth, options.outHeight, width, height);
+
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = sampleSize;
+		options.inMutable = true;
+		options.inBitmap = takeFromPool(options.outWidth / sampleSize, options.outHeight / sampleSize);
+		Bitmap bitmap = null;
+		try {
+			bitmap = BitmapFactory.decodeResource(_resources, resId, options);
+		}
+		catch (IllegalArgumentException e) {
+			// The pooled bitmap did not fit after all.  Decode into a new one.
+			sop(m,"Could not reuse pooled bitmap. e=" + e.getMessage());
+			options.inBitmap = null;
+			bitmap = BitmapFactory.decodeResource(_resources, resId, options);
+		}
+		if (null != options.inBitmap && bitmap == options.inBitmap) {
+			_reuseCount++;
+		}
+
+		_decodeCount++;
+		_decodeNanos += System.nanoTime() - start;
+		sop(m,"Decoded resId=" + resId + " sampleSize=" + sampleSize + " " + getStatsString());
+		return bitmap;
+	}
+
+	/**
+	 * Returns a pooled bitmap large enough for the decode, or null.
+	 * Bitmap reuse for a different size requires Android API 19 (KitKat).
+	 */
+	private Bitmap takeFromPool(int width, int height) {
+		if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.KITKAT) {
+			return null;
+		}
+		long bytesNeeded = 4L * width * height;
+		Iterator<Bitmap> iterator = _pool.iterator();
+		while (iterator.hasNext()) {
+			Bitmap candidate = iterator.next();
+			if (candidate.isMutable() && bytesNeeded <= candidate.getAllocationByteCount()) {
+				iterator.remove();
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the inSampleSize which keeps the decoded image at least as large as the requested size.
+	 */
+	private static int computeSampleSize(int outWidth, int outHeight, int width, int height) {
+		int sampleSize = 1;
+		while ((outWidth / (2 * sampleSize)) >= width && (outHeight / (2 * sampleSize)) >= height) {
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+
+	/**
+	 * Returns the number of bytes held by decoded and pooled bitmaps.
+	 */
+	public long getBytesHeld() {
+		long bytes = 0;
+		for (Bitmap bitmap : _bitmaps.values()) {
+			bytes += bitmap.getByteCount();
+		}
+		for (Bitmap bitmap : _pool) {
+			bytes += bitmap.getByteCount();
+		}
+		return bytes;
+	}
+
+	public int getDecodeCount() { return _decodeCount; }
+	public long getDecodeMillis() { return _decodeNanos / 1000000; }
+	public int getBitmapCount() { return _bitmaps.size() + _pool.size(); }
+
+	/**
+	 * Returns a human-readable summary of the decode statistics.
+	 */
+	public String getStatsString() {
+		return "decodes=" + _decodeCount
+				+ " reused=" + _reuseCount
+				+ " decodeMs=" + (_decodeNanos / 1000000)
+				+ " cached=" + _bitmaps.size()
+				+ " pooled=" + _pool.size()
+				+ " bytesHeld=" + getBytesHeld();
+	}
+}
@@ -0,0 +1,474 @@
+/**
+ * Plays the music stream with our own decoding pipeline.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.annotation.TargetApi;
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaPlayer;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * PlaybackEngine on a pipeline with an explicit buffer at each stage:
+ * StreamReader (network), FrameParser (one compressed frame at a time), MediaCodec, then AudioTrack (PCM).
+ * Prepared once a short preroll is decoded into the paused AudioTrack, so start() only has to play it.
+ * PlayerService decides from getBufferedMillis() how much more to wait for.
+ * Reports a rebuffer when the network has no data for as long as the AudioTrack buffer lasts.
+ * Requires Android API 21 (Lollipop).
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class CodecEngine implements PlaybackEngine, StreamReader.Listener {
+
+	/**
+	 * Logs messages to the console.
+     * Enable/disable logging here when publishing to Android Market.
+	 */
+	private static final String _logTag = CodecEngine.class.getName().toString();
+	private static void sop(String method, String message) {
+		//Log.d(_logTag, method + ": " + message);
+	}
+
+	/**
+	 * Buffer sizes of the stages after the StreamReader.
+	 */
+	private static final int INPUT_BYTES = 16 * 1024;
+	private static final long PREROLL_MS = 250;
+	private static final long TRACK_BUFFER_MS = 1000;
+
+	/**
+	 * How long the decoder waits for network data before it reports a rebuffer.
+	 */
+	private static final long STARVED_WAIT_MS = TRACK_BUFFER_MS;
+
+	/**
+	 * How long the decoder waits for a MediaCodec buffer.
+	 */
+	private static final long CODEC_TIMEOUT_US = 10000;
+
+	private final String _url;
+	private final Listener _listener;
+	private final Handler _mainHandler;
+	private StreamReader _reader = null;
+	private Thread _decodeThread = null;
+
+	/**
+	 * Set from the main thread, used by the decode thread.
+	 */
+	private volatile boolean _released = false;
+	private volatile boolean _playing = false;
+	private volatile float _volume = 1.0f;
+
+	/**
+	 * Created by the decode thread, controlled from the main thread.
+	 */
+	private volatile AudioTrack _track = null;
+
+	/**
+	 * Preroll progress.  Used only by the decode thread, except that _pcmBytes is read for the buffered time.
+	 */
+	private volatile long _pcmBytes = 0;
+	private long _prerollBytes = Long.MAX_VALUE;
+	private boolean _prepared = false;
+
+	/**
+	 * PCM format of the track, for the buffered time.  Zero until the track exists.
+	 */
+	private volatile int _pcmFrameBytes = 0;
+	private volatile int _pcmSampleRate = 0;
+	private volatile long _pcmFramesBeforeTrack = 0;
+
+	/**
+	 * Statistics.
+	 */
+	private long _prepareStartMillis = 0;
+	private volatile long _prerollMillis = -1;
+	private volatile int _rebufferCount = 0;
+	private volatile long _framesDecoded = 0;
+	private volatile String _formatString = "";
+
+	/**
+	 * Constructor.  Call from the main thread.
+	 */
+	public CodecEngine(String url, Listener listener) {
+		_url = url;
+		_listener = listener;
+		_mainHandler = new Handler();
+	}
+
+	public int getType() {
+		return TYPE_CODEC;
+	}
+
+	public void prepareAsync() {
+		_prepareStartMillis = SystemClock.elapsedRealtime();
+		_reader = new StreamReader(_url, this);
+		_decodeThread = new Thread(new Runnable() {
+			public void run() {
+				decode();
+			}
+		}, "CodecEngine");
+		_decodeThread.start();
+	}
+
+	public void start() {
+		_playing = true;
+		AudioTrack track = _track;
+		if (null != track) {
+			track.play();
+		}
+	}
+
+	public void pause() {
+		_playing = false;
+		AudioTrack track = _track;
+		if (null != track) {
+			track.pause();
+		}
+	}
+
+	public void stop() {
+		pause();
+		AudioTrack track = _track;
+		if (null != track) {
+			track.flush();
+		}
+	}
+
+	public void release() {
+		_released = true;
+		_playing = false;
+		if (null != _reader) {
+			_reader.close();
+		}
+		// Unblock the decode thread if it waits to write to the track.
+		AudioTrack track = _track;
+		if (null != track) {
+			try {
+				track.pause();
+				track.flush();
+			}
+			catch (IllegalStateException e) {
+				// The decode thread released the track meanwhile.  Nothing to do.
+			}
+		}
+		if (null != _decodeThread) {
+			_decodeThread.interrupt();
+		}
+	}
+
+	public boolean isPlaying() {
+		return _playing && !_released;
+	}
+
+	/**
+	 * Returns the compressed audio in the stream buffer, plus the PCM written to the track but not yet played.
+	 */
+	public long getBufferedMillis() {
+		long millis = (null == _reader) ? -1 : _reader.getBufferedAheadMillis();
+		AudioTrack track = _track;
+		int frameBytes = _pcmFrameBytes;
+		if (null != track && 0 < frameBytes && 0 <= millis) {
+			try {
+				// The head position counts frames since the track was created.
+				long unplayed = _pcmBytes / frameBytes - (track.getPlaybackHeadPosition() & 0xffffffffL) - _pcmFramesBeforeTrack;
+				millis += Math.max(0, unplayed) * 1000 / _pcmSampleRate;
+			}
+			catch (IllegalStateException e) {
+				// The track was released meanwhile.
+			}
+		}
+		return millis;
+	}
+
+	public void setVolume(float volume) {
+		_volume = volume;
+		AudioTrack track = _track;
+		if (null != track) {
+			try {
+				track.setVolume(volume);
+			}
+			catch (IllegalStateException e) {
+				// The track was released meanwhile.  Nothing to do.
+			}
+		}
+	}
+
+	public String getStatsString() {
+		return "engine=Codec " + _formatString
+				+ " prerollMs=" + _prerollMillis
+				+ " frames=" + _framesDecoded
+				+ " rebuffers=" + _rebufferCount
+				+ ((null == _reader) ? "" : " " + _reader.getStatsString());
+	}
+
+	/**
+	 * Callback from the StreamReader, on the main thread.
+	 */
+	public void onStreamBufferLevel(StreamReader reader, int percent) {
+		if (!_released) {
+			_listener.onEngineBufferLevel(this, percent);
+		}
+	}
+
+	/**
+	 * Body of the decode thread.  Moves frames from the stream buffer through the codec to the track.
+	 */
+	private void decode() {
+		String m = "decode";
+		MediaCodec codec = null;
+		ByteBuffer input = ByteBuffer.allocate(INPUT_BYTES);
+		input.flip();
+		FrameParser.Header header = new FrameParser.Header();
+		MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+		long position = 0;
+		long presentationUs = 0;
+		boolean starved = false;
+		try {
+			while (!_released) {
+				// Read more of the stream after what is left of the previous read.
+				input.compact();
+				int count = _reader.read(position, input.array(), input.position(), input.remaining(), STARVED_WAIT_MS);
+				if (0 > count) {
+					throw new IOException("End of stream.");
+				}
+				input.position(input.position() + count);
+				input.flip();
+				position += count;
+
+				if (0 == count) {
+					if (_prepared && _playing && !starved) {
+						sop(m,"Starved for network data.");
+						starved = true;
+						_rebufferCount++;
+						postInfo(MediaPlayer.MEDIA_INFO_BUFFERING_START);
+					}
+					continue;
+				}
+				if (starved) {
+					starved = false;
+					postInfo(MediaPlayer.MEDIA_INFO_BUFFERING_END);
+				}
+
+				// Queue each complete frame into the codec.
+				while (!_released) {
+					int sync = FrameParser.findSync(input, input.position(), header);
+					if (0 > sync) {
+						// Keep the tail, in case a header straddles the next read.
+						input.position(Math.max(input.position(), input.limit() - 8));
+						break;
+					}
+					input.position(sync);
+					if (input.remaining() < header.frameBytes) {
+						break;
+					}
+					if (null == codec) {
+						codec = createCodec(header);
+						_prerollBytes = PREROLL_MS * header.sampleRate * header.channels * 2 / 1000;
+					}
+					int index = codec.dequeueInputBuffer(CODEC_TIMEOUT_US);
+					if (0 > index) {
+						// The codec is full.  Drain it, then try this frame again.
+						drainCodec(codec, info);
+						continue;
+					}
+					// ADTS headers are not part of the AAC frame, which is described by csd-0 instead.
+					int skip = (FrameParser.FORMAT_ADTS == header.format) ? header.headerBytes : 0;
+					ByteBuffer frame = input.duplicate();
+					frame.position(sync + skip);
+					frame.limit(sync + header.frameBytes);
+					ByteBuffer codecInput = codec.getInputBuffer(index);
+					codecInput.clear();
+					codecInput.put(frame);
+					codec.queueInputBuffer(index, 0, header.frameBytes - skip, presentationUs, 0);
+					presentationUs += 1000000L * header.samplesPerFrame / header.sampleRate;
+					input.position(sync + header.frameBytes);
+					_framesDecoded++;
+				}
+
+				// Move decoded PCM to the track.  Blocks while the track is full.
+				if (null != codec) {
+					drainCodec(codec, info);
+				}
+			}
+		}
+		catch (Exception e) {
+			// IOException from the stream, or IllegalStateException from the codec or the track.
+			sop(m,"Caught e=" + e);
+			postError();
+		}
+		finally {
+			if (null != codec) {
+				try {
+					codec.stop();
+				}
+				catch (IllegalStateException e) {
+					// The codec failed.  Release it anyway.
+				}
+				codec.release();
+			}
+			AudioTrack track = _track;
+			_track = null;
+			if (null != track) {
+				track.release();
+			}
+			_reader.close();
+		}
+	}
+
+	/**
+	 * Creates and starts a decoder for the stream format in the header.
+	 */
+	private MediaCodec createCodec(FrameParser.Header header) throws IOException {
+		String m = "createCodec";
+		_formatString = header.getMime() + " " + header.sampleRate + "Hz " + header.channels + "ch " + header.bitrateKbps + "kbps";
+		sop(m,"Creating decoder. " + _formatString);
+		MediaFormat format = MediaFormat.createAudioFormat(header.getMime(), header.sampleRate, header.channels);
+		if (FrameParser.FORMAT_ADTS == header.format) {
+			format.setByteBuffer("csd-0", ByteBuffer.wrap(header.getAacConfig()));
+		}
+		MediaCodec codec = MediaCodec.createDecoderByType(header.getMime());
+		codec.configure(format, null, null, 0);
+		codec.start();
+		return codec;
+	}
+
+	/**
+	 * Writes all decoded output to the track.
+	 */
+	private void drainCodec(MediaCodec codec, MediaCodec.BufferInfo info) {
+		String m = "drainCodec";
+		int index = codec.dequeueOutputBuffer(info, 0);
+		while (MediaCodec.INFO_TRY_AGAIN_LATER != index && !_released) {
+			if (MediaCodec.INFO_OUTPUT_FORMAT_CHANGED == index) {
+				createTrack(codec.getOutputFormat());
+			}
+			else if (0 <= index) {
+				if (null == _track) {
+					createTrack(codec.getOutputFormat());
+				}
+				ByteBuffer output = codec.getOutputBuffer(index);
+				output.position(info.offset);
+				output.limit(info.offset + info.size);
+				while (output.hasRemaining() && !_released) {
+					int count = _track.write(output, output.remaining(), AudioTrack.WRITE_BLOCKING);
+					if (0 > count) {
+						throw new IllegalStateException("AudioTrack write failed. rc=" + count);
+					}
+					_pcmBytes += count;
+					// Report the preroll before a write can block on the paused track.
+					if (!_prepared && _pcmBytes >= _prerollBytes) {
+						_prepared = true;
+						_prerollMillis = SystemClock.elapsedRealtime() - _prepareStartMillis;
+						sop(m,"Preroll is ready. prerollMs=" + _prerollMillis);
+						postPrepared();
+					}
+				}
+				codec.releaseOutputBuffer(index, false);
+			}
+			index = codec.dequeueOutputBuffer(info, 0);
+		}
+	}
+
+	/**
+	 * Replaces the track with one for the decoder's output format.
+	 */
+	private void createTrack(MediaFormat format) {
+		String m = "createTrack";
+		int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+		int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+		int channelMask = (1 == channels) ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+		int bufferBytes = Math.max(
+				AudioTrack.getMinBufferSize(sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT),
+				(int) (TRACK_BUFFER_MS * sampleRate * channels * 2 / 1000));
+		sop(m,"Creating track. sampleRate=" + sampleRate + " channels=" + channels + " bufferBytes=" + bufferBytes);
+
+		AudioTrack track;
+		// For Android API 26 (Android 8 Oreo) and newer, specify AudioAttributes.
+		if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
+			AudioAttributes.Builder builder = new AudioAttributes.Builder();
+			builder.setUsage(AudioAttributes.USAGE_MEDIA);
+			builder.setContentType(AudioAttributes.CONTENT_TYPE_MUSIC);
+			track = new AudioTrack.Builder()
+					.setAudioAttributes(builder.build())
+					.setAudioFormat(new AudioFormat.Builder()
+							.setSampleRate(sampleRate)
+							.setChannelMask(channelMask)
+							.setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+							.build())
+					.setBufferSizeInBytes(bufferBytes)
+					.setTransferMode(AudioTrack.MODE_STREAM)
+					.build();
+		}
+		else {
+			track = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, channelMask,
+					AudioFormat.ENCODING_PCM_16BIT, bufferBytes, AudioTrack.MODE_STREAM);
+		}
+		track.setVolume(_volume);
+
+		AudioTrack oldTrack = _track;
+		_pcmFrameBytes = channels * 2;
+		_pcmSampleRate = sampleRate;
+		_pcmFramesBeforeTrack = (0 == _pcmFrameBytes) ? 0 : _pcmBytes / _pcmFrameBytes;
+		_track = track;
+		if (null != oldTrack) {
+			oldTrack.release();
+		}
+		if (_playing) {
+			track.play();
+		}
+	}
+
+	private void postPrepared() {
+		_mainHandler.post(new Runnable() {
+			public void run() {
+				if (!_released) {
+					_listener.onEnginePrepared(CodecEngine.this);
+				}
+			}
+		});
+	}
+
+	private void postError() {
+		_mainHandler.post(new Runnable() {
+			public void run() {
+				if (!_released) {
+					_listener.onEngineError(CodecEngine.this, MediaPlayer.MEDIA_ERROR_UNKNOWN, MediaPlayer.MEDIA_ERROR_IO);
+				}
+			}
+		});
+	}
+
+	private void postInfo(final int what) {
+		_mainHandler.post(new Runnable() {
+			public void run() {
+				if (!_released) {
+					_listener.onEngineInfo(CodecEngine.this, what, 0);
+				}
+			}
+		});
+	}
+}
@@ -36,9 +36,19 @@ public class Constants {
     //public final static String MEDIA_HOSTNAME = "pureradio.eu";
     //public final static String MEDIA_URL_STRING = "http://pureradio.eu:8000/low";
 
+    // Identifies the stream in the 'Now Playing' history.
+    public static final int STREAM_ID = 1;
+
+    // Feed the media player from our own stream buffer on Android API 23 and later.
+    public static final boolean USE_STREAM_BUFFER = true;
+
     // For the 'Now Playing' feature.
     public static final String STATUS_URL_STRING = "http://" + MEDIA_HOSTNAME + "/";
 
+    // Status page transfer.  Ask for a compressed page, and for ranges of it.  Used where the server allows.
+    public static final boolean STATUS_COMPRESSION = true;
+    public static final boolean STATUS_RANGE = true;
+
     // Image references.
     public static final int IMG_ICON = R.drawable.shoutingfireicon;
     public static final int IMG_DOTS = R.drawable.shoutingfiredots;
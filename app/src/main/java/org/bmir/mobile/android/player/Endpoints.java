@@ -0,0 +1,56 @@
+/**
+ * The stream endpoints of the current channel.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+/**
+ * Stream endpoints.  These are the Constants values unless redirected in-process,
+ * for debug or for a soak test against a local fake Icecast server.
+ * A redirect applies to players created afterwards.
+ * Uses no Android classes, so the stress module can race it.
+ */
+public class Endpoints {
+	public final String mediaHostname;
+	public final String mediaURLString;
+	public final String statusURLString;
+
+	public Endpoints(String mediaHostname, String mediaURLString, String statusURLString) {
+		this.mediaHostname = mediaHostname;
+		this.mediaURLString = mediaURLString;
+		this.statusURLString = statusURLString;
+	}
+
+	/**
+	 * The current endpoints.  A redirect replaces all three through one volatile field, so a reader on another thread,
+	 * such as the NowPlayingThread, never sees the media URL of one redirect with the status URL of another.
+	 */
+	public static class Current {
+		private volatile Endpoints _endpoints;
+
+		public Current(Endpoints endpoints) {
+			_endpoints = endpoints;
+		}
+
+		public Endpoints get() {
+			return _endpoints;
+		}
+
+		public void set(Endpoints endpoints) {
+			_endpoints = endpoints;
+		}
+	}
+}
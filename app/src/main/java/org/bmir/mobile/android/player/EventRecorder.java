@@ -0,0 +1,321 @@
+/**
+ * Always-on recorder of player events, spilled to a compact binary file.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixed-capacity ring of primitive event slots: event id, timestamp and two arguments.
+ * Recording formats nothing and takes no locks.  There must be a single writer,
+ * which in this app is the main thread.
+ *
+ * A background thread spills each full segment of the ring to an app-private file.
+ * Dump format, big-endian:
+ *   header: int MAGIC, int VERSION, long wall clock ms, long System.nanoTime() at the same instant
+ *   record: int event id, long System.nanoTime(), long arg0, long arg1
+ * Use EventDecoder, in the bench module, to turn a dump into a readable timeline.
+ */
+public class EventRecorder {
+
+	/**
+	 * Event ids.  Add new ids at the end, and a name for them in EventDecoder.
+	 */
+	public static final int EVT_STATE = 1;           // arg0: State ordinal
+	public static final int EVT_PREPARE = 2;         // arg0: 1 if a prewarmed player is used
+	public static final int EVT_PREPARED = 3;        // arg0: ms since the click on play, arg1: PlaybackEngine type
+	public static final int EVT_ERROR = 4;           // arg0: what, arg1: extra
+	public static final int EVT_INFO = 5;            // arg0: what, arg1: extra
+	public static final int EVT_FOCUS = 6;           // arg0: focus change
+	public static final int EVT_BUFFERING = 7;       // arg0: percent
+	public static final int EVT_PREWARM = 8;         // arg0: 0 started, 1 parked, 2 released
+	public static final int EVT_START_COMMAND = 9;   // arg0: 0 null, 1 button, 2 status, 3 release
+	public static final int EVT_FOCUS_RESUMED = 10;  // arg0: ms from focus loss to resume
+	public static final int EVT_LOCKS = 11;          // arg0: total wake lock ms, arg1: total rebuffers
+	public static final int EVT_HANDOVER = 12;       // arg0: ms from network change to new player, arg1: 1 if old player failed first
+	public static final int EVT_PREROLL = 13;        // arg0: preroll target ms, arg1: ms since the click on play
+	public static final int EVT_SESSION = 14;        // arg0: ms from first audio to stop, arg1: rebuffers
+	public static final int EVT_RESTORE = 15;        // arg0: ms from service create to audio after a restart, arg1: snapshot age ms
+	public static final int EVT_RELAY = 16;          // arg0: 1 serving (arg1 port), 2 stopped serving (arg1 listeners served), 3 playing from a nearby relay, 4 nearby relay failed
+	public static final int EVT_STATUS_FETCH = 17;   // arg0: bytes received, arg1: page bytes after inflation
+	public static final int EVT_WAKEUPS = 18;        // arg0: scheduled wakeups per hour of the session, arg1: busy ms per hour
+	public static final int EVT_TRIM = 19;           // arg0: trim memory level, arg1: bytes freed
+	public static final int EVT_TRIM_HELD = 20;      // arg0: MemoryGovernor component, arg1: bytes it holds after the trim
+	public static final int EVT_IMAGE_DECODES = 21;  // arg0: button images decoded, arg1: total decode ms
+	public static final int EVT_IMAGE_BYTES = 22;    // arg0: bytes held by button images, arg1: bitmaps cached and pooled
+	public static final int EVT_TITLE_CACHE = 23;    // arg0: title cache hits, arg1: misses
+	public static final int EVT_TLS = 24;            // arg0: full TLS handshakes, arg1: resumed handshakes
+
+	/**
+	 * Dump file format.
+	 */
+	static final int MAGIC = 0x424D4556; // "BMEV"
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 4 + 4 + 8 + 8;
+	static final int RECORD_BYTES = 4 + 8 + 8 + 8;
+
+	/**
+	 * Dump file name, and the size after which it is rotated to the '.old' file.
+	 */
+	public static final String FILE_NAME = "events.bin";
+	private static final long MAX_FILE_BYTES = 256 * 1024;
+
+	/**
+	 * Ring geometry.
+	 */
+	private static final int SEGMENT_EVENTS = 256;
+	private static final int SEGMENTS = 4;
+	private static final int CAPACITY = SEGMENT_EVENTS * SEGMENTS;
+
+	/**
+	 * The single instance for this process.
+	 */
+	private static final EventRecorder _instance = new EventRecorder();
+	public static EventRecorder get() { return _instance; }
+
+	/**
+	 * Slots.  Written only by the writer, read by the spill thread.
+	 */
+	private final int[] _ids = new int[CAPACITY];
+	private final long[] _timestamps = new long[CAPACITY];
+	private final long[] _args0 = new long[CAPACITY];
+	private final long[] _args1 = new long[CAPACITY];
+
+	/**
+	 * Count of events recorded.  Written only by the writer.
+	 * The volatile write publishes the slots to the spill thread.
+	 */
+	private volatile long _writeIndex = 0;
+
+	/**
+	 * Count of events spilled or dropped.  Written only by the spill thread.
+	 */
+	private volatile long _spillIndex = 0;
+
+	/**
+	 * Spill everything up to this event count, including a partial segment.
+	 */
+	private volatile long _flushIndex = 0;
+
+	/**
+	 * Count of events overwritten before they could be spilled.
+	 */
+	private volatile long _droppedCount = 0;
+
+	/**
+	 * The spill thread and its target directory.  Null until start() is called.
+	 */
+	private volatile Thread _spillThread = null;
+	private volatile File _directory = null;
+
+	private EventRecorder() {
+	}
+
+	/**
+	 * Records an event.  Must only be called by the single writer thread.
+	 */
+	public void record(int id, long arg0, long arg1) {
+		long ix = _writeIndex;
+		int slot = (int) (ix % CAPACITY);
+		_ids[slot] = id;
+		_timestamps[slot] = System.nanoTime();
+		_args0[slot] = arg0;
+		_args1[slot] = arg1;
+		_writeIndex = ix + 1;
+
+		// Wake the spill thread when a segment fills.
+		if (0 == ((ix + 1) % SEGMENT_EVENTS)) {
+			Thread spillThread = _spillThread;
+			if (null != spillThread) {
+				LockSupport.unpark(spillThread);
+			}
+		}
+	}
+
+	public void record(int id, long arg0) {
+		record(id, arg0, 0);
+	}
+
+	public void record(int id) {
+		record(id, 0, 0);
+	}
+
+	/**
+	 * Starts spilling full segments to a file in the specified directory.  Later calls have no effect.
+	 * The dump of the previous process is kept as the '.old' file.
+	 */
+	public synchronized void start(File directory) {
+		if (null != _spillThread) {
+			return;
+		}
+		_directory = directory;
+		rotate();
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				spillLoop();
+			}
+		}, "EventRecorder");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		_spillThread = thread;
+		thread.start();
+	}
+
+	/**
+	 * Asks the spill thread to also write the events of the current partial segment.
+	 * May be called from any thread.
+	 */
+	public void flush() {
+		_flushIndex = _writeIndex;
+		Thread spillThread = _spillThread;
+		if (null != spillThread) {
+			LockSupport.unpark(spillThread);
+		}
+	}
+
+	/**
+	 * Returns the count of events recorded, and of events overwritten before they were spilled.
+	 */
+	public long getEventCount() { return _writeIndex; }
+	public long getDroppedCount() { return _droppedCount; }
+
+	/**
+	 * Returns the dump file.
+	 */
+	public File getFile() {
+		return new File(_directory, FILE_NAME);
+	}
+
+	/**
+	 * Body of the spill thread.
+	 */
+	private void spillLoop() {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(SEGMENT_EVENTS * RECORD_BYTES);
+		FileChannel channel = null;
+		while (true) {
+			long writeIndex = _writeIndex;
+			long limit = Math.max(writeIndex - (writeIndex % SEGMENT_EVENTS), Math.min(_flushIndex, writeIndex));
+			if (limit <= _spillIndex) {
+				LockSupport.park(this);
+				continue;
+			}
+			long wakeup = WakeupLedger.begin();
+			try {
+				if (null == channel) {
+					channel = openChannel();
+				}
+				spill(buffer, channel, limit);
+				if (MAX_FILE_BYTES < channel.size()) {
+					channel.close();
+					channel = null;
+					rotate();
+				}
+			}
+			catch (IOException e) {
+				// Give up on the events rather than on the app.
+				_droppedCount += limit - _spillIndex;
+				_spillIndex = limit;
+				if (null != channel) {
+					try { channel.close(); } catch (IOException ignored) { ; }
+					channel = null;
+				}
+			}
+			WakeupLedger.end(WakeupLedger.EVENT_SPILL, wakeup);
+		}
+	}
+
+	/**
+	 * Writes the events from _spillIndex up to limit, one segment at a time.
+	 */
+	private void spill(ByteBuffer buffer, FileChannel channel, long limit) throws IOException {
+		while (_spillIndex < limit) {
+			long start = _spillIndex;
+
+			// Skip events which have already been overwritten.  The writer may be overwriting the slot
+			// of the oldest published event with the next one, so that one counts as overwritten too.
+			long oldest = _writeIndex - CAPACITY + 1;
+			if (start < oldest) {
+				_droppedCount += oldest - start;
+				start = oldest;
+			}
+			if (start >= limit) {
+				_spillIndex = start;
+				break;
+			}
+			long end = Math.min(limit, start + SEGMENT_EVENTS - (start % SEGMENT_EVENTS));
+
+			buffer.clear();
+			for (long ix = start; ix < end; ix++) {
+				int slot = (int) (ix % CAPACITY);
+				buffer.putInt(_ids[slot]);
+				buffer.putLong(_timestamps[slot]);
+				buffer.putLong(_args0[slot]);
+				buffer.putLong(_args1[slot]);
+			}
+
+			// If the writer lapped us while copying, the copy may be torn.  Drop it.
+			if (start <= _writeIndex - CAPACITY) {
+				_droppedCount += end - start;
+			}
+			else {
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+			_spillIndex = end;
+		}
+	}
+
+	/**
+	 * Moves the dump file to the '.old' file, replacing it.
+	 */
+	private void rotate() {
+		File file = getFile();
+		if (file.exists()) {
+			File old = new File(_directory, FILE_NAME + ".old");
+			old.delete();
+			file.renameTo(old);
+		}
+	}
+
+	/**
+	 * Opens the dump file for appending, writing the header to a new file.
+	 */
+	private FileChannel openChannel() throws IOException {
+		File file = getFile();
+		boolean isNew = !file.exists() || 0 == file.length();
+		FileChannel channel = new FileOutputStream(file, true).getChannel();
+		if (isNew) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putLong(System.currentTimeMillis());
+			header.putLong(System.nanoTime());
+			header.flip();
+			while (header.hasRemaining()) {
+				channel.write(header);
+			}
+		}
+		return channel;
+	}
+}
@@ -0,0 +1,255 @@
+/**
+ * Parses MP3 and AAC (ADTS) frame headers.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds and parses the frame headers of an MPEG audio (MP3) or AAC ADTS stream.
+ * Reads with absolute gets, so the position and limit of the buffer are not changed.
+ * Plain Java with no Android dependencies, so it can be exercised on a desktop JVM.
+ */
+public class FrameParser {
+
+	/**
+	 * Stream formats.
+	 */
+	public static final int FORMAT_NONE = 0;
+	public static final int FORMAT_MP3 = 1;
+	public static final int FORMAT_ADTS = 2;
+
+	/**
+	 * MIME types of the formats, as MediaCodec knows them.
+	 */
+	public static final String MIME_MP3 = "audio/mpeg";
+	public static final String MIME_AAC = "audio/mp4a-latm";
+
+	/**
+	 * Bytes needed from the start of a frame to parse its header, whatever the format.
+	 */
+	public static final int PARSE_BYTES = 7;
+
+	/**
+	 * Bitrates in kbit/s, by [version is MPEG-1 ? 0 : 1][layer - 1][index].
+	 */
+	private static final int[][][] MP3_BITRATES = {
+		{
+			{ 0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448 },
+			{ 0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384 },
+			{ 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320 },
+		},
+		{
+			{ 0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256 },
+			{ 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 },
+			{ 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 },
+		},
+	};
+
+	/**
+	 * MPEG-1 sample rates.  Halved for MPEG-2, quartered for MPEG-2.5.
+	 */
+	private static final int[] MP3_SAMPLE_RATES = { 44100, 48000, 32000 };
+
+	/**
+	 * ADTS sample rates, by sampling frequency index.
+	 */
+	private static final int[] ADTS_SAMPLE_RATES = {
+		96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+	};
+
+	/**
+	 * A parsed frame header.  Reused by the caller to avoid garbage.
+	 */
+	public static class Header {
+		public int format = FORMAT_NONE;
+		public int frameBytes = 0;
+		public int headerBytes = 0;
+		public int sampleRate = 0;
+		public int channels = 0;
+		public int samplesPerFrame = 0;
+		public int bitrateKbps = 0;
+
+		/**
+		 * ADTS only: the audio object type, sampling frequency index and channel configuration.
+		 */
+		public int aacObjectType = 0;
+		public int aacSampleRateIndex = 0;
+		public int aacChannelConfig = 0;
+
+		/**
+		 * Returns the play time of the frame in microseconds.
+		 */
+		public long getDurationMicros() {
+			return 1000000L * samplesPerFrame / sampleRate;
+		}
+
+		/**
+		 * Returns true if a frame with the other header can follow this one in the same stream.
+		 */
+		public boolean isCompatible(Header other) {
+			return format == other.format && sampleRate == other.sampleRate && channels == other.channels;
+		}
+
+		public String getMime() {
+			return (FORMAT_ADTS == format) ? MIME_AAC : MIME_MP3;
+		}
+
+		/**
+		 * Returns the AAC AudioSpecificConfig which MediaCodec expects as csd-0.  ADTS only.
+		 */
+		public byte[] getAacConfig() {
+			int config = (aacObjectType << 11) | (aacSampleRateIndex << 7) | (aacChannelConfig << 3);
+			return new byte[] { (byte) (config >> 8), (byte) config };
+		}
+
+		@Override
+		public String toString() {
+			return "format=" + format + " frameBytes=" + frameBytes + " sampleRate=" + sampleRate
+					+ " channels=" + channels + " bitrateKbps=" + bitrateKbps;
+		}
+	}
+
+	/**
+	 * Parses the header at the offset into out.
+	 * Returns the frame length in bytes, or -1 if there is no valid header or not enough bytes to tell.
+	 */
+	public static int parse(ByteBuffer buffer, int offset, Header out) {
+		if (offset + PARSE_BYTES > buffer.limit()) {
+			return -1;
+		}
+		int b0 = buffer.get(offset) & 0xff;
+		int b1 = buffer.get(offset + 1) & 0xff;
+		if (0xff != b0 || 0xe0 != (b1 & 0xe0)) {
+			return -1;
+		}
+		// ADTS has layer bits 00, which are reserved in MPEG audio.
+		if (0xf0 == (b1 & 0xf6)) {
+			return parseAdts(buffer, offset, b1, out);
+		}
+		return parseMp3(buffer, offset, b1, out);
+	}
+
+	private static int parseMp3(ByteBuffer buffer, int offset, int b1, Header out) {
+		int b2 = buffer.get(offset + 2) & 0xff;
+		int b3 = buffer.get(offset + 3) & 0xff;
+		int version = (b1 >> 3) & 0x03;        // 0: MPEG-2.5, 1: reserved, 2: MPEG-2, 3: MPEG-1
+		int layer = 4 - ((b1 >> 1) & 0x03);    // 1, 2 or 3.  4 is reserved.
+		int bitrateIndex = (b2 >> 4) & 0x0f;
+		int sampleRateIndex = (b2 >> 2) & 0x03;
+		int padding = (b2 >> 1) & 0x01;
+		if (1 == version || 4 == layer || 0 == bitrateIndex || 0x0f == bitrateIndex || 3 == sampleRateIndex) {
+			return -1;
+		}
+
+		int bitrate = MP3_BITRATES[(3 == version) ? 0 : 1][layer - 1][bitrateIndex];
+		int sampleRate = MP3_SAMPLE_RATES[sampleRateIndex];
+		if (2 == version) {
+			sampleRate /= 2;
+		}
+		else if (0 == version) {
+			sampleRate /= 4;
+		}
+
+		int samplesPerFrame;
+		int frameBytes;
+		if (1 == layer) {
+			samplesPerFrame = 384;
+			frameBytes = (12000 * bitrate / sampleRate + padding) * 4;
+		}
+		else {
+			samplesPerFrame = (3 == layer && 3 != version) ? 576 : 1152;
+			frameBytes = (samplesPerFrame / 8) * 1000 * bitrate / sampleRate + padding;
+		}
+
+		out.format = FORMAT_MP3;
+		out.frameBytes = frameBytes;
+		out.headerBytes = 4;
+		out.sampleRate = sampleRate;
+		out.channels = (3 == ((b3 >> 6) & 0x03)) ? 1 : 2;
+		out.samplesPerFrame = samplesPerFrame;
+		out.bitrateKbps = bitrate;
+		return frameBytes;
+	}
+
+	private static int parseAdts(ByteBuffer buffer, int offset, int b1, Header out) {
+		int b2 = buffer.get(offset + 2) & 0xff;
+		int b3 = buffer.get(offset + 3) & 0xff;
+		int b4 = buffer.get(offset + 4) & 0xff;
+		int b5 = buffer.get(offset + 5) & 0xff;
+		int b6 = buffer.get(offset + 6) & 0xff;
+		boolean hasCrc = (0 == (b1 & 0x01));
+		int objectType = ((b2 >> 6) & 0x03) + 1;
+		int sampleRateIndex = (b2 >> 2) & 0x0f;
+		int channelConfig = ((b2 & 0x01) << 2) | ((b3 >> 6) & 0x03);
+		int frameBytes = ((b3 & 0x03) << 11) | (b4 << 3) | ((b5 >> 5) & 0x07);
+		int blocks = (b6 & 0x03) + 1;
+		int headerBytes = hasCrc ? 9 : 7;
+		if (ADTS_SAMPLE_RATES.length <= sampleRateIndex || 0 == channelConfig || headerBytes >= frameBytes) {
+			return -1;
+		}
+
+		int sampleRate = ADTS_SAMPLE_RATES[sampleRateIndex];
+		int samplesPerFrame = 1024 * blocks;
+		out.format = FORMAT_ADTS;
+		out.frameBytes = frameBytes;
+		out.headerBytes = headerBytes;
+		out.sampleRate = sampleRate;
+		out.channels = (7 == channelConfig) ? 8 : channelConfig;
+		out.samplesPerFrame = samplesPerFrame;
+		out.bitrateKbps = (int) ((long) frameBytes * 8 * sampleRate / samplesPerFrame / 1000);
+		out.aacObjectType = objectType;
+		out.aacSampleRateIndex = sampleRateIndex;
+		out.aacChannelConfig = channelConfig;
+		return frameBytes;
+	}
+
+	/**
+	 * Returns the offset of the first frame header at or after from, or -1 if none before the limit.
+	 * A header counts only if a compatible header follows it, unless that would pass the limit.
+	 */
+	public static int findSync(ByteBuffer buffer, int from, Header out) {
+		return findSync(buffer, from, out, null);
+	}
+
+	/**
+	 * As findSync above.  Uses next, if not null, as scratch space for the following header.
+	 */
+	public static int findSync(ByteBuffer buffer, int from, Header out, Header next) {
+		if (null == next) {
+			next = new Header();
+		}
+		int limit = buffer.limit();
+		for (int offset = from; offset + 1 < limit; offset++) {
+			if (0xff != (buffer.get(offset) & 0xff)) {
+				continue;
+			}
+			int frameBytes = parse(buffer, offset, out);
+			if (0 >= frameBytes) {
+				continue;
+			}
+			int nextOffset = offset + frameBytes;
+			if (nextOffset + PARSE_BYTES > limit) {
+				return offset;
+			}
+			if (0 < parse(buffer, nextOffset, next) && out.isCompatible(next)) {
+				return offset;
+			}
+		}
+		return -1;
+	}
+}
@@ -31,6 +31,7 @@ import android.security.NetworkSecurityPolicy;
 import android.util.Log;
 import android.view.View;
 import android.widget.ImageButton;
+import android.widget.TextView;
 
 public class MainActivity extends Activity
 implements MediaPlayer.OnPreparedListener,
@@ -56,9 +57,9 @@ implements MediaPlayer.OnPreparedListener,
 	}
 
 	/**
-	 * A thread object to query the current song.
+	 * Decoded images for the play/stop button.
 	 */
-	NowPlayingThread _nowPlayingThread = null;
+	private ButtonImageCache _buttonImages = null;
 
 	/**
 	 * Called when the activity is first created.
@@ -66,20 +67,24 @@ implements MediaPlayer.OnPreparedListener,
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 	    String m = "onCreate";
+	    StartupTrace.reset();
+	    StartupTrace.begin("MainActivity.onCreate");
 	    super.onCreate(savedInstanceState);
 	    sop(m,"Entry.");
 
 	    // Paint the screen.
+	    StartupTrace.begin("setContentView");
 	    setContentView(R.layout.main);
-
-	    // Create a thread object to query the current song.
-	    // AD 2018-0915 Suppress this since neither stream is sending the info.
-	    // _nowPlayingThread = new NowPlayingThread(this, this);
+	    StartupTrace.end("setContentView");
+	    _buttonImages = new ButtonImageCache(getResources());
+	    MemoryGovernor.start(this);
+	    MemoryGovernor.register(MemoryGovernor.COMPONENT_BUTTON_IMAGES, MemoryGovernor.PRIORITY_UI, _buttonImages);
 
 	    //sop(m,"checking isCleartextTrafficPermitted() for " + Constants.MEDIA_HOSTNAME);
 	    //boolean permitted = NetworkSecurityPolicy.getInstance().isCleartextTrafficPermitted(Constants.MEDIA_HOSTNAME);
 	    //sop(m,"permitted=" + permitted);
 
+	    StartupTrace.end("MainActivity.onCreate");
 	    sop(m,"Exit.");
 	}
 
@@ -112,7 +117,9 @@ implements MediaPlayer.OnPreparedListener,
 	@Override
 	protected void onStop() {
 		String m = "onStop";
-		sop(m,"Entry");
+		sop(m,"Entry. Button images: " + _buttonImages.getStatsString());
+		EventRecorder.get().record(EventRecorder.EVT_IMAGE_DECODES, _buttonImages.getDecodeCount(), _buttonImages.getDecodeMillis());
+		EventRecorder.get().record(EventRecorder.EVT_IMAGE_BYTES, _buttonImages.getBytesHeld(), _buttonImages.getBitmapCount());
 		super.onStop();
 		sop(m,"Exit");
 	}
@@ -121,6 +128,7 @@ implements MediaPlayer.OnPreparedListener,
 	protected void onDestroy() {
 		String m = "onDestroy";
 		sop(m,"Entry");
+		MemoryGovernor.unregister(_buttonImages);
 		super.onDestroy();
 		sop(m,"Exit");
 	}
@@ -142,31 +150,35 @@ implements MediaPlayer.OnPreparedListener,
 					return;
 				}
 
+				// The first state broadcast completes the startup trace.
+				StartupTrace.finish("MainActivity.firstBroadcast");
+
 				// Access the play/stop button.
 				ImageButton imageButton = (ImageButton)findViewById(R.id.playStopButton);
 
 				// Change the image corresponding to the state of the player service.
 				String state = intent.getExtras().getString(PlayerService.STATE_KEY);
+				String title = null;
 				if (PlayerService.STATE_PLAYING.equals(state) ||
 					PlayerService.STATE_PAUSED.equals(state)) {
 					sop(m,"Setting button image to 'stop'.");
-					imageButton.setImageResource(Constants.IMG_STOP);
-					if (null != _nowPlayingThread) {
-					    sop(m,"Starting nowPlayingThread.");
-			            _nowPlayingThread.go();
-					}
+					_buttonImages.setImage(imageButton, Constants.IMG_STOP);
+					// The player service publishes the current song.  Read it without a lock.
+					title = NowPlaying.getTitle(Constants.STREAM_ID);
 				}
 				else if (PlayerService.STATE_PREPARING.equals(state)) {
 					sop(m,"Setting button image to 'dots'.");
-					imageButton.setImageResource(Constants.IMG_DOTS);
+					_buttonImages.setImage(imageButton, Constants.IMG_DOTS);
 				}
 				else if (PlayerService.STATE_STOPPED.equals(state)) {
 					sop(m,"Setting button image to 'play'.");
-					imageButton.setImageResource(Constants.IMG_PLAY);
+					_buttonImages.setImage(imageButton, Constants.IMG_PLAY);
 				}
 				else {
 					sop(m, "ERROR: Unrecognized state value: " + state);
 				}
+				TextView nowPlayingText = (TextView)findViewById(R.id.nowPlayingText);
+				nowPlayingText.setText((null == title) ? "" : title);
 				sop(m,"Exit.");
 			}
 		};
@@ -177,10 +189,13 @@ implements MediaPlayer.OnPreparedListener,
 	public void onResume() {
 		String m = "onResume";
 		sop(m,"Entry.");
+		StartupTrace.begin("MainActivity.onResume");
 		super.onResume();
 
 		sop(m,"Enabling the service to notify this application of state changes.");
+		StartupTrace.begin("registerReceiver");
 		registerReceiver(_mainActivityBroadcastReceiver, new IntentFilter(ACTION_IMAGE));
+		StartupTrace.end("registerReceiver");
 
 		sop(m,"Requesting status from the service in order to update the MainActivity button image.");
  	 	// Note: If the service has already been started, the running service receives this intent.
@@ -189,11 +204,13 @@ implements MediaPlayer.OnPreparedListener,
 		intent.setPackage(this.getPackageName());
 		startService(intent);
 
+		StartupTrace.end("MainActivity.onResume");
 		sop(m,"Exit.");
 	}
 
 	/**
 	 * Unregisters the broadcastReceiver from receiving state changes from the running service when this activity deactivates.
+	 * Also lets the service release a player it prewarmed while this activity was visible.
 	 */
 	public void onPause() {
 		String m = "onPause";
@@ -201,6 +218,11 @@ implements MediaPlayer.OnPreparedListener,
 
 		sop(m,"Disabling the service from notifying this application of state changes.");
 		unregisterReceiver(_mainActivityBroadcastReceiver);
+
+		sop(m,"Asking the service to release any prewarmed player.");
+		Intent intent = new Intent(PlayerService.ACTION_RELEASE);
+		intent.setPackage(this.getPackageName());
+		startService(intent);
 	}
 
 	// For debug only
@@ -0,0 +1,182 @@
+/**
+ * Plays the music stream with the Android media player.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import java.io.IOException;
+
+import android.media.AudioAttributes;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+
+/**
+ * PlaybackEngine on the Android MediaPlayer.
+ * On Android API 23 and later, the player reads the stream from our own StreamDataSource,
+ * whose buffer level replaces the platform's buffering updates.
+ */
+public class MediaPlayerEngine implements
+PlaybackEngine,
+StreamReader.Listener,
+MediaPlayer.OnPreparedListener,
+MediaPlayer.OnErrorListener,
+MediaPlayer.OnInfoListener,
+MediaPlayer.OnBufferingUpdateListener {
+
+	/**
+	 * Logs messages to the console.
+     * Enable/disable logging here when publishing to Android Market.
+	 */
+	private static final String _logTag = MediaPlayerEngine.class.getName().toString();
+	private static void sop(String method, String message) {
+		//Log.d(_logTag, method + ": " + message);
+	}
+
+	private MediaPlayer _mediaPlayer = null;
+	private StreamDataSource _dataSource = null;
+	private Listener _listener = null;
+
+	/**
+	 * Constructor.  Call from the main thread.  Creates and configures the media player.
+	 */
+	public MediaPlayerEngine(String url, Listener listener) throws IOException {
+		String m = "MediaPlayerEngine";
+		_listener = listener;
+		_mediaPlayer = new MediaPlayer();
+		try {
+			// For Android API 26 (Android 8 Oreo) and newer, specify AudioAttributes.
+			if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
+				sop(m,"Setting audio attributes for Android API 26 and later.");
+				AudioAttributes.Builder builder = new AudioAttributes.Builder();
+				//builder.setLegacyStreamType(AudioManager.STREAM_MUSIC);
+				builder.setUsage(AudioAttributes.USAGE_MEDIA);
+				builder.setContentType(AudioAttributes.CONTENT_TYPE_MUSIC);
+				AudioAttributes attributes = builder.build();
+				_mediaPlayer.setAudioAttributes(attributes);
+				sop(m,"Set audio attributes.");
+			}
+			else {
+				sop(m,"Setting audio stream type for older Android APIs before 26.");
+				_mediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+				sop(m,"Set audio stream type.");
+			}
+
+			// For Android API 23 (Android 6 Marshmallow) and newer, read the stream ourselves.
+			// The media player closes the data source when it is released.
+			if (Constants.USE_STREAM_BUFFER && android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M) {
+				sop(m,"Setting stream buffer data source.");
+				_dataSource = new StreamDataSource(url, this);
+				_mediaPlayer.setDataSource(_dataSource);
+			}
+			else {
+				_mediaPlayer.setDataSource(url);
+			}
+			_mediaPlayer.setOnPreparedListener(this);
+			_mediaPlayer.setOnErrorListener(this);
+			_mediaPlayer.setOnInfoListener(this);
+			_mediaPlayer.setOnBufferingUpdateListener(this);
+		}
+		catch (IOException e) {
+			release();
+			throw e;
+		}
+	}
+
+	public int getType() {
+		return TYPE_MEDIA_PLAYER;
+	}
+
+	public void prepareAsync() {
+		_mediaPlayer.prepareAsync();
+	}
+
+	public void start() {
+		_mediaPlayer.start();
+	}
+
+	public void pause() {
+		_mediaPlayer.pause();
+	}
+
+	public void stop() {
+		_mediaPlayer.stop();
+	}
+
+	public void release() {
+		if (null != _mediaPlayer) {
+			_mediaPlayer.release();
+			_mediaPlayer = null;
+		}
+	}
+
+	public boolean isPlaying() {
+		MediaPlayer mediaPlayer = _mediaPlayer;
+		return (null != mediaPlayer) && mediaPlayer.isPlaying();
+	}
+
+	public long getBufferedMillis() {
+		return (null == _dataSource) ? -1 : _dataSource.getReader().getBufferedAheadMillis();
+	}
+
+	public void setVolume(float volume) {
+		MediaPlayer mediaPlayer = _mediaPlayer;
+		if (null != mediaPlayer) {
+			try {
+				mediaPlayer.setVolume(volume, volume);
+			}
+			catch (IllegalStateException e) {
+				// The player was released meanwhile.  Nothing to do.
+			}
+		}
+	}
+
+	public String getStatsString() {
+		return "engine=MediaPlayer " + ((null == _dataSource) ? "dataSource=url" : _dataSource.getReader().getStatsString());
+	}
+
+	public void onPrepared(MediaPlayer mediaPlayer) {
+		_listener.onEnginePrepared(this);
+	}
+
+	public boolean onError(MediaPlayer mediaPlayer, int what, int extra) {
+		_listener.onEngineError(this, what, extra);
+		return true;
+	}
+
+	public boolean onInfo(MediaPlayer mediaPlayer, int what, int extra) {
+		_listener.onEngineInfo(this, what, extra);
+		return false;
+	}
+
+	/**
+	 * Callback for the MediaPlayer.OnBufferingUpdateListener.
+	 * This only seems to be called once, when the play button is pressed.
+	 */
+	public void onBufferingUpdate(MediaPlayer mediaPlayer, int percent) {
+		if (null == _dataSource) {
+			_listener.onEngineBufferLevel(this, percent);
+		}
+	}
+
+	/**
+	 * Callback from our own data source.  Its level replaces the platform's buffering updates.
+	 */
+	public void onStreamBufferLevel(StreamReader reader, int percent) {
+		if (null != _mediaPlayer) {
+			_listener.onEngineBufferLevel(this, percent);
+		}
+	}
+}
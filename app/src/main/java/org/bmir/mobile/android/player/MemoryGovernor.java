@@ -0,0 +1,208 @@
+/**
+ * Sheds app memory when the system runs low, instead of being killed.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+
+/**
+ * Central registry of the caches and buffers which can give memory back.
+ * On each trim level from the system, trims the registered components in priority order: what only the UI uses first,
+ * then spare pools, then caches, then indexes.  Buffers which playback needs are reported, but never trimmed, so that
+ * playback survives the pressure.  Each component decides how far to shrink for the level.
+ * After each trim, records the bytes each component still holds.
+ * Trim callbacks arrive on the main thread.  Registration may come from any thread.
+ */
+public class MemoryGovernor {
+
+	/**
+	 * Logs messages to the console.
+     * Enable/disable logging here when publishing to Android Market.
+	 */
+	private static final String _logTag = MemoryGovernor.class.getName().toString();
+	private static void sop(String method, String message) {
+		//Log.d(_logTag, method + ": " + message);
+	}
+
+	/**
+	 * Priorities, in the order in which they are trimmed.
+	 */
+	public static final int PRIORITY_UI = 0;
+	public static final int PRIORITY_SPARE = 1;
+	public static final int PRIORITY_CACHE = 2;
+	public static final int PRIORITY_INDEX = 3;
+	public static final int PRIORITY_PLAYBACK = 4;
+
+	/**
+	 * Components, as recorded with EventRecorder.EVT_TRIM_HELD.
+	 */
+	public static final int COMPONENT_BUTTON_IMAGES = 1;
+	public static final int COMPONENT_SEGMENT_POOL = 2;
+	public static final int COMPONENT_TITLE_CACHE = 3;
+	public static final int COMPONENT_HISTORY = 4;
+	public static final int COMPONENT_RELAY = 5;
+	private static final String[] COMPONENT_NAMES = { "unknown", "buttonImages", "segmentPool", "titleCache", "history", "relay" };
+
+	private static class Registration {
+		final int component;
+		final int priority;
+		final Trimmable trimmable;
+
+		Registration(int component, int priority, Trimmable trimmable) {
+			this.component = component;
+			this.priority = priority;
+			this.trimmable = trimmable;
+		}
+
+		String getName() {
+			return (0 < component && COMPONENT_NAMES.length > component) ? COMPONENT_NAMES[component] : COMPONENT_NAMES[0];
+		}
+	}
+
+	/**
+	 * Registrations in priority order.  Guarded by the class.
+	 */
+	private static final List<Registration> _registrations = new ArrayList<Registration>();
+	private static ComponentCallbacks2 _callbacks = null;
+
+	/**
+	 * Statistics.
+	 */
+	private static int _trimCount = 0;
+	private static long _bytesFreed = 0;
+
+	/**
+	 * Starts listening to the system for the whole process.  Does nothing if already started.
+	 */
+	public static synchronized void start(Context context) {
+		if (null != _callbacks) {
+			return;
+		}
+		_callbacks = new ComponentCallbacks2() {
+			public void onTrimMemory(int level) {
+				trim(level);
+			}
+			public void onLowMemory() {
+				trim(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+			}
+			public void onConfigurationChanged(Configuration configuration) {
+			}
+		};
+		context.getApplicationContext().registerComponentCallbacks(_callbacks);
+	}
+
+	/**
+	 * Registers one of the COMPONENT_* for the level's trims and the stats.  Registering it again does nothing.
+	 */
+	public static synchronized void register(int component, int priority, Trimmable trimmable) {
+		int at = _registrations.size();
+		for (int i = _registrations.size() - 1; 0 <= i; i--) {
+			Registration registration = _registrations.get(i);
+			if (trimmable == registration.trimmable) {
+				return;
+			}
+			if (priority < registration.priority) {
+				at = i;
+			}
+		}
+		_registrations.add(at, new Registration(component, priority, trimmable));
+	}
+
+	public static synchronized void unregister(Trimmable trimmable) {
+		for (int i = _registrations.size() - 1; 0 <= i; i--) {
+			if (trimmable == _registrations.get(i).trimmable) {
+				_registrations.remove(i);
+			}
+		}
+	}
+
+	/**
+	 * Returns the lowest priority which a trim level leaves alone.
+	 * A running process sheds spares first, then caches, then in critical trouble all it can.
+	 * A hidden UI is not memory pressure, so it sheds only what the UI uses.  A process in the background sheds all it can.
+	 * Each range runs from its level up to the next one, so that levels the system adds later fall into a range.
+	 */
+	static int getSparedPriority(int level) {
+		if (ComponentCallbacks2.TRIM_MEMORY_BACKGROUND <= level) {
+			return PRIORITY_PLAYBACK;
+		}
+		if (ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN <= level) {
+			return PRIORITY_SPARE;
+		}
+		if (ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL <= level) {
+			return PRIORITY_PLAYBACK;
+		}
+		if (ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW <= level) {
+			return PRIORITY_INDEX;
+		}
+		if (ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE <= level) {
+			return PRIORITY_CACHE;
+		}
+		return PRIORITY_UI;
+	}
+
+	/**
+	 * Trims the components for the level, in priority order.
+	 */
+	public static void trim(int level) {
+		String m = "trim";
+		List<Registration> registrations;
+		synchronized (MemoryGovernor.class) {
+			registrations = new ArrayList<Registration>(_registrations);
+		}
+		int spared = getSparedPriority(level);
+		long freed = 0;
+		for (Registration registration : registrations) {
+			if (spared <= registration.priority) {
+				break;
+			}
+			long before = registration.trimmable.getBytesHeld();
+			registration.trimmable.trim(level);
+			long released = before - registration.trimmable.getBytesHeld();
+			freed += Math.max(0, released);
+			sop(m,"level=" + level + " " + registration.getName() + " released=" + released);
+		}
+		synchronized (MemoryGovernor.class) {
+			_trimCount++;
+			_bytesFreed += freed;
+		}
+		EventRecorder.get().record(EventRecorder.EVT_TRIM, level, freed);
+		for (Registration registration : registrations) {
+			EventRecorder.get().record(EventRecorder.EVT_TRIM_HELD, registration.component, registration.trimmable.getBytesHeld());
+		}
+		sop(m,"level=" + level + " freed=" + freed + " " + getStatsString());
+	}
+
+	/**
+	 * Returns the memory held by each component, and the trims so far.
+	 */
+	public static synchronized String getStatsString() {
+		StringBuilder stats = new StringBuilder();
+		long total = 0;
+		for (Registration registration : _registrations) {
+			long bytes = registration.trimmable.getBytesHeld();
+			total += bytes;
+			stats.append(' ').append(registration.getName()).append('=').append(bytes);
+		}
+		return "bytesHeld=" + total + " trims=" + _trimCount + " bytesFreed=" + _bytesFreed + stats;
+	}
+}
@@ -0,0 +1,157 @@
+/**
+ * Detects when Android switches the default network, e.g. from Wi-Fi to cellular.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkInfo;
+import android.os.Handler;
+
+/**
+ * Tells its listener, on the main thread, when the default network changes to a different network.
+ * Uses the default network callback on Android API 24 and later, and the connectivity broadcast before that.
+ */
+public class NetworkMonitor {
+
+	/**
+	 * Receives default network changes.
+	 */
+	public interface Listener {
+		void onDefaultNetworkChanged();
+	}
+
+	/**
+	 * Logs messages to the console.
+     * Enable/disable logging here when publishing to Android Market.
+	 */
+	private static final String _logTag = NetworkMonitor.class.getName().toString();
+	private static void sop(String method, String message) {
+		//Log.d(_logTag, method + ": " + message);
+	}
+
+	private Context _context = null;
+	private ConnectivityManager _connectivityManager = null;
+	private Listener _listener = null;
+	private Handler _mainHandler = null;
+
+	/**
+	 * Identifies the current default network.  Null until the first network is seen.
+	 * Used only on the main thread.
+	 */
+	private String _networkKey = null;
+
+	/**
+	 * Whichever of these is registered while started.
+	 */
+	private ConnectivityManager.NetworkCallback _networkCallback = null;
+	private BroadcastReceiver _connectivityReceiver = null;
+
+	/**
+	 * Constructor.  Call from the main thread.
+	 */
+	public NetworkMonitor(Context context, Listener listener) {
+		_context = context.getApplicationContext();
+		_connectivityManager = (ConnectivityManager) _context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		_listener = listener;
+		_mainHandler = new Handler();
+	}
+
+	/**
+	 * Starts watching.  The network at the time of the call is the baseline, not a change.
+	 */
+	public void start() {
+		String m = "start";
+		if (null != _networkCallback || null != _connectivityReceiver || null == _connectivityManager) {
+			return;
+		}
+		_networkKey = null;
+		if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.N) {
+			sop(m,"Registering default network callback.");
+			_networkCallback = new ConnectivityManager.NetworkCallback() {
+				@Override
+				public void onAvailable(Network network) {
+					// Called on a ConnectivityManager thread.
+					final String key = network.toString();
+					_mainHandler.post(new Runnable() {
+						public void run() {
+							onNetworkKey(key);
+						}
+					});
+				}
+			};
+			_connectivityManager.registerDefaultNetworkCallback(_networkCallback);
+		}
+		else {
+			sop(m,"Registering connectivity receiver.");
+			_connectivityReceiver = new BroadcastReceiver() {
+				@Override
+				public void onReceive(Context context, Intent intent) {
+					NetworkInfo networkInfo = _connectivityManager.getActiveNetworkInfo();
+					if (null != networkInfo && networkInfo.isConnected()) {
+						// The extra info is the Wi-Fi SSID or the cellular APN, so a new access point is a new network.
+						// The subtype is left out, so a cellular handover between, e.g., LTE and HSPA is not.
+						onNetworkKey("type" + networkInfo.getType() + "/" + networkInfo.getExtraInfo());
+					}
+				}
+			};
+			_context.registerReceiver(_connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+		}
+	}
+
+	/**
+	 * Stops watching.
+	 */
+	public void stop() {
+		if (null != _networkCallback) {
+			_connectivityManager.unregisterNetworkCallback(_networkCallback);
+			_networkCallback = null;
+		}
+		if (null != _connectivityReceiver) {
+			_context.unregisterReceiver(_connectivityReceiver);
+			_connectivityReceiver = null;
+		}
+		_networkKey = null;
+	}
+
+	/**
+	 * For debug only.  Simulates a switch to a different default network.
+	 */
+	public void simulateNetworkChange() {
+		onNetworkKey("simulated" + System.nanoTime());
+	}
+
+	/**
+	 * Notes the current default network, and tells the listener if it differs from the previous one.
+	 */
+	private void onNetworkKey(String key) {
+		String m = "onNetworkKey";
+		if (null == _networkCallback && null == _connectivityReceiver) {
+			return;
+		}
+		String previous = _networkKey;
+		_networkKey = key;
+		if (null != previous && !previous.equals(key)) {
+			sop(m,"Default network changed from " + previous + " to " + key);
+			_listener.onDefaultNetworkChanged();
+		}
+	}
+}
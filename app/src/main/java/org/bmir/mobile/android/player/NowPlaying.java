@@ -0,0 +1,93 @@
+/**
+ * The song playing now, as last reported by the server.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+/**
+ * "Now playing" snapshot.
+ * Each change replaces the whole immutable Snapshot through one volatile field, so the notification,
+ * the MainActivity and anyone else read a consistent title without locks.
+ * Writers are serialized, so that no change or sequence number is lost if two of them race.
+ */
+public class NowPlaying {
+
+	/**
+	 * One title.  sequence goes up by one with each change, so a reader can tell whether it has seen it.
+	 */
+	public static class Snapshot {
+		public final int streamId;
+		public final String title;
+		public final long timestamp;
+		public final int sequence;
+
+		Snapshot(int streamId, String title, long timestamp, int sequence) {
+			this.streamId = streamId;
+			this.title = title;
+			this.timestamp = timestamp;
+			this.sequence = sequence;
+		}
+	}
+
+	/**
+	 * The process's now playing.  Tests make their own.
+	 */
+	private static final NowPlaying _instance = new NowPlaying();
+
+	private volatile Snapshot _current = null;
+
+	NowPlaying() {
+	}
+
+	/**
+	 * Returns the current snapshot, or null before the first title.
+	 */
+	public static Snapshot get() {
+		return _instance.getSnapshot();
+	}
+
+	/**
+	 * Returns the current title of the stream, or null if none is known.
+	 */
+	public static String getTitle(int streamId) {
+		return _instance.getSnapshotTitle(streamId);
+	}
+
+	/**
+	 * Publishes a title.  Returns false if it is the current one.
+	 */
+	static boolean publish(int streamId, String title) {
+		return _instance.publishSnapshot(streamId, title);
+	}
+
+	Snapshot getSnapshot() {
+		return _current;
+	}
+
+	String getSnapshotTitle(int streamId) {
+		Snapshot snapshot = _current;
+		return (null != snapshot && streamId == snapshot.streamId) ? snapshot.title : null;
+	}
+
+	synchronized boolean publishSnapshot(int streamId, String title) {
+		Snapshot current = _current;
+		if (null != current && streamId == current.streamId && title.equals(current.title)) {
+			return false;
+		}
+		_current = new Snapshot(streamId, title, System.currentTimeMillis(), (null == current) ? 1 : current.sequence + 1);
+		return true;
+	}
+}
@@ -0,0 +1,413 @@
+/**
+ * Persistent history of the songs which have played.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Append-only log of songs with an in-memory index.
+ *
+ * File format, big-endian, one record per song change:
+ *   int length of the rest of the record, long timestamp ms, int stream id, UTF-8 title
+ *
+ * All file access runs on one background thread, so append() never blocks the caller.
+ * Queries read the in-memory index, which the background thread updates.
+ * Under memory pressure the index is dropped, and the background thread loads it again from the file
+ * before its next write, or after the next query.
+ */
+public class NowPlayingHistory implements Trimmable {
+
+	/**
+	 * Logs messages to the console.
+     * Enable/disable logging here when publishing to Android Market.
+	 */
+	private static final String _logTag = NowPlayingHistory.class.getName().toString();
+	private static void sop(String method, String message) {
+		//Log.d(_logTag, method + ": " + message);
+	}
+
+	/**
+	 * History file name.
+	 */
+	public static final String FILE_NAME = "history.bin";
+
+	/**
+	 * When the file grows past this size, it is compacted to the newest half.
+	 */
+	static final long MAX_FILE_BYTES = 64 * 1024;
+
+	/**
+	 * Sanity limit on a record length read from the file.
+	 */
+	private static final int MAX_RECORD_BYTES = 4096;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * One entry of the index.
+	 */
+	public static class Entry {
+		public final long timestamp;
+		public final int streamId;
+		public final String title;
+		final int recordBytes;
+
+		Entry(long timestamp, int streamId, String title, int recordBytes) {
+			this.timestamp = timestamp;
+			this.streamId = streamId;
+			this.title = title;
+			this.recordBytes = recordBytes;
+		}
+	}
+
+	/**
+	 * The single instance for this process.
+	 */
+	private static NowPlayingHistory _instance = null;
+	public static synchronized NowPlayingHistory get(File directory) {
+		if (null == _instance) {
+			_instance = new NowPlayingHistory(new File(directory, FILE_NAME));
+		}
+		return _instance;
+	}
+
+	/**
+	 * The history file.
+	 */
+	private final File _file;
+
+	/**
+	 * The index, oldest first, and whether it was dropped to save memory.  Guarded by this.
+	 */
+	private final ArrayList<Entry> _entries = new ArrayList<Entry>();
+	private boolean _dropped = false;
+
+	/**
+	 * Runs all file access, in order.
+	 */
+	private final ExecutorService _executor = Executors.newSingleThreadExecutor();
+
+	/**
+	 * Constructor.  Use get(), except in tests.
+	 */
+	NowPlayingHistory(File file) {
+		_file = file;
+		_executor.execute(new Runnable() {
+			public void run() {
+				load();
+			}
+		});
+	}
+
+	/**
+	 * Records that a song started playing now.  Returns immediately.
+	 * Repeats of the latest song of the same stream are ignored.
+	 */
+	public void append(final int streamId, final String title) {
+		final long timestamp = System.currentTimeMillis();
+		_executor.execute(new Runnable() {
+			public void run() {
+				write(timestamp, streamId, title);
+			}
+		});
+	}
+
+	/**
+	 * Returns the song which was playing at the specified time, or null.
+	 */
+	public synchronized Entry getAt(long timestamp) {
+		reloadLater();
+		// Binary search for the last entry at or before the timestamp.
+		int low = 0;
+		int high = _entries.size() - 1;
+		Entry rc = null;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			Entry entry = _entries.get(mid);
+			if (entry.timestamp <= timestamp) {
+				rc = entry;
+				low = mid + 1;
+			}
+			else {
+				high = mid - 1;
+			}
+		}
+		return rc;
+	}
+
+	/**
+	 * Returns up to count of the most recent songs, newest first.
+	 */
+	public synchronized List<Entry> getRecent(int count) {
+		reloadLater();
+		int size = _entries.size();
+		List<Entry> rc = new ArrayList<Entry>(Math.min(count, size));
+		for (int i = size - 1; i >= 0 && rc.size() < count; i--) {
+			rc.add(_entries.get(i));
+		}
+		return rc;
+	}
+
+	/**
+	 * Returns the number of songs in the index.
+	 */
+	public synchronized int size() {
+		reloadLater();
+		return _entries.size();
+	}
+
+	/**
+	 * Drops the index under any memory pressure it is asked to help with.  The file keeps the history.
+	 */
+	public synchronized void trim(int level) {
+		_entries.clear();
+		_entries.trimToSize();
+		_dropped = true;
+	}
+
+	/**
+	 * Returns an estimate of the bytes held by the index.
+	 */
+	public synchronized long getBytesHeld() {
+		long bytes = 0;
+		for (Entry entry : _entries) {
+			bytes += 32 + 2L * entry.title.length();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Has the background thread load a dropped index again.  Call while holding this.
+	 */
+	private void reloadLater() {
+		if (_dropped) {
+			_executor.execute(new Runnable() {
+				public void run() {
+					reloadIfDropped();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Loads a dropped index again.  Call from the background thread.
+	 */
+	private void reloadIfDropped() {
+		synchronized (this) {
+			if (!_dropped) {
+				return;
+			}
+			_dropped = false;
+		}
+		load();
+	}
+
+	/**
+	 * Reads the file into the index.  Discards a torn record at the end of the file.
+	 */
+	private void load() {
+		String m = "load";
+		if (!_file.exists()) {
+			return;
+		}
+		List<Entry> entries = new ArrayList<Entry>();
+		long validBytes = 0;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(_file)));
+			while (true) {
+				int length = in.readInt();
+				if (12 > length || MAX_RECORD_BYTES < length) {
+					sop(m,"Bad record length=" + length);
+					break;
+				}
+				long timestamp = in.readLong();
+				int streamId = in.readInt();
+				byte[] bytes = new byte[length - 12];
+				in.readFully(bytes);
+				entries.add(new Entry(timestamp, streamId, new String(bytes, UTF8), 4 + length));
+				validBytes += 4 + length;
+			}
+		}
+		catch (EOFException e) {
+			// End of file, possibly in the middle of a torn record.
+		}
+		catch (IOException e) {
+			sop(m,"Caught e=" + e.getMessage());
+		}
+		if (null != in) {
+			try { in.close(); } catch (IOException e) { ; }
+		}
+
+		// Cut off anything after the last good record, so that appends line up again.
+		if (validBytes < _file.length()) {
+			truncate(validBytes);
+		}
+
+		synchronized (this) {
+			// Dropped again while loading.  The next reload reads it all.
+			if (_dropped) {
+				return;
+			}
+			_entries.addAll(0, entries);
+		}
+		sop(m,"Loaded entries=" + entries.size());
+	}
+
+	/**
+	 * Appends a record to the file and the index.
+	 */
+	private void write(long timestamp, int streamId, String title) {
+		String m = "write";
+		reloadIfDropped();
+		synchronized (this) {
+			for (int i = _entries.size() - 1; i >= 0; i--) {
+				Entry entry = _entries.get(i);
+				if (streamId == entry.streamId) {
+					if (title.equals(entry.title)) {
+						return;
+					}
+					break;
+				}
+			}
+		}
+
+		byte[] bytes = title.getBytes(UTF8);
+		if (MAX_RECORD_BYTES < 12 + bytes.length) {
+			sop(m,"Title too long. length=" + bytes.length);
+			return;
+		}
+		Entry entry = new Entry(timestamp, streamId, title, 16 + bytes.length);
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new FileOutputStream(_file, true));
+			writeRecord(out, entry, bytes);
+		}
+		catch (IOException e) {
+			sop(m,"Caught e=" + e.getMessage());
+			return;
+		}
+		finally {
+			if (null != out) {
+				try { out.close(); } catch (IOException e) { ; }
+			}
+		}
+
+		synchronized (this) {
+			if (!_dropped) {
+				_entries.add(entry);
+			}
+		}
+
+		if (MAX_FILE_BYTES < _file.length()) {
+			compact();
+		}
+	}
+
+	/**
+	 * Rewrites the file with the newest records which fit in half of the size cap.
+	 */
+	private void compact() {
+		String m = "compact";
+		reloadIfDropped();
+		List<Entry> keep = new ArrayList<Entry>();
+		synchronized (this) {
+			// Dropped again.  Compact on a later write, rather than from a partial index.
+			if (_dropped) {
+				return;
+			}
+			long bytes = 0;
+			for (int i = _entries.size() - 1; i >= 0; i--) {
+				Entry entry = _entries.get(i);
+				bytes += entry.recordBytes;
+				if (MAX_FILE_BYTES / 2 < bytes) {
+					break;
+				}
+				keep.add(0, entry);
+			}
+		}
+
+		File tmp = new File(_file.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new FileOutputStream(tmp));
+			for (Entry entry : keep) {
+				writeRecord(out, entry, entry.title.getBytes(UTF8));
+			}
+			out.close();
+			out = null;
+			if (!tmp.renameTo(_file)) {
+				throw new IOException("Could not rename " + tmp);
+			}
+		}
+		catch (IOException e) {
+			sop(m,"Caught e=" + e.getMessage());
+			tmp.delete();
+			return;
+		}
+		finally {
+			if (null != out) {
+				try { out.close(); } catch (IOException e) { ; }
+			}
+		}
+
+		synchronized (this) {
+			if (!_dropped) {
+				_entries.clear();
+				_entries.addAll(keep);
+			}
+		}
+		sop(m,"Compacted to entries=" + keep.size());
+	}
+
+	private static void writeRecord(DataOutputStream out, Entry entry, byte[] bytes) throws IOException {
+		out.writeInt(12 + bytes.length);
+		out.writeLong(entry.timestamp);
+		out.writeInt(entry.streamId);
+		out.write(bytes);
+	}
+
+	private void truncate(long length) {
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(_file, "rw");
+			raf.setLength(length);
+		}
+		catch (IOException e) {
+			sop("truncate","Caught e=" + e.getMessage());
+		}
+		finally {
+			if (null != raf) {
+				try { raf.close(); } catch (IOException e) { ; }
+			}
+		}
+	}
+}
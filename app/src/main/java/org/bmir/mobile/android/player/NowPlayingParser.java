@@ -0,0 +1,211 @@
+/**
+ * Extracts and cleans up the name of the presently-playing song.
+ *
+ * Copyright bmir.org and shoutingfire.com 2012,2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import java.util.regex.Pattern;
+
+/**
+ * The parsing half of NowPlayingThread: page extraction, entity decoding,
+ * nuisance stripping and truncation.  Uses no Android classes, so it can be
+ * exercised and measured on a plain JVM.
+ */
+public class NowPlayingParser {
+
+	/**
+	 * Error message return code.
+	 */
+	public final static String RC_UNKNOWN_CURRENT_SONG = "RC_UNKNOWN_CURRENT_SONG";
+
+	/**
+	 * Logs messages to the console.
+     * Enable/disable logging here when publishing to Android Market.
+	 */
+	private static final String _logTag = NowPlayingParser.class.getName().toString();
+	private static void sop(String method, String message) {
+		//Log.d(_logTag, method + ": " + message);
+	}
+
+	/**
+	 * Canonical titles for recently seen raw titles.
+	 */
+	private static final TitleCache _titleCache = new TitleCache(64);
+	public static TitleCache getTitleCache() { return _titleCache; }
+
+	/**
+	 * Truncates a long string to reasonable length for a Toast message.
+	 */
+	public static String truncateToastString(String str) {
+		return truncateToastString(str, Tuning.get().maxToastChars);
+	}
+
+	private static String truncateToastString(String str, int maxToastChars) {
+		if (maxToastChars < str.length()) {
+			str = str.substring(0,maxToastChars) + "...";
+		}
+		return str;
+	}
+
+    /**
+     * Converts all HTML entity reference characters to ASCII.
+     * Example:  Converts &quot; to "
+     * Ref:  http://www.w3schools.com/tags/ref_entities.asp
+     */
+	public static String decodeHtmlEntityReferences(String str) {
+		String m = "decodeHtmlEntityReferences";
+
+		// Most titles have no entities at all.
+		if (-1 == str.indexOf('&')) {
+			return str;
+		}
+		sop(m, "Decoding!");
+
+		// Literal replacement.  Note: &amp; must be decoded last, so that "&amp;lt;" becomes the literal "&lt;", not "<".
+		str = str.replace("&quot;", "\"");
+		str = str.replace("&apos;", "'");
+		str = str.replace("&lt;", "<");
+		str = str.replace("&gt;", ">");
+		str = str.replace("&amp;", "&");
+
+	    return str;
+	}
+
+	/**
+	 * Matches '.mp3' in any case.  Note: As before, the '.' matches any character.
+	 */
+	private static final Pattern MP3_PATTERN = Pattern.compile(".mp3", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Removes other nuisance junk from the current song.
+     */
+	public static String removeNuisanceStrings(String str) {
+		//String m = "removeNuisanceStrings";
+
+		str = MP3_PATTERN.matcher(str).replaceAll("");
+
+		if (str.endsWith(" - ")) {
+		    str = str.substring(0, str.length() - 3);
+		}
+		if (str.endsWith(" -")) {
+		    str = str.substring(0, str.length() - 2);
+		}
+
+		str = str.trim();
+
+	    return str;
+	}
+
+    /**
+     * Extracts the 'current song' string from the HTML response string.
+     * Expects the page to look like this:
+     *
+     * <td>Current Song:</td>
+     * <td class="streamdata">Goodiebag - hestedoktoren</td>
+     * </tr>
+     *
+     * Returns RC_UNKNOWN_CURRENT_SONG upon error.
+     */
+    public static String getCurrentSongFromStatusPage(String page) {
+        String m = "getCurrentSongFromStatusPage";
+        sop(m,"Entry.");
+
+        // Bozo error.
+        if (null == page) {
+            sop(m,"Early exit. Consumer error. page is null.");
+            return RC_UNKNOWN_CURRENT_SONG;
+        }
+
+        // Find "Current Song"
+        int ixCurrentSong = page.indexOf("Current Song");
+        if (-1 == ixCurrentSong) {
+            sop(m,"Early exit. Could not find 'Current Song' in response.");
+            return RC_UNKNOWN_CURRENT_SONG;
+        }
+
+        // Find next 'td' tag.
+        int ixTDStart = page.indexOf("<td", ixCurrentSong);
+        if (-1 == ixTDStart) {
+            sop(m,"Early exit. Could not find next '<td' in response.");
+            return RC_UNKNOWN_CURRENT_SONG;
+        }
+
+        // Find closing of 'td' tag.
+        int ixTDClose = page.indexOf(">", ixTDStart);
+        if (-1 == ixTDClose) {
+            sop(m,"Early exit. Could not find next '>' in response.");
+            return RC_UNKNOWN_CURRENT_SONG;
+        }
+
+        // Find next 'end td' tag.
+        int ixTDEnd = page.indexOf("</td", ixTDClose);
+        if (-1 == ixTDEnd) {
+            sop(m,"Early exit. Could not find next '</td' in response.");
+            return RC_UNKNOWN_CURRENT_SONG;
+        }
+
+        String rc = page.substring(1 + ixTDClose, ixTDEnd);
+
+        sop(m,"Exit. Returning rc=>>>" + rc + "<<<");
+        return rc;
+    }
+
+    /**
+     * Returns true if the page, or just its beginning, holds the whole current song.
+     */
+    public static boolean hasCurrentSong(String page) {
+        return !RC_UNKNOWN_CURRENT_SONG.equals(getCurrentSongFromStatusPage(page));
+    }
+
+    /**
+     * Converts a raw song string from the status page into a displayable song.
+     */
+    public static String cleanUpSong(String song) {
+		return cleanUpSong(song, Tuning.get().maxToastChars);
+    }
+
+    private static String cleanUpSong(String song, int maxToastChars) {
+		// Convert escaped strings into readable characters.
+		song = decodeHtmlEntityReferences(song);
+		// Remove other objectionable strings.
+		song = removeNuisanceStrings(song);
+		// Do not display huge long messages as Toasts.
+		song = truncateToastString(song, maxToastChars);
+		return song;
+    }
+
+    /**
+     * Runs the whole pipeline on a status page.
+     * Returns the displayable current song, or null if there is none.
+     * Repeated songs return the same String, from the title cache, until a reload of the tuning changes the longest title.
+     */
+    public static String parse(String page) {
+		if (null == page || 3 >= page.length() || RC_UNKNOWN_CURRENT_SONG.equals(page)) {
+			return null;
+		}
+		String song = getCurrentSongFromStatusPage(page);
+		if (null == song || 3 >= song.length() || RC_UNKNOWN_CURRENT_SONG.equals(song)) {
+			return null;
+		}
+		int maxToastChars = Tuning.get().maxToastChars;
+		String title = _titleCache.get(song, maxToastChars);
+		if (null == title) {
+			title = cleanUpSong(song, maxToastChars);
+			_titleCache.put(song, title, maxToastChars);
+		}
+		return title;
+    }
+}
@@ -1,5 +1,5 @@
 /**
- * Transient foreground class which fetches and displays
+ * Transient background class which fetches
  * the name of the presently-playing song.
  *
  * Copyright bmir.org and shoutingfire.com 2012,2018
@@ -18,30 +18,19 @@
  */
 package org.bmir.mobile.android.player;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.URL;
-import java.net.URLConnection;
-
-import android.app.Activity;
 import android.content.Context;
-import android.widget.Toast;
+import android.os.Handler;
 
 /**
  * Issues a web request to the server to determine the current song.
- * Returns the current song to the specified listener.
+ * Publishes the current song in the NowPlaying snapshot, and runs the listener on the main thread when it changes.
  */
 public class NowPlayingThread implements Runnable {
 
-	/**
-	 * Ensures only one of these threads is running at any one time.
-	 */
-	private static Object _mutex = new Object();
-	
 	/**
 	 * Private error message return code. 
 	 */
-	private final static String RC_UNKNOWN_CURRENT_SONG = "RC_UNKNOWN_CURRENT_SONG";
+	private final static String RC_UNKNOWN_CURRENT_SONG = NowPlayingParser.RC_UNKNOWN_CURRENT_SONG;
 	
 	/**
 	 * Logs messages to the console.
@@ -53,243 +42,95 @@ public class NowPlayingThread implements Runnable {
 	}
 
 	/**
-	 * Reference to message strings.
+	 * Runs on the main thread when the current song changes.
 	 */
-	private Context _context = null;
+	private Runnable _onChanged = null;
+	private Handler _mainHandler = null;
 
 	/**
-	 * The activity to which this thread will post the current song.
-	 */
-	private Activity _activity = null;
-	
-	/**
-	 * The current song.
+	 * Remembers the songs which have played.
 	 */
-	private String _song = null;
+	private NowPlayingHistory _history = null;
 
 	/**
-	 * Title for the message.
+	 * Fetches the status page.
 	 */
-	private String _msgCurrentSong = null;
+	private StatusPageFetcher _fetcher = new StatusPageFetcher(Constants.STATUS_COMPRESSION, Constants.STATUS_RANGE, true);
 	
 	/**
-	 * Prevent rapid repeated queries.
-     * Note: One instance of this object is re-used by Main Activity,
-     * so this variable does need not be static.
-     * TODO ANDY: Make sure this is true!
+	 * One poll at a time, and not too often.  _fetcher is only touched by the poll which the gate let in.
 	 */
-	private long _lastQueryTimestamp = 0;
+	private final PollGate _gate = new PollGate();
 
 	/**
-	 * Constructor
+	 * Constructor.  Call from the main thread.
 	 */
-	public NowPlayingThread(Context context, Activity activity) {
-		_context = context;
-		_activity = activity;
-		_msgCurrentSong = Constants.APP_NAME_MIXED + ": ";
-	}
-	
-	/**
-	 * Truncates a long string to reasonable length for a Toast message.
-	 */
-	private static final int MAX_TOAST_CHARS = 98;
-	private String truncateToastString(String str) {
-		if (MAX_TOAST_CHARS < str.length()) {
-			str = str.substring(0,MAX_TOAST_CHARS) + "...";
-		}
-		return str;
+	public NowPlayingThread(Context context, Runnable onChanged) {
+		_onChanged = onChanged;
+		_mainHandler = new Handler();
+		_history = NowPlayingHistory.get(context.getFilesDir());
 	}
 	
     /**
-     * Converts all HTML entity reference characters to ASCII.
-     * Example:  Converts &quot; to "
-     * Ref:  http://www.w3schools.com/tags/ref_entities.asp
-     */
-	private String decodeHtmlEntityReferences(String str) {
-		String m = "decodeHtmlEntityReferences";
-		// For debug:
-		int ixAmpersand = str.indexOf("&");
-	    int ixSemicolon = str.indexOf(";"); 
-		if (-1 != ixAmpersand && -1 != ixSemicolon && ixAmpersand < ixSemicolon) {
-			sop(m, "Decoding!");
-		}
-
-		str = str.replaceAll("&quot;", "\"");
-		str = str.replaceAll("&apos;", "'");
-		str = str.replaceAll("&amp;", "&");
-		str = str.replaceAll("&lt;", "<");
-		str = str.replaceAll("&gt;", ">");
-		
-	    return str;	
-	}
-	
-    /**
-     * Removes other nuisance junk from the current song.
-     */
-	private String removeNuisanceStrings(String str) {
-		//String m = "removeNuisanceStrings";
-		
-		str = str.replaceAll(".mp3","");
-		str = str.replaceAll(".Mp3","");
-		str = str.replaceAll(".mP3","");
-		str = str.replaceAll(".MP3","");
-		
-		if (str.endsWith(" - ")) {
-		    str = str.substring(0, str.length() - 3);
-		}
-		if (str.endsWith(" -")) {
-		    str = str.substring(0, str.length() - 2);
-		}
-		
-		str = str.trim();
-		
-	    return str;	
-	}
-	
-    /**
-     * Extracts the 'current song' string from the HTML response string.
-     * Expects the page to look like this:
-     * 
-     * <td>Current Song:</td>
-     * <td class="streamdata">Goodiebag - hestedoktoren</td>
-     * </tr>
-     * 
-     * Returns RC_UNKNOWN_CURRENT_SONG upon error.
-     */
-    private String getCurrentSongFromStatusPage(String page) {
-        String m = "getCurrentSongFromStatusPage";
-        sop(m,"Entry.");
-
-        // Bozo error.
-        if (null == page) {
-            sop(m,"Early exit. Consumer error. page is null.");
-            return RC_UNKNOWN_CURRENT_SONG;
-        }
-
-        // Find "Current Song"
-        int ixCurrentSong = page.indexOf("Current Song");
-        if (-1 == ixCurrentSong) {
-            sop(m,"Early exit. Could not find 'Current Song' in response.");
-            return RC_UNKNOWN_CURRENT_SONG;
-        }
-
-        // Find next 'td' tag.
-        int ixTDStart = page.indexOf("<td", ixCurrentSong);
-        if (-1 == ixTDStart) {
-            sop(m,"Early exit. Could not find next '<td' in response.");
-            return RC_UNKNOWN_CURRENT_SONG;
-        }
-
-        // Find closing of 'td' tag.
-        int ixTDClose = page.indexOf(">", ixTDStart);
-        if (-1 == ixTDClose) {
-            sop(m,"Early exit. Could not find next '>' in response.");
-            return RC_UNKNOWN_CURRENT_SONG;
-        }
-
-        // Find next 'end td' tag.
-        int ixTDEnd = page.indexOf("</td", ixTDClose);
-        if (-1 == ixTDEnd) {
-            sop(m,"Early exit. Could not find next '</td' in response.");
-            return RC_UNKNOWN_CURRENT_SONG;
-        }
-
-        String rc = page.substring(1 + ixTDClose, ixTDEnd);
-                
-        sop(m,"Exit. Returning rc=>>>" + rc + "<<<");
-        return rc;
-    }
-
-    /**
-     * Issues a web request to the server status page.
+     * Issues a web request to the server status page, and reports the bytes it took.
      * 
      * Returns RC_UNKNOWN_CURRENT_SONG upon error.
      */
     private String getServerStatusPage() {
         String m = "getServerStatusPage";
-        String rc;
-        BufferedReader br = null;
-        sop(m,"Entry.");
-        
-        try {
-            URL url = new URL(Constants.STATUS_URL_STRING);
-
-            URLConnection uc = url.openConnection();
-            br = new BufferedReader(new InputStreamReader(uc.getInputStream()));
-
-            // Safety valve to constrain the following while loop.
-            // The page was originally 81 lines long, so 810 should be plenty.
-            int numLines = 0; 
-            
-            rc = "";
-            String line;
-            while ((null != (line = br.readLine())) && (810 > (numLines++))) {
-                // sop(m,"line=" + line);
-                rc += line;
+        String page = _fetcher.fetch(PlayerService.getStatusURLString());
+        // The main thread is the event recorder's single writer.
+        final long wireBytes = _fetcher.getLastWireBytes();
+        final long pageBytes = _fetcher.getLastPageBytes();
+        _mainHandler.post(new Runnable() {
+            public void run() {
+                EventRecorder.get().record(EventRecorder.EVT_STATUS_FETCH, wireBytes, pageBytes);
             }
-        }
-        catch(Exception e) {
-        	sop(m,"Caught e=" + e.getMessage());
-        	rc = RC_UNKNOWN_CURRENT_SONG;
-        }
-        
-        if (null != br) {
-        	try { br.close(); } catch(Exception e) { ; }
-        }
-
-        sop(m,"Exit.");
-        return rc;
+        });
+        sop(m,"Exit. " + _fetcher.getStatsString());
+        return page;
     }
     
     /**
-     * Determines the currently playing song and posts it to the activity.
+     * Determines the currently playing song and publishes it.
      */
     private void getCurrentSong() {
     	String m = "getCurrentSong";
     	sop(m,"Entry.");
 		String page = getServerStatusPage();
-		if (null != page && 3 < page.length() && !RC_UNKNOWN_CURRENT_SONG.equals(page)) {
-			String song = getCurrentSongFromStatusPage(page);
-			if (null != song && 3 < song.length() && !RC_UNKNOWN_CURRENT_SONG.equals(song)) {
-				// Convert escaped strings into readable characters.
-				song = decodeHtmlEntityReferences(song);
-				// Remove other objectionable strings.
-				song = this.removeNuisanceStrings(song);
-				// Do not display huge long messages as Toasts.
-				song = truncateToastString(song);
-				// Save it for easy access by the following runnable.  (Hack!)
-				_song = song;
-				_activity.runOnUiThread(new Runnable() {
-				    public void run() {
-				    	if (null != _song && 3 < _song.length()) {
-				            Toast.makeText(_activity, _msgCurrentSong + _song, Toast.LENGTH_LONG).show();
-				    	}
-				    }
-				});
-			}
+		String song = NowPlayingParser.parse(page);
+		if (null != song && 3 < song.length() && NowPlaying.publish(Constants.STREAM_ID, song)) {
+			// Remember it.  This does not wait for the file.
+			_history.append(Constants.STREAM_ID, song);
+			_mainHandler.post(_onChanged);
 		}
 		
-    	sop(m,"Exit");
+    	sop(m,"Exit. Title cache: " + NowPlayingParser.getTitleCache().getStatsString());
     }
 
 	@Override
 	public void run() {
 		String m = "run";
 		sop(m,"Entry.");   		
-		synchronized(_mutex) {
-			try {
-				// Do not get the current song too frequently.
-				if ((0 == _lastQueryTimestamp) || (501 < (System.currentTimeMillis() - _lastQueryTimestamp))) {
-				    getCurrentSong();
-				}
-				else {
-					sop(m,"Skipping repeated query.");
-				}
-				_lastQueryTimestamp = System.currentTimeMillis();
+		if (!_gate.tryBegin()) {
+			sop(m,"Skipping query. Another is in flight.");
+			return;
+		}
+		try {
+			// Do not get the current song too frequently.
+			if (_gate.isDue(Tuning.get().statusDebounceMillis)) {
+			    getCurrentSong();
 			}
-			catch(Exception e) {
-				sop(m,"Caught exception e=" + e.getMessage());
+			else {
+				sop(m,"Skipping repeated query.");
 			}
+			_gate.markQueried();
+		}
+		catch(Exception e) {
+			sop(m,"Caught exception e=" + e.getMessage());
+		}
+		finally {
+			_gate.end();
 		}
 		sop(m,"Exit.");
 	}
@@ -0,0 +1,72 @@
+/**
+ * Common interface of the ways to play the music stream.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+/**
+ * A player of the music stream, as PlayerService sees it.
+ * The life cycle follows MediaPlayer: prepareAsync, then start, pause and stop, then release.
+ * Errors and infos use the MediaPlayer 'what' and 'extra' codes, so that the events compare across engines.
+ * Call from the main thread.  Listener callbacks arrive on the main thread.
+ */
+public interface PlaybackEngine {
+
+	/**
+	 * Engine types.
+	 */
+	int TYPE_MEDIA_PLAYER = 1;
+	int TYPE_CODEC = 2;
+
+	/**
+	 * Receives engine events.
+	 */
+	interface Listener {
+		void onEnginePrepared(PlaybackEngine engine);
+		void onEngineError(PlaybackEngine engine, int what, int extra);
+		void onEngineInfo(PlaybackEngine engine, int what, int extra);
+		void onEngineBufferLevel(PlaybackEngine engine, int percent);
+	}
+
+	int getType();
+
+	void prepareAsync();
+
+	void start();
+
+	void pause();
+
+	void stop();
+
+	void release();
+
+	boolean isPlaying();
+
+	/**
+	 * Returns the play time of the audio buffered ahead of the output, in ms, or -1 if the engine cannot tell.
+	 */
+	long getBufferedMillis();
+
+	/**
+	 * Sets the output volume, from 0.0 to 1.0.  May be called from any thread.
+	 */
+	void setVolume(float volume);
+
+	/**
+	 * Returns a human-readable summary of the engine statistics.
+	 */
+	String getStatsString();
+}
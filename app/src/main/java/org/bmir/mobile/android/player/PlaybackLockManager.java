@@ -0,0 +1,199 @@
+/**
+ * Keeps the CPU and the Wi-Fi radio awake while music is playing.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import android.content.Context;
+import android.net.wifi.WifiManager;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+/**
+ * Holds a partial wake lock and a high-performance Wi-Fi lock only while the player is playing.
+ * While the playback buffer is comfortably full, the Wi-Fi lock is relaxed, and taken again
+ * when the buffer runs low or the player rebuffers.
+ * Hold times are reported next to the rebuffer count.  Use from the main thread only.
+ */
+public class PlaybackLockManager {
+
+	/**
+	 * Logs messages to the console.
+     * Enable/disable logging here when publishing to Android Market.
+	 */
+	private static final String _logTag = PlaybackLockManager.class.getName().toString();
+	private static void sop(String method, String message) {
+		//Log.d(_logTag, method + ": " + message);
+	}
+
+	/**
+	 * Buffer levels, in percent, for relaxing and restoring the Wi-Fi lock.
+	 */
+	private static final int BUFFER_COMFORTABLE_PERCENT = 90;
+	private static final int BUFFER_LOW_PERCENT = 50;
+
+	private PowerManager.WakeLock _wakeLock = null;
+	private WifiManager.WifiLock _wifiLock = null;
+
+	/**
+	 * True between acquire() and release().
+	 */
+	private boolean _active = false;
+
+	/**
+	 * True while the buffer is comfortably full.
+	 */
+	private boolean _relaxed = false;
+
+	/**
+	 * Statistics.  Acquire times are zero while the lock is not held.
+	 */
+	private long _wakeAcquiredMillis = 0;
+	private long _wifiAcquiredMillis = 0;
+	private long _wakeHeldMillis = 0;
+	private long _wifiHeldMillis = 0;
+	private int _rebufferCount = 0;
+
+	/**
+	 * Constructor
+	 */
+	public PlaybackLockManager(Context context) {
+		Context applicationContext = context.getApplicationContext();
+		PowerManager powerManager = (PowerManager) applicationContext.getSystemService(Context.POWER_SERVICE);
+		_wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, Constants.APP_NAME_LOWER + ":playback");
+		_wakeLock.setReferenceCounted(false);
+		WifiManager wifiManager = (WifiManager) applicationContext.getSystemService(Context.WIFI_SERVICE);
+		if (null != wifiManager) {
+			_wifiLock = wifiManager.createWifiLock(WifiManager.WIFI_MODE_FULL_HIGH_PERF, Constants.APP_NAME_LOWER + ":playback");
+			_wifiLock.setReferenceCounted(false);
+		}
+	}
+
+	/**
+	 * Takes the locks.  Call when the player starts playing.
+	 */
+	public void acquire() {
+		String m = "acquire";
+		_active = true;
+		_relaxed = false;
+		acquireWakeLock();
+		acquireWifiLock();
+		sop(m,getStatsString());
+	}
+
+	/**
+	 * Releases the locks.  Call when the player pauses or stops.
+	 */
+	public void release() {
+		String m = "release";
+		_active = false;
+		_relaxed = false;
+		releaseWifiLock();
+		releaseWakeLock();
+		sop(m,getStatsString());
+	}
+
+	/**
+	 * Reports the playback buffer level in percent.  Relaxes or restores the Wi-Fi lock.
+	 */
+	public void onBufferLevel(int percent) {
+		String m = "onBufferLevel";
+		if (!_active) {
+			return;
+		}
+		if (!_relaxed && BUFFER_COMFORTABLE_PERCENT <= percent) {
+			sop(m,"Buffer is comfortable. Relaxing Wi-Fi lock. percent=" + percent);
+			_relaxed = true;
+			releaseWifiLock();
+		}
+		else if (_relaxed && BUFFER_LOW_PERCENT > percent) {
+			sop(m,"Buffer is low. Restoring Wi-Fi lock. percent=" + percent);
+			_relaxed = false;
+			acquireWifiLock();
+		}
+	}
+
+	/**
+	 * Reports that the player ran out of data and is rebuffering.
+	 */
+	public void onRebuffer() {
+		_rebufferCount++;
+		if (_active && _relaxed) {
+			_relaxed = false;
+			acquireWifiLock();
+		}
+	}
+
+	private void acquireWakeLock() {
+		if (0 == _wakeAcquiredMillis) {
+			_wakeLock.acquire();
+			_wakeAcquiredMillis = SystemClock.elapsedRealtime();
+		}
+	}
+
+	private void releaseWakeLock() {
+		if (0 != _wakeAcquiredMillis) {
+			_wakeLock.release();
+			_wakeHeldMillis += SystemClock.elapsedRealtime() - _wakeAcquiredMillis;
+			_wakeAcquiredMillis = 0;
+		}
+	}
+
+	private void acquireWifiLock() {
+		if (null != _wifiLock && 0 == _wifiAcquiredMillis) {
+			_wifiLock.acquire();
+			_wifiAcquiredMillis = SystemClock.elapsedRealtime();
+		}
+	}
+
+	private void releaseWifiLock() {
+		if (null != _wifiLock && 0 != _wifiAcquiredMillis) {
+			_wifiLock.release();
+			_wifiHeldMillis += SystemClock.elapsedRealtime() - _wifiAcquiredMillis;
+			_wifiAcquiredMillis = 0;
+		}
+	}
+
+	/**
+	 * Returns the total wake lock hold time, including the current hold.
+	 */
+	public long getWakeHeldMillis() {
+		long now = SystemClock.elapsedRealtime();
+		return _wakeHeldMillis + ((0 == _wakeAcquiredMillis) ? 0 : (now - _wakeAcquiredMillis));
+	}
+
+	/**
+	 * Returns the total Wi-Fi lock hold time, including the current hold.
+	 */
+	public long getWifiHeldMillis() {
+		long now = SystemClock.elapsedRealtime();
+		return _wifiHeldMillis + ((0 == _wifiAcquiredMillis) ? 0 : (now - _wifiAcquiredMillis));
+	}
+
+	public int getRebufferCount() {
+		return _rebufferCount;
+	}
+
+	/**
+	 * Returns a human-readable summary of the lock statistics.
+	 */
+	public String getStatsString() {
+		return "wakeHeldMs=" + getWakeHeldMillis()
+				+ " wifiHeldMs=" + getWifiHeldMillis()
+				+ " rebuffers=" + _rebufferCount
+				+ " relaxed=" + _relaxed;
+	}
+}
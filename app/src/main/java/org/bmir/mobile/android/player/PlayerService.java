@@ -18,28 +18,31 @@
 package org.bmir.mobile.android.player;
 
 import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.Intent;
-import android.media.AudioAttributes;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationManagerCompat;
 import android.util.Log;
 import android.widget.Toast;
 
 public class PlayerService extends Service implements
-MediaPlayer.OnPreparedListener, 
-MediaPlayer.OnErrorListener, 
-MediaPlayer.OnInfoListener, 
-MediaPlayer.OnBufferingUpdateListener,
+NetworkMonitor.Listener,
+PlaybackEngine.Listener,
 AudioManager.OnAudioFocusChangeListener {
 
  	/**
@@ -48,9 +51,9 @@ AudioManager.OnAudioFocusChangeListener {
 	private static final String appname = Constants.APP_NAME_MIXED;
 
 	/**
-	 * Reference to the Android media player.
+	 * Reference to the playback engine.
 	 */
-	private MediaPlayer _mediaPlayer = null;
+	private PlaybackEngine _player = null;
 
 	/**
 	 * Reference to this Android application context.
@@ -96,6 +99,7 @@ AudioManager.OnAudioFocusChangeListener {
 	 */
 	public static final String ACTION_BUTTON = Constants.PACKAGE_NAME + ".playerservice.action.BUTTON";
 	public static final String ACTION_STATUS = Constants.PACKAGE_NAME + ".playerservice.action.STATUS";
+	public static final String ACTION_RELEASE = Constants.PACKAGE_NAME + ".playerservice.action.RELEASE";
 
 	/**
 	 * Used to notify the user.
@@ -109,14 +113,167 @@ AudioManager.OnAudioFocusChangeListener {
 	/**
 	 * Count of play/stop button clicks while the player is starting.
 	 * Implements a mechanism to allow the player to recover from failed connection attempts.
+     * If the user clicks the tuned count of times, 3 by default, while the 'dots' image is visible, the player will be reset.
 	 */
 	private int _clicksWhilePreparing = 0;
-	
+
+	/**
+	 * Requests audio focus, ramps the volume, and keeps a paused player warm after a focus loss.
+	 */
+	private AudioFocusController _focus = null;
+
+	/**
+	 * Stops the player paused by a permanent focus loss, if focus has not come back in time.
+	 */
+	private final Runnable _focusGraceExpired = new Runnable() {
+		public void run() {
+			synchronized (PlayerService.this) {
+				String m = "focusGraceExpired";
+				if (State.Paused != _state) {
+					return;
+				}
+				sop(m,"Audio focus did not return. Stopping.");
+				stopMusic(false);
+				String message = getResources().getString(R.string.STR_AUDIO_FOCUS_DECLINED);
+				notifyUser(Title.Error, message);
+				postToast(message);
+			}
+		}
+	};
+
+	/**
+	 * Keeps the CPU and Wi-Fi awake while playing.
+	 */
+	private PlaybackLockManager _locks = null;
+
+	/**
+	 * Watches for a switch of the default network while playing.
+	 */
+	private NetworkMonitor _networkMonitor = null;
+
+	/**
+	 * Player being prepared on the new default network after a network switch.
+	 * Replaces _player once it is prepared.  Until then, _player keeps playing if it can.
+	 */
+	private PlaybackEngine _handoverPlayer = null;
+	private long _handoverStartMillis = 0;
+	private boolean _handoverOldPlayerFailed = false;
+
 	/**
-	 * The max count of play/stop button clicks while the player is starting before restarting.
-     * If the user clicks 3 times while the 'dots' image is visible, the player will be reset.
+	 * When the user clicked play.  Used to measure the time until the music starts.
 	 */
-	private static final int MAX_CLICKS_WHILE_PREPARING = 3;
+	private long _prepareStartMillis = 0;
+
+	/**
+	 * Decides how much audio to buffer before the music starts.
+	 * Once the engine is prepared, the start waits until the target is buffered, or for at most the tuned preroll wait.
+	 */
+	private PrerollPolicy _preroll = null;
+	private long _prerollWaitStartMillis = 0;
+
+	/**
+	 * Now playing.  While playing, the server is asked for the current song every tuned poll interval,
+	 * so that the title reaches the notification with the screen off.
+	 * A new title rebuilds the notification at most once per tuned interval.  _titleNotify applies one held back.
+	 * _notifiedTitleSequence is the NowPlaying snapshot last shown.  _softly holds the title back while ducked.
+	 */
+	private NowPlayingThread _nowPlayingThread = null;
+	private int _notifiedTitleSequence = 0;
+	private long _titleNotifyMillis = 0;
+	private boolean _softly = false;
+
+	private final Runnable _nowPlayingPoll = new Runnable() {
+		public void run() {
+			long wakeup = WakeupLedger.begin();
+			synchronized (PlayerService.this) {
+				if (State.Playing == _state) {
+					_nowPlayingThread.go();
+					_handler.postDelayed(this, Tuning.get().nowPlayingPollMillis);
+				}
+			}
+			WakeupLedger.end(WakeupLedger.POLL_TIMER, wakeup);
+		}
+	};
+
+	private final Runnable _titleNotify = new Runnable() {
+		public void run() {
+			long wakeup = WakeupLedger.begin();
+			synchronized (PlayerService.this) {
+				notifyTitle();
+			}
+			WakeupLedger.end(WakeupLedger.TITLE_TIMER, wakeup);
+		}
+	};
+
+	/**
+	 * When the music started, for the session time.  Zero while not started.
+	 * The WakeupLedger is reset then too, so that its rates are those of steady-state playback.
+	 */
+	private long _playStartMillis = 0;
+
+	/**
+	 * Restore after the process died.  _createMillis is when this service was created.
+	 * _restoreSnapshotAgeMillis is the age of the snapshot restored from, or -1 while not restoring.
+	 * _lastGoodMediaURLString is the last stream URL which played, saved in the snapshot.
+	 */
+	private long _createMillis = 0;
+	private long _restoreSnapshotAgeMillis = -1;
+	private String _lastGoodMediaURLString = getMediaURLString();
+
+	/**
+	 * LAN relay.  While relay mode is on (tuning relay.enabled), _relay serves the stream to nearby devices during playback,
+	 * and our own player plays from it, so the stream is fetched once.
+	 * While relay discovery is on (tuning relay.discovery), and only while preparing or playing, _relayDiscovery finds the relays
+	 * of other devices, which a new player prefers over the upstream.
+	 * _playerURLString is the stream URL of the player created last, to pass over a relay which failed.
+	 */
+	private StreamRelay _relay = null;
+	private RelayDiscovery _relayDiscovery = null;
+	private String _playerURLString = null;
+
+	/**
+	 * Checks the buffered audio again while waiting for the preroll.
+	 */
+	private final Runnable _prerollCheck = new Runnable() {
+		public void run() {
+			long wakeup = WakeupLedger.begin();
+			synchronized (PlayerService.this) {
+				if (State.Preparing == _state && null != _player) {
+					startWhenPrerolled();
+				}
+			}
+			WakeupLedger.end(WakeupLedger.PREROLL_TIMER, wakeup);
+		}
+	};
+
+	/**
+	 * Speculative 'prewarm' of the media player while the MainActivity is visible.
+	 * The prewarmed player is held in _player while the state is still Stopped,
+	 * prepared but parked, so that a click on play only has to start the output.
+	 * _prewarming is true while such a parked player exists; _prewarmed once it is prepared.
+	 * A parked player holds its connection for at most the tuned prewarm timeout.
+	 */
+	private boolean _prewarming = false;
+	private boolean _prewarmed = false;
+
+	/**
+	 * Posts delayed work, such as the prewarm timeout, to the main thread.
+	 */
+	private Handler _handler = null;
+
+	/**
+	 * Releases the prewarmed player if the user has not clicked play in time.
+	 */
+	private final Runnable _prewarmTimeout = new Runnable() {
+		public void run() {
+			long wakeup = WakeupLedger.begin();
+			synchronized (PlayerService.this) {
+				sop("prewarmTimeout","Prewarm timed out.");
+				releasePrewarm();
+			}
+			WakeupLedger.end(WakeupLedger.PREWARM_TIMER, wakeup);
+		}
+	};
 
 	/**
 	 * Logs messages to the console.
@@ -142,9 +299,39 @@ AudioManager.OnAudioFocusChangeListener {
 	public synchronized void onCreate() {
 		String m = "onCreate";
 		sop(m,"Entry.");
+		StartupTrace.begin("PlayerService.onCreate");
 
+		_createMillis = SystemClock.elapsedRealtime();
+		// Wakeup rates per minute of the session, on the clock of the session time.
+		WakeupLedger.setClock(new WakeupLedger.Clock() {
+			public long elapsedMillis() {
+				return SystemClock.elapsedRealtime();
+			}
+		});
 		_applicationContext = getApplicationContext();
+		_handler = new Handler();
+		_focus = new AudioFocusController(this, this);
+		_locks = new PlaybackLockManager(this);
+		_preroll = new PrerollPolicy(PrerollPolicy.INITIAL_TARGET_MS);
+		_networkMonitor = new NetworkMonitor(this, this);
+		EventRecorder.get().start(getFilesDir());
+		TuningWatcher.start(this);
+		startMemoryGovernor();
+		_nowPlayingThread = new NowPlayingThread(this, new Runnable() {
+			public void run() {
+				synchronized (PlayerService.this) {
+					onNowPlayingChanged();
+				}
+			}
+		});
+
+		// Network service discovery needs Android API 16 (Android 4.1 Jelly Bean) or newer.
+		// It runs only while preparing or playing.
+		if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.JELLY_BEAN) {
+			_relayDiscovery = new RelayDiscovery(this);
+		}
 		
+		StartupTrace.end("PlayerService.onCreate");
 		sop(m,"Exit.");
 	}
 	
@@ -158,16 +345,23 @@ AudioManager.OnAudioFocusChangeListener {
 		
 		// 2011-1213 Tolerate null intent.  NPE reported at Android Market dashboard.
 		if (null == intent) {
-			sop(m,"Early exit. intent is unexpectedly null. Nothing to do.");
+			sop(m,"Early exit. intent is null. Android restarted this service.");
+			EventRecorder.get().record(EventRecorder.EVT_START_COMMAND, 0);
+			restoreFromSnapshot();
 			return START_STICKY;
 		}
 		
 		String action = intent.getAction();
 		if (ACTION_BUTTON.equals(action)) {
+			EventRecorder.get().record(EventRecorder.EVT_START_COMMAND, 1);
 			
 	        if (State.Preparing == _state) {
 	        	impatientClicks();
 	        }
+	        else if (State.Paused == _state && _focus.cancelGrace()) {
+	        	// Paused by a permanent focus loss, with the player still warm.
+	        	resumeAfterFocusLoss();
+	        }
 	        else if (State.Playing == _state || State.Paused == _state) {
 	        	stopMusic(true);
 	        }
@@ -179,7 +373,18 @@ AudioManager.OnAudioFocusChangeListener {
 	        }
 		}
 		else if (ACTION_STATUS.equals(action)) {
+			EventRecorder.get().record(EventRecorder.EVT_START_COMMAND, 2);
+			StartupTrace.mark("PlayerService.ACTION_STATUS");
 			broadcastState();
+			// The activity is visible, so the user may click play soon.
+			if (State.Stopped == _state) {
+				prewarmMusic();
+			}
+		}
+		else if (ACTION_RELEASE.equals(action)) {
+			EventRecorder.get().record(EventRecorder.EVT_START_COMMAND, 3);
+			// The activity is no longer visible.
+			releasePrewarm();
 		}
 		else {
 			throw new RuntimeException(appname + " Error: Received unrecognized intent action. action=" + action);
@@ -196,12 +401,13 @@ AudioManager.OnAudioFocusChangeListener {
 		String m = "impatientClicks";
 
 		_clicksWhilePreparing++;
-		if (MAX_CLICKS_WHILE_PREPARING <= _clicksWhilePreparing) {
+		int maxClicks = Tuning.get().maxClicksWhilePreparing;
+		if (maxClicks <= _clicksWhilePreparing) {
 			sop(m,"User clicked too many times while preparing. Must be dead. Stopping.");
 			stopMusic(true);
 		}
 		else {
-			sop(m,"Ignoring click while preparing. clicks=" + _clicksWhilePreparing + " max=" + MAX_CLICKS_WHILE_PREPARING);
+			sop(m,"Ignoring click while preparing. clicks=" + _clicksWhilePreparing + " max=" + maxClicks);
 		}
 	}
 	
@@ -213,9 +419,37 @@ AudioManager.OnAudioFocusChangeListener {
 		String m = "prepareMusic";
 		sop(m,"Entry.");
 		
+		_prepareStartMillis = SystemClock.elapsedRealtime();
+
+		// A prewarmed player reads the upstream, which the relay would then fetch a second time.
+		if (_prewarming && Tuning.get().relayEnabled) {
+			sop(m,"Releasing prewarmed player for the relay.");
+			releasePrewarm();
+		}
+
+		// Use the prewarmed player if one is parked.
+		EventRecorder.get().record(EventRecorder.EVT_PREPARE, _prewarming ? 1 : 0);
+		if (_prewarming) {
+			startRelayDiscovery();
+			sop(m,"Using prewarmed player. prewarmed=" + _prewarmed);
+			_prewarming = false;
+			_handler.removeCallbacks(_prewarmTimeout);
+			_state = State.Preparing;
+			_clicksWhilePreparing = 0;
+			notifyUser(Title.Playing, getResources().getString(R.string.STR_PREPARING));
+			broadcastState();
+			if (_prewarmed) {
+				_prewarmed = false;
+				startWhenPrerolled();
+			}
+			// Otherwise onPrepared() starts the music when the player is ready.
+			sop(m,"Exit.");
+			return;
+		}
+
 		// Check.
-		if (null != _mediaPlayer) {
-			throw new RuntimeException(appname + " Error: Code bug.  _mediaPlayer is not null.");
+		if (null != _player) {
+			throw new RuntimeException(appname + " Error: Code bug.  _player is not null.");
 		}
 
 		try {
@@ -234,43 +468,27 @@ AudioManager.OnAudioFocusChangeListener {
 				postToast(message);
 				return;
 			}
+
+			// The player plays from our relay while relaying.
+			startRelay();
+			startRelayDiscovery();
 			
 			// Set up the Android Media Player.			
-			_mediaPlayer = new MediaPlayer();
-			// For Android API 26 (Android 8 Oreo) and newer, specify AudioAttributes.
-			if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
-				sop(m,"Setting audio attributes for Android API 26 and later.");
-				AudioAttributes.Builder builder = new AudioAttributes.Builder();
-				//builder.setLegacyStreamType(AudioManager.STREAM_MUSIC);
-				builder.setUsage(AudioAttributes.USAGE_MEDIA);
-				builder.setContentType(AudioAttributes.CONTENT_TYPE_MUSIC);
-				AudioAttributes attributes = builder.build();
-				_mediaPlayer.setAudioAttributes(attributes);
-				sop(m,"Set audio attributes.");
-			}
-			else {
-				sop(m,"Setting audio stream type for older Android APIs before 26.");
-				_mediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-				sop(m,"Set audio stream type.");
-			}
-
-			_mediaPlayer.setDataSource(Constants.MEDIA_URL_STRING);
-			_mediaPlayer.setOnPreparedListener(this);
-			_mediaPlayer.setOnErrorListener(this);
-			_mediaPlayer.setOnInfoListener(this);
-			_mediaPlayer.setOnBufferingUpdateListener(this);
+			_player = createPlayer();
 
 			// Ask Android to prepare the player asynchronously because this normally takes a few seconds.
 			// When ready, Android calls onPrepared().
-			sop(m,"Calling mediaPlayer.prepareAsync.");
-			_mediaPlayer.prepareAsync();
+			sop(m,"Calling player.prepareAsync.");
+			_player.prepareAsync();
 		} 
 		catch (IOException e) {
 			sop(m,"Error. Could not prepare media player. " + e.getMessage());
 
 			// Free media player resources.
-			_mediaPlayer.release();
-			_mediaPlayer = null;
+			if (null != _player) {
+				_player.release();
+				_player = null;
+			}
 
 			// Indicate that the player has stopped.
 			_state = State.Stopped;
@@ -284,22 +502,341 @@ AudioManager.OnAudioFocusChangeListener {
 	}
 
 	/**
-	 * Callback to start playing the music when the Media Player has been prepared.
+	 * Creates a playback engine of the tuned type for the music stream.
+	 * The caller is responsible for preparing and releasing it.
+	 */
+	private PlaybackEngine createPlayer() throws IOException {
+		String m = "createPlayer";
+		String url = getPlayerURLString();
+		_playerURLString = url;
+		// The codec engine needs Android API 21 (Android 5 Lollipop) or newer.
+		if (PlaybackEngine.TYPE_CODEC == Tuning.get().playbackEngine && android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
+			sop(m,"Creating codec engine. url=" + url);
+			return new CodecEngine(url, this);
+		}
+		sop(m,"Creating media player engine. url=" + url);
+		return new MediaPlayerEngine(url, this);
+	}
+
+	/**
+	 * Returns the stream URL for a new player: our own relay while relaying, else a relay nearby, else the upstream.
+	 */
+	private String getPlayerURLString() {
+		if (null != _relay) {
+			return _relay.getLocalURLString();
+		}
+		String relayURLString = (null == _relayDiscovery || !Tuning.get().relayDiscovery) ? null : _relayDiscovery.getRelayURLString();
+		if (null != relayURLString) {
+			EventRecorder.get().record(EventRecorder.EVT_RELAY, 3);
+			return relayURLString;
+		}
+		return getMediaURLString();
+	}
+
+	/**
+	 * Starts shedding memory under pressure, with the caches which live as long as the process.
+	 * The spare segments of the stream buffers go first, keeping a few while the system is only getting low.
+	 * Segments in use by the playing stream are never pooled, so playback keeps its buffer.
+	 */
+	private void startMemoryGovernor() {
+		MemoryGovernor.start(this);
+		MemoryGovernor.register(MemoryGovernor.COMPONENT_SEGMENT_POOL, MemoryGovernor.PRIORITY_SPARE, new Trimmable() {
+			public long getBytesHeld() {
+				return SegmentedStreamBuffer.getPooledBytes();
+			}
+			public void trim(int level) {
+				SegmentedStreamBuffer.trimPool((ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW > level) ? 4 : 0);
+			}
+		});
+		MemoryGovernor.register(MemoryGovernor.COMPONENT_TITLE_CACHE, MemoryGovernor.PRIORITY_CACHE, NowPlayingParser.getTitleCache());
+		MemoryGovernor.register(MemoryGovernor.COMPONENT_HISTORY, MemoryGovernor.PRIORITY_INDEX, NowPlayingHistory.get(getFilesDir()));
+	}
+
+	/**
+	 * Starts serving the stream to nearby devices, if relay mode is on.
+	 */
+	private void startRelay() {
+		String m = "startRelay";
+		if (!Tuning.get().relayEnabled || null != _relay) {
+			return;
+		}
+		StreamRelay relay = new StreamRelay(getMediaURLString(), 0, StreamRelay.MAX_LISTENERS);
+		try {
+			relay.start();
+		}
+		catch (IOException e) {
+			sop(m,"Could not start the relay. " + e.getMessage());
+			return;
+		}
+		_relay = relay;
+		MemoryGovernor.register(MemoryGovernor.COMPONENT_RELAY, MemoryGovernor.PRIORITY_PLAYBACK, relay);
+		if (null != _relayDiscovery) {
+			_relayDiscovery.advertise(relay.getPort());
+		}
+		EventRecorder.get().record(EventRecorder.EVT_RELAY, 1, relay.getPort());
+		sop(m,"Relaying on port=" + relay.getPort());
+	}
+
+	/**
+	 * Starts looking for relays nearby, if the user opted in to relay discovery.
 	 */
-	public synchronized void onPrepared(MediaPlayer mediaPlayer) {
-		String m = "onPrepared";
+	private void startRelayDiscovery() {
+		if (null != _relayDiscovery && Tuning.get().relayDiscovery) {
+			_relayDiscovery.startDiscovery();
+		}
+	}
+
+	/**
+	 * Stops looking for relays nearby, and forgets the one found.
+	 */
+	private void stopRelayDiscovery() {
+		if (null != _relayDiscovery) {
+			_relayDiscovery.stopDiscovery();
+		}
+	}
+
+	/**
+	 * Stops serving the stream to nearby devices.
+	 */
+	private void stopRelay() {
+		String m = "stopRelay";
+		if (null == _relay) {
+			return;
+		}
+		sop(m,"Relay stats: " + _relay.getStatsString());
+		EventRecorder.get().record(EventRecorder.EVT_RELAY, 2, _relay.getListenersServed());
+		if (null != _relayDiscovery) {
+			_relayDiscovery.unadvertise();
+		}
+		_relay.close();
+		MemoryGovernor.unregister(_relay);
+		_relay = null;
+	}
+
+	/**
+	 * Speculatively prepares a parked media player while the MainActivity is visible.
+	 * Resolves the stream hostname and opens the stream connection ahead of the click on play.
+	 * The parked player is released on timeout, or when the activity is no longer visible.
+	 */
+	private void prewarmMusic() {
+		String m = "prewarmMusic";
+		sop(m,"Entry.");
+
+		if (State.Stopped != _state || null != _player) {
+			sop(m,"Early exit. Player already exists. state=" + getStateString());
+			return;
+		}
+		if (!Utilities.networkAvailable(this)) {
+			sop(m,"Early exit. Network is not connected.");
+			return;
+		}
+		if (Tuning.get().relayEnabled) {
+			sop(m,"Early exit. The player will play from the relay.");
+			return;
+		}
+
+		// Warm the DNS cache in parallel with the player setup.
+		Utilities.prefetchHostAddress(getMediaHostname());
+
+		try {
+			_player = createPlayer();
+			_prewarming = true;
+			_prewarmed = false;
+			EventRecorder.get().record(EventRecorder.EVT_PREWARM, 0);
+			sop(m,"Calling player.prepareAsync.");
+			_player.prepareAsync();
+			_handler.postDelayed(_prewarmTimeout, Tuning.get().prewarmTimeoutMillis);
+		}
+		catch (IOException e) {
+			sop(m,"Could not prewarm media player. " + e.getMessage());
+			releasePrewarm();
+		}
+
+		sop(m,"Exit.");
+	}
+
+	/**
+	 * Releases the prewarmed player, if any.  Has no effect once the user has clicked play.
+	 */
+	private void releasePrewarm() {
+		String m = "releasePrewarm";
+		_handler.removeCallbacks(_prewarmTimeout);
+		if (State.Stopped == _state && null != _player) {
+			sop(m,"Releasing prewarmed player. prewarmed=" + _prewarmed);
+			EventRecorder.get().record(EventRecorder.EVT_PREWARM, 2);
+			_player.release();
+			_player = null;
+		}
+		_prewarming = false;
+		_prewarmed = false;
+	}
+
+	/**
+	 * Callback from the NetworkMonitor.  Opens the stream on the new default network
+	 * while the old player keeps playing, so the gap is only the switch between players.
+	 */
+	@Override
+	public synchronized void onDefaultNetworkChanged() {
+		String m = "onDefaultNetworkChanged";
+		sop(m,"Entry. state=" + getStateString());
+
+		if (State.Playing != _state || null != _handoverPlayer) {
+			sop(m,"Early exit. Not playing, or a handover is already underway.");
+			return;
+		}
+
+		try {
+			_handoverStartMillis = SystemClock.elapsedRealtime();
+			_handoverOldPlayerFailed = false;
+			_handoverPlayer = createPlayer();
+			sop(m,"Calling handoverPlayer.prepareAsync.");
+			_handoverPlayer.prepareAsync();
+		}
+		catch (IOException e) {
+			sop(m,"Could not prepare handover player. " + e.getMessage());
+			releaseHandover();
+		}
+		sop(m,"Exit.");
+	}
+
+	/**
+	 * Starts the prepared player on the new network, then drops the old one.
+	 */
+	private void completeHandover() {
+		String m = "completeHandover";
+		PlaybackEngine oldPlayer = _player;
+		_player = _handoverPlayer;
+		_handoverPlayer = null;
+
+		_focus.handOverTo(_player);
+		_player.start();
+		if (null != oldPlayer) {
+			oldPlayer.release();
+		}
+
+		long latency = SystemClock.elapsedRealtime() - _handoverStartMillis;
+		sop(m,"Handed over to the new network. latencyMs=" + latency + " oldPlayerFailed=" + _handoverOldPlayerFailed);
+		EventRecorder.get().record(EventRecorder.EVT_HANDOVER, latency, _handoverOldPlayerFailed ? 1 : 0);
+		_handoverOldPlayerFailed = false;
+	}
+
+	/**
+	 * Abandons a handover in progress, if any.
+	 */
+	private void releaseHandover() {
+		if (null != _handoverPlayer) {
+			_handoverPlayer.release();
+			_handoverPlayer = null;
+		}
+		_handoverOldPlayerFailed = false;
+	}
+
+	/**
+	 * Callback to start playing the music when the playback engine has been prepared.
+	 */
+	@Override
+	public synchronized void onEnginePrepared(PlaybackEngine player) {
+		String m = "onEnginePrepared";
 		sop(m,"Entry.");
     	
+		// Switch to the player on the new network.
+		if (null != _handoverPlayer && _handoverPlayer == player) {
+			completeHandover();
+			sop(m,"Exit. Completed network handover.");
+			return;
+		}
+
 		// Checks.
-		if (_mediaPlayer != mediaPlayer) {
+		if (_player != player) {
 			throw new RuntimeException(appname + " Error: Received different media player.");
 		}
+
+		// Park a prewarmed player until the user clicks play.
+		if (_prewarming && State.Stopped == _state) {
+			sop(m,"Exit. Prewarmed player is prepared and parked.");
+			EventRecorder.get().record(EventRecorder.EVT_PREWARM, 1);
+			_prewarmed = true;
+			return;
+		}
+
 		if (_state != State.Preparing) {
 			throw new RuntimeException(appname + " Error: Code bug.  Received unexpected callback.");
 		}
 
+		startWhenPrerolled();
+		sop(m,"Exit.");
+	}
+
+	/**
+	 * Starts the music on the prepared player once the preroll target is buffered.
+	 * Starts at once if the engine cannot tell how much is buffered.
+	 */
+	private void startWhenPrerolled() {
+		String m = "startWhenPrerolled";
+		long now = SystemClock.elapsedRealtime();
+		if (0 == _prerollWaitStartMillis) {
+			_prerollWaitStartMillis = now;
+		}
+		long bufferedMillis = _player.getBufferedMillis();
+		long targetMillis = _preroll.getTargetMillis();
+		Tuning.Values tuning = Tuning.get();
+		if (-1 != bufferedMillis && bufferedMillis < targetMillis && tuning.prerollMaxWaitMillis > now - _prerollWaitStartMillis) {
+			_handler.postDelayed(_prerollCheck, tuning.prerollCheckMillis);
+			return;
+		}
+		sop(m,"Starting. bufferedMs=" + bufferedMillis + " targetMs=" + targetMillis
+				+ " waitedMs=" + (now - _prerollWaitStartMillis));
+		_prerollWaitStartMillis = 0;
+		startPreparedMusic();
+	}
+
+	/**
+	 * Saves the state, stream and last good stream URL, for a restore after the process dies.
+	 * Returns at once.  The file is written in the background.
+	 */
+	private void saveSnapshot() {
+		PlayerSnapshot.save(getFilesDir(), getStateString(), Constants.STREAM_ID, _lastGoodMediaURLString);
+	}
+
+	/**
+	 * Called when Android restarts this sticky service after the process died.
+	 * If the music was playing or preparing then, goes straight to preparing on the stream URL which last played.
+	 * The snapshot age is not a limit: it is the time since the last transition, not since the process died.
+	 */
+	private void restoreFromSnapshot() {
+		String m = "restoreFromSnapshot";
+		if (State.Stopped != _state) {
+			sop(m,"Early exit. Already active. state=" + getStateString());
+			return;
+		}
+		PlayerSnapshot snapshot = PlayerSnapshot.load(getFilesDir());
+		sop(m,"snapshot=" + snapshot);
+		if (null == snapshot || !(STATE_PLAYING.equals(snapshot.state) || STATE_PREPARING.equals(snapshot.state))) {
+			sop(m,"Early exit. Nothing to restore.");
+			return;
+		}
+		if (!snapshot.mediaURLString.equals(getMediaURLString())) {
+			try {
+				setEndpoints(new URL(snapshot.mediaURLString).getHost(), snapshot.mediaURLString, getStatusURLString());
+			}
+			catch (MalformedURLException e) {
+				sop(m,"Ignoring bad snapshot URL. " + e.getMessage());
+			}
+		}
+		_lastGoodMediaURLString = getMediaURLString();
+		_restoreSnapshotAgeMillis = Math.max(0, snapshot.getAgeMillis());
+		prepareMusic();
+	}
+
+	/**
+	 * Starts the music on the prepared media player.
+	 */
+	private void startPreparedMusic() {
+		String m = "startPreparedMusic";
+		sop(m,"Entry.");
+
 		// Request audio focus from Android.
-		boolean granted = getAudioFocus();
+		boolean granted = _focus.requestFocus();
 		if (!granted) {
 			sop(m,"Andriod declined audio focus. Stopping.");
 			stopMusic(false);
@@ -311,14 +848,28 @@ AudioManager.OnAudioFocusChangeListener {
 		}
     	
 		// Start the music.
-		sop(m,"Calling mediaPlayer.start().");
-		_mediaPlayer.start();
+		sop(m,"Calling player.start().");
+		_focus.setPlayer(_player);
+		_player.start();
+		_locks.acquire();
+		_networkMonitor.start();
+		long firstAudioMillis = SystemClock.elapsedRealtime() - _prepareStartMillis;
+		EventRecorder.get().record(EventRecorder.EVT_PREPARED, firstAudioMillis, _player.getType());
+		EventRecorder.get().record(EventRecorder.EVT_PREROLL, _preroll.startSession(firstAudioMillis), firstAudioMillis);
+		_playStartMillis = SystemClock.elapsedRealtime();
+		WakeupLedger.reset();
+		_lastGoodMediaURLString = getMediaURLString();
+		if (0 <= _restoreSnapshotAgeMillis) {
+			EventRecorder.get().record(EventRecorder.EVT_RESTORE, _playStartMillis - _createMillis, _restoreSnapshotAgeMillis);
+			_restoreSnapshotAgeMillis = -1;
+		}
 
 		// Indicate that the player has started.
 		_state = State.Playing;
 		_clicksWhilePreparing = 0;
 		broadcastState();
-		notifyUser(Title.Playing, getResources().getString(R.string.STR_SELECT_TO_RETURN));
+		notifyUser(Title.Playing, getPlayingText());
+		startNowPlaying();
     	
 		sop(m,"Exit.");
 	}
@@ -328,10 +879,15 @@ AudioManager.OnAudioFocusChangeListener {
 	 */
 	private void pauseMusic() {
 		String m = "pauseMusic";
-		if (State.Playing == _state & _mediaPlayer.isPlaying()) {
-			_mediaPlayer.pause();
+		if (State.Playing == _state & _player.isPlaying()) {
+			_player.pause();
+			releaseHandover();
+			stopRelayDiscovery();
+			_locks.release();
 			_state = State.Paused;
+			stopNowPlaying();
 			sop(m,"Paused music. state=" + getStateString());
+			saveSnapshot();
 			notifyUser(Title.Playing, getResources().getString(R.string.STR_PAUSED));
 		}
 		else {
@@ -345,10 +901,14 @@ AudioManager.OnAudioFocusChangeListener {
     private void resumeMusic() {
     	String m = "resumeMusic";
     	if (State.Paused == _state) {
-    		_mediaPlayer.start();
+    		_player.start();
+    		_locks.acquire();
     		_state = State.Playing;
+    		startRelayDiscovery();
     		sop(m,"Resumed playing music. state=" + getStateString());
-    		notifyUser(Title.Playing, getResources().getString(R.string.STR_SELECT_TO_RETURN));
+    		saveSnapshot();
+    		notifyUser(Title.Playing, getPlayingText());
+    		startNowPlaying();
     	}
     	else {
     		sop(m,"Warning: Can not resume playing music. state=" + getStateString());
@@ -356,19 +916,51 @@ AudioManager.OnAudioFocusChangeListener {
     }
     
     /**
-     * Error callback from the Media Player.
+     * Error callback from the playback engine.
      */
 	@Override
-	public synchronized boolean onError(MediaPlayer mediaPlayer, int what, int extra) {
-		String m = "onError";
+	public synchronized void onEngineError(PlaybackEngine player, int what, int extra) {
+		String m = "onEngineError";
 		sop(m,"Entry. what=" + Utilities.getMediaPlayerErrorString(what) + " extra=" + extra);
+		EventRecorder.get().record(EventRecorder.EVT_ERROR, what, extra);
 		//ring errorMessage = getResources().getString(R.string.STR_CONNECT_ERROR);
 		
+		// A failed handover leaves the old player in charge, if it still works.
+		if (null != _handoverPlayer && _handoverPlayer == player) {
+			sop(m,"Network handover failed. oldPlayerFailed=" + _handoverOldPlayerFailed);
+			boolean oldPlayerFailed = _handoverOldPlayerFailed;
+			releaseHandover();
+			if (!oldPlayerFailed) {
+				return;
+			}
+			player = _player;
+		}
+		// The old network may die before the player on the new network is ready.  Wait for it.
+		else if (null != _handoverPlayer && _player == player) {
+			sop(m,"Exit. Old player failed during network handover. Waiting for the new player.");
+			_handoverOldPlayerFailed = true;
+			return;
+		}
+
     	// Check.
-    	if (_mediaPlayer != mediaPlayer) {
+    	if (_player != player) {
     		throw new RuntimeException(appname + " Error: Received different media player.");
     	}
 
+		// Pass over a nearby relay which failed, so that the next try goes upstream.
+		if (null != _relayDiscovery && null != _playerURLString && _playerURLString.equals(_relayDiscovery.getRelayURLString())) {
+			sop(m,"Passing over the failed relay. url=" + _playerURLString);
+			EventRecorder.get().record(EventRecorder.EVT_RELAY, 4);
+			_relayDiscovery.onRelayFailed(_playerURLString);
+		}
+
+		// A failed prewarm is not the user's concern.  Just discard it.
+		if (_prewarming && State.Stopped == _state) {
+			sop(m,"Exit. Discarding failed prewarmed player.");
+			releasePrewarm();
+			return;
+		}
+
 		// Expand error.
 		if (MediaPlayer.MEDIA_ERROR_SERVER_DIED == what) {
 			sop(m,"ARRGH: Media server died. Cleaning up.");
@@ -383,26 +975,33 @@ AudioManager.OnAudioFocusChangeListener {
 		notifyUser(Title.Error, message);
 		postToast(message);
 		
-		// Indicate that we have handled the error.
-		sop(m,"Exit. Returning true.");
-		return true;
+		sop(m,"Exit.");
 	}
 	
     /**
-     * Receives warnings from the Media Player.
+     * Receives warnings from the playback engine.
      */
 	@Override
-	public synchronized boolean onInfo(MediaPlayer mediaPlayer, int what, int extra) {
-		String m = "onInfo";
+	public synchronized void onEngineInfo(PlaybackEngine player, int what, int extra) {
+		String m = "onEngineInfo";
 		sop(m,"Entry. what=" + Utilities.getMediaPlayerInfoString(what) + " extra=" + extra);
+		EventRecorder.get().record(EventRecorder.EVT_INFO, what, extra);
+
+		// Ignore the player on the new network until it takes over.
+		if (null != _handoverPlayer && _handoverPlayer == player) {
+			return;
+		}
 
 		// Confirm the media player matches.
-		if (!mediaPlayer.equals(_mediaPlayer)) {
+		if (_player != player) {
     		throw new RuntimeException(appname + " Error: Received different media player.");
 		}
-		
-		// Tell Android to discard the info.
-		return false;
+
+		// Keep the radio awake while the player is starved for data, and buffer more before the next start.
+		if (MediaPlayer.MEDIA_INFO_BUFFERING_START == what && State.Playing == _state) {
+			_locks.onRebuffer();
+			_preroll.onRebuffer();
+		}
 	}
 	
 	/**
@@ -413,18 +1012,50 @@ AudioManager.OnAudioFocusChangeListener {
 		sop(m,"Entry. sendNotification=" + sendNotification);
 		
 		// Stop the music.
-		if (null != _mediaPlayer) {
-			if (_mediaPlayer.isPlaying()) {
-				sop(m,"Stopping _mediaPlayer.");
-			    _mediaPlayer.stop();
+		_handler.removeCallbacks(_prewarmTimeout);
+		_handler.removeCallbacks(_prerollCheck);
+		_prerollWaitStartMillis = 0;
+		_restoreSnapshotAgeMillis = -1;
+		stopNowPlaying();
+		_softly = false;
+		_prewarming = false;
+		_prewarmed = false;
+		_networkMonitor.stop();
+		releaseHandover();
+		_focus.setPlayer(null);
+		if (null != _player) {
+			if (_player.isPlaying()) {
+				sop(m,"Stopping _player.");
+			    _player.stop();
 			}
-			_mediaPlayer.release();
-			_mediaPlayer = null;
+			sop(m,"Player stats: " + _player.getStatsString());
+			sop(m,"TLS stats: " + TlsSessionCache.getStatsString());
+			sop(m,"Memory: " + MemoryGovernor.getStatsString());
+			_player.release();
+			_player = null;
 		}
 
 		// Relinquish audio focus to another app.  Ignore return code.
-		AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
-		audioManager.abandonAudioFocus(this);
+		_focus.abandonFocus();
+		stopRelay();
+		stopRelayDiscovery();
+
+		// Count the session under its preroll target.
+		if (0 != _playStartMillis) {
+			long playMillis = SystemClock.elapsedRealtime() - _playStartMillis;
+			int rebuffers = _preroll.endSession(playMillis);
+			EventRecorder.get().record(EventRecorder.EVT_SESSION, playMillis, rebuffers);
+			EventRecorder.get().record(EventRecorder.EVT_WAKEUPS, (long) (WakeupLedger.getScheduledPerMinute() * 60), WakeupLedger.getBusyMillisPerHour());
+			TitleCache titleCache = NowPlayingParser.getTitleCache();
+			EventRecorder.get().record(EventRecorder.EVT_TITLE_CACHE, titleCache.getHits(), titleCache.getMisses());
+			EventRecorder.get().record(EventRecorder.EVT_TLS, TlsSessionCache.getFullHandshakes(), TlsSessionCache.getResumedHandshakes());
+			sop(m,"Wakeups: " + WakeupLedger.getStatsString());
+			_playStartMillis = 0;
+		}
+
+		// Let the device sleep.
+		_locks.release();
+		EventRecorder.get().record(EventRecorder.EVT_LOCKS, _locks.getWakeHeldMillis(), _locks.getRebufferCount());
 		
 		// Set state.
 		_state = State.Stopped;
@@ -442,9 +1073,10 @@ AudioManager.OnAudioFocusChangeListener {
 	 */
 	private void setVolumeSoft() {
 		String m = "setVolumeSoft";
-		if (State.Playing == _state && _mediaPlayer.isPlaying()) {
-			_mediaPlayer.setVolume(0.1f, 0.1f);
-			sop(m,"Set volume soft.");
+		if (State.Playing == _state && _player.isPlaying()) {
+			_focus.duck();
+			_softly = true;
+			sop(m,"Ramping volume soft.");
 			notifyUser(Title.Playing, getResources().getString(R.string.STR_PLAYING_SOFTLY));
 		}
 		else {
@@ -457,10 +1089,11 @@ AudioManager.OnAudioFocusChangeListener {
 	 */
 	private void setVolumeNormal() {
 	    String m = "setVolumeNormal";	
-		if (State.Playing == _state && _mediaPlayer.isPlaying()) {
-			_mediaPlayer.setVolume(1.0f, 1.0f);
-			sop(m,"Set volume normal.");
-			notifyUser(Title.Playing, getResources().getString(R.string.STR_SELECT_TO_RETURN));
+		if (State.Playing == _state && _player.isPlaying()) {
+			_focus.unduck();
+			_softly = false;
+			sop(m,"Ramping volume normal.");
+			notifyUser(Title.Playing, getPlayingText());
 		}
 		else {
 			sop(m,"Can't change volume. Not playing. state=" + getStateString());
@@ -472,8 +1105,18 @@ AudioManager.OnAudioFocusChangeListener {
 	 * Intended for the activity to update its button image.
 	 */
 	private void broadcastState() {
-		String m = "broadcastState";
+		EventRecorder.get().record(EventRecorder.EVT_STATE, _state.ordinal());
+		saveSnapshot();
+		sendStateBroadcast();
+	}
+
+	/**
+	 * Sends the state to the MainActivity, which also shows the now playing title from it.
+	 */
+	private void sendStateBroadcast() {
+		String m = "sendStateBroadcast";
 		sop(m,"Entry.");
+		long run = WakeupLedger.begin();
 
 		// Get the string for the current state.
 		String state = getStateString();
@@ -489,9 +1132,63 @@ AudioManager.OnAudioFocusChangeListener {
 		
 		sop(m,"Broadcasting state=" + getStateString());
 		sendBroadcast(intent);
+		WakeupLedger.endRun(WakeupLedger.BROADCAST, run);
 		sop(m,"Exit. Called sendBroadcast(intent).");
 	}
 
+	/**
+	 * Starts asking the server for the current song, at once and then periodically.
+	 */
+	private void startNowPlaying() {
+		_handler.removeCallbacks(_nowPlayingPoll);
+		_handler.post(_nowPlayingPoll);
+	}
+
+	private void stopNowPlaying() {
+		_handler.removeCallbacks(_nowPlayingPoll);
+		_handler.removeCallbacks(_titleNotify);
+	}
+
+	/**
+	 * Called on the main thread when NowPlayingThread publishes a new title.
+	 */
+	private void onNowPlayingChanged() {
+		String m = "onNowPlayingChanged";
+		sop(m,"title=" + NowPlaying.getTitle(Constants.STREAM_ID));
+		sendStateBroadcast();
+		notifyTitle();
+	}
+
+	/**
+	 * Puts a new title into the notification, or schedules it if the last rebuild was too recent.
+	 */
+	private void notifyTitle() {
+		_handler.removeCallbacks(_titleNotify);
+		NowPlaying.Snapshot snapshot = NowPlaying.get();
+		if (State.Playing != _state || _softly || null == snapshot || _notifiedTitleSequence == snapshot.sequence) {
+			return;
+		}
+		long wait = _titleNotifyMillis + Tuning.get().titleNotifyMinMillis - SystemClock.elapsedRealtime();
+		if (0 < wait) {
+			_handler.postDelayed(_titleNotify, wait);
+			return;
+		}
+		notifyUser(Title.Playing, getPlayingText());
+	}
+
+	/**
+	 * Returns the notification text while playing: the current song if known.  Notes the song as shown.
+	 */
+	private String getPlayingText() {
+		NowPlaying.Snapshot snapshot = NowPlaying.get();
+		if (null == snapshot || Constants.STREAM_ID != snapshot.streamId) {
+			return getResources().getString(R.string.STR_SELECT_TO_RETURN);
+		}
+		_notifiedTitleSequence = snapshot.sequence;
+		_titleNotifyMillis = SystemClock.elapsedRealtime();
+		return snapshot.title;
+	}
+
 	/**
 	 * Returns a string to be used as the Notification Context Title.
 	 */
@@ -518,6 +1215,7 @@ AudioManager.OnAudioFocusChangeListener {
 	private void notifyUser(Title title, String text) {
 		String m = "notifyUser";
 		sop(m,"===1840> Entry. title=" + title + " text=" + text);
+		long run = WakeupLedger.begin();
 
 		//-------------------------------
 		// Prepare the notification
@@ -568,6 +1266,7 @@ AudioManager.OnAudioFocusChangeListener {
 		_notificationBuilder.setContentText(contentText);
 		_notificationBuilder.setContentIntent(pendingIntent);
 		_notificationBuilder.setWhen(System.currentTimeMillis());
+		_notificationBuilder.setOnlyAlertOnce(true);
 
 		sop(m,"Building notification...");
 		_notification = _notificationBuilder.build();
@@ -615,6 +1314,7 @@ AudioManager.OnAudioFocusChangeListener {
 		else {
 			throw new RuntimeException(appname + " Code bug.  Add new 'title' value to this method.");
 		}
+		WakeupLedger.endRun(WakeupLedger.NOTIFICATION, run);
 		sop(m,"Exit");
 	}
 
@@ -646,33 +1346,59 @@ AudioManager.OnAudioFocusChangeListener {
 		
 		// Release media player resources.
 		stopMusic(false);
+		_focus.release();
+		if (null != _relayDiscovery) {
+			_relayDiscovery.stopDiscovery();
+		}
+		EventRecorder.get().flush();
 		
 		sop(m,"Exit.");
 	}
 
 	/**
-	 * Callback for the MediaPlayer.OnBufferingUpdateListener
+	 * Callback for buffer level changes of the playback engine.
 	 */
 	@Override
-	public synchronized void onBufferingUpdate(MediaPlayer mp, int percent) {
-		String m = "onBufferingUpdate";
+	public synchronized void onEngineBufferLevel(PlaybackEngine player, int percent) {
+		String m = "onEngineBufferLevel";
 		sop(m,"Buffer=" + percent + "%");
-		// TODO: Figure out if we can do anything meaningful with this information.
-		// This only seems to be called once, when the play button is pressed.
+		if (_player != player) {
+			return;
+		}
+		long wakeup = WakeupLedger.begin();
+		EventRecorder.get().record(EventRecorder.EVT_BUFFERING, percent);
+		if (State.Playing == _state) {
+			_locks.onBufferLevel(percent);
+		}
+		WakeupLedger.end(WakeupLedger.LEVEL_REPORT, wakeup);
 	}
 
 	/**
-	 * Returns true if Android grants permission to play music.
+	 * Asks for audio focus again after a permanent loss, and resumes the warm player if granted.
 	 */
-	private boolean getAudioFocus() {
-		String m = "getAudioFocus";
-		
-		AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
-		boolean granted = (AudioManager.AUDIOFOCUS_REQUEST_GRANTED == 
-		    audioManager.requestAudioFocus(this, AudioManager.STREAM_MUSIC, AudioManager.AUDIOFOCUS_GAIN));
-		
-		sop(m,"Requested audio focus from Android. Returning granted=" + granted);
-        return granted;
+	private void resumeAfterFocusLoss() {
+		String m = "resumeAfterFocusLoss";
+		if (!_focus.requestFocus()) {
+			sop(m,"Andriod declined audio focus. Stopping.");
+			stopMusic(false);
+			String message = getResources().getString(R.string.STR_AUDIO_FOCUS_DECLINED);
+			notifyUser(Title.Error, message);
+			postToast(message);
+			return;
+		}
+		resumeMusic();
+		recordFocusResumed();
+		setVolumeNormal();
+	}
+
+	/**
+	 * Records the time from focus loss to resumed playback.
+	 */
+	private void recordFocusResumed() {
+		long latency = _focus.markResumed();
+		if (-1 != latency) {
+			EventRecorder.get().record(EventRecorder.EVT_FOCUS_RESUMED, latency);
+		}
 	}
 	
 	/**
@@ -681,26 +1407,39 @@ AudioManager.OnAudioFocusChangeListener {
 	@Override
 	public synchronized void onAudioFocusChange(int focusChange) {
 		String m = "onAudioFocusChange";
+		EventRecorder.get().record(EventRecorder.EVT_FOCUS, focusChange);
 		
 	    switch (focusChange) {
         case AudioManager.AUDIOFOCUS_GAIN:
         	sop(m,"Entry. AUDIOFOCUS_GAIN. Resuming music play.");
+        	_focus.cancelGrace();
             resumeMusic();
+            recordFocusResumed();
         	setVolumeNormal();
             break;
 
         case AudioManager.AUDIOFOCUS_LOSS:
-        	sop(m,"Entry. AUDIOFOCUS_LOSS. Andriod blocked focus. Stopping.");
-			stopMusic(false);
-			String message = getResources().getString(R.string.STR_AUDIO_FOCUS_DECLINED);
-			notifyUser(Title.Error, message);
-            postToast(message);
-			sop(m,"Exit after blocked audio focus.");
+        	// Keep the paused player connected for a while, in case the user wants the music back.
+        	sop(m,"Entry. AUDIOFOCUS_LOSS. Andriod blocked focus. Pausing for the grace period.");
+        	pauseMusic();
+        	if (State.Paused == _state) {
+        		_focus.markLoss();
+        		_focus.startGrace(_focusGraceExpired);
+        	}
+        	else {
+        		stopMusic(false);
+        		String message = getResources().getString(R.string.STR_AUDIO_FOCUS_DECLINED);
+        		notifyUser(Title.Error, message);
+        		postToast(message);
+        	}
             break;
 
         case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
         	sop(m,"Entry. AUDIOFOCUS_LOSS_TRANSIENT. Pausing music.");
         	pauseMusic();
+        	if (State.Paused == _state) {
+        		_focus.markLoss();
+        	}
             break;
 
         case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
@@ -711,8 +1450,18 @@ AudioManager.OnAudioFocusChangeListener {
     }
 	
 	/**
-	 * For debug only
+	 * Stream endpoints.  See Endpoints.
 	 */
-	public static String getMediaURLString() { return Constants.MEDIA_URL_STRING; }
+	private static final Endpoints.Current _endpoints = new Endpoints.Current(
+			new Endpoints(Constants.MEDIA_HOSTNAME, Constants.MEDIA_URL_STRING, Constants.STATUS_URL_STRING));
+
+	public static void setEndpoints(String mediaHostname, String mediaURLString, String statusURLString) {
+		_endpoints.set(new Endpoints(mediaHostname, mediaURLString, statusURLString));
+	}
+
+	public static Endpoints getEndpoints() { return _endpoints.get(); }
+	public static String getMediaHostname() { return _endpoints.get().mediaHostname; }
+	public static String getMediaURLString() { return _endpoints.get().mediaURLString; }
+	public static String getStatusURLString() { return _endpoints.get().statusURLString; }
 }
 
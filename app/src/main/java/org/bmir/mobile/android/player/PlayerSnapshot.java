@@ -0,0 +1,167 @@
+/**
+ * Remembers what the player was doing, across the death of the process.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A tiny snapshot of the player, saved after each state transition, so that a service restarted
+ * by Android after the process died can carry on where it was.
+ *
+ * File format, big-endian:
+ *   int magic, int version, long wall clock ms when saved, UTF state string, int stream id, UTF media URL
+ *
+ * Saves run on one background thread and replace the file atomically, so save() never blocks the caller.
+ */
+public class PlayerSnapshot {
+
+	/**
+	 * Logs messages to the console.
+     * Enable/disable logging here when publishing to Android Market.
+	 */
+	private static final String _logTag = PlayerSnapshot.class.getName().toString();
+	private static void sop(String method, String message) {
+		//Log.d(_logTag, method + ": " + message);
+	}
+
+	/**
+	 * Snapshot file name.
+	 */
+	public static final String FILE_NAME = "snapshot.bin";
+
+	private static final int MAGIC = 0x424D534E; // "BMSN"
+	private static final int VERSION = 1;
+
+	/**
+	 * The snapshot fields.
+	 * mediaURLString is the last stream URL which played, so a restore goes to a known-good endpoint.
+	 */
+	public final long savedMillis;
+	public final String state;
+	public final int streamId;
+	public final String mediaURLString;
+
+	public PlayerSnapshot(long savedMillis, String state, int streamId, String mediaURLString) {
+		this.savedMillis = savedMillis;
+		this.state = state;
+		this.streamId = streamId;
+		this.mediaURLString = mediaURLString;
+	}
+
+	/**
+	 * Returns the age of the snapshot in ms.
+	 */
+	public long getAgeMillis() {
+		return System.currentTimeMillis() - savedMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "state=" + state + " streamId=" + streamId + " mediaURL=" + mediaURLString + " ageMs=" + getAgeMillis();
+	}
+
+	/**
+	 * Runs all saves, in order.
+	 */
+	private static final ExecutorService _executor = Executors.newSingleThreadExecutor();
+
+	/**
+	 * The last snapshot handed to save().  Used to skip saves which would change nothing.
+	 */
+	private static String _lastSaved = null;
+
+	/**
+	 * Saves a snapshot in the directory.  Returns immediately.
+	 */
+	public static synchronized void save(File directory, String state, int streamId, String mediaURLString) {
+		String key = state + streamId + mediaURLString;
+		if (key.equals(_lastSaved)) {
+			return;
+		}
+		_lastSaved = key;
+		final File file = new File(directory, FILE_NAME);
+		final PlayerSnapshot snapshot = new PlayerSnapshot(System.currentTimeMillis(), state, streamId, mediaURLString);
+		_executor.execute(new Runnable() {
+			public void run() {
+				write(file, snapshot);
+			}
+		});
+	}
+
+	private static void write(File file, PlayerSnapshot snapshot) {
+		String m = "write";
+		File temporary = new File(file.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(temporary));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(snapshot.savedMillis);
+				out.writeUTF(snapshot.state);
+				out.writeInt(snapshot.streamId);
+				out.writeUTF(snapshot.mediaURLString);
+			}
+			finally {
+				out.close();
+			}
+			if (!temporary.renameTo(file)) {
+				throw new IOException("Could not rename " + temporary);
+			}
+			sop(m,"Saved " + snapshot);
+		}
+		catch (IOException e) {
+			sop(m,"Could not save snapshot. " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads the snapshot in the directory.  Returns null if there is none or it is unreadable.
+	 * Reads synchronously.  The file is a few dozen bytes.
+	 */
+	public static PlayerSnapshot load(File directory) {
+		String m = "load";
+		File file = new File(directory, FILE_NAME);
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (MAGIC != in.readInt() || VERSION != in.readInt()) {
+					return null;
+				}
+				return new PlayerSnapshot(in.readLong(), in.readUTF(), in.readInt(), in.readUTF());
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			sop(m,"Could not load snapshot. " + e.getMessage());
+			return null;
+		}
+	}
+}
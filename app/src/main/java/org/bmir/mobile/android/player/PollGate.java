@@ -0,0 +1,61 @@
+/**
+ * Lets one status poll run at a time, at most once per debounce interval.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One poll at a time: a poll which finds another in flight skips, rather than queueing behind it.
+ * The query timestamp prevents rapid repeated queries.  It, and whatever else the poll touches, is only touched
+ * by the poll which began, and the flag's compare-and-set and reset hand them from one poll thread to the next.
+ * Uses no Android classes, so the stress module can race it.
+ */
+public class PollGate {
+
+	private final AtomicBoolean _polling = new AtomicBoolean(false);
+	private long _lastQueryTimestamp = 0;
+
+	/**
+	 * Returns true if this poll may go ahead, in which case call end() when it is done.
+	 * Returns false if another poll is in flight.
+	 */
+	public boolean tryBegin() {
+		return _polling.compareAndSet(false, true);
+	}
+
+	/**
+	 * Returns true if the last query was more than debounceMillis ago, or there was none.  Call between tryBegin() and end().
+	 */
+	public boolean isDue(long debounceMillis) {
+		return 0 == _lastQueryTimestamp || debounceMillis < System.currentTimeMillis() - _lastQueryTimestamp;
+	}
+
+	/**
+	 * Notes that a query was made, or skipped as repeated.  Call between tryBegin() and end().
+	 */
+	public void markQueried() {
+		_lastQueryTimestamp = System.currentTimeMillis();
+	}
+
+	/**
+	 * Lets the next poll go ahead.
+	 */
+	public void end() {
+		_polling.set(false);
+	}
+}
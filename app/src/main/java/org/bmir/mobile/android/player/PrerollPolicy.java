@@ -0,0 +1,154 @@
+/**
+ * Decides how much music to buffer before playback starts.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pre-roll target in milliseconds of buffered audio.
+ * The target goes up after each rebuffer, and back down after a long session without one.
+ * Keeps the time to first audio and the rebuffer rate for each target used, so the defaults can be tuned from data.
+ * Use from the main thread only.
+ */
+public class PrerollPolicy {
+
+	/**
+	 * Logs messages to the console.
+     * Enable/disable logging here when publishing to Android Market.
+	 */
+	private static final String _logTag = PrerollPolicy.class.getName().toString();
+	private static void sop(String method, String message) {
+		//Log.d(_logTag, method + ": " + message);
+	}
+
+	/**
+	 * Target limits, and the steps in which the target moves.
+	 */
+	public static final long INITIAL_TARGET_MS = 1500;
+	public static final long MAX_TARGET_MS = 8000;
+	private static final long REBUFFER_STEP_MS = 1000;
+	private static final long DECAY_STEP_MS = 500;
+
+	/**
+	 * A session this long without a rebuffer lowers the target.
+	 */
+	private static final long CLEAN_SESSION_MS = 30 * 60 * 1000;
+
+	/**
+	 * Totals for one target setting.
+	 */
+	private static class Stats {
+		int sessions = 0;
+		long firstAudioMillis = 0;
+		long playMillis = 0;
+		int rebuffers = 0;
+	}
+
+	private final long _initialTargetMillis;
+	private long _targetMillis;
+	private final Map<Long, Stats> _stats = new TreeMap<Long, Stats>();
+
+	/**
+	 * The current session: the target it started with, and its rebuffers so far.  Null between sessions.
+	 */
+	private Stats _session = null;
+	private int _sessionRebuffers = 0;
+
+	/**
+	 * Constructor
+	 */
+	public PrerollPolicy(long initialTargetMillis) {
+		_initialTargetMillis = initialTargetMillis;
+		_targetMillis = initialTargetMillis;
+	}
+
+	/**
+	 * Returns the buffered audio, in ms, to wait for before starting.
+	 */
+	public long getTargetMillis() {
+		return _targetMillis;
+	}
+
+	/**
+	 * Notes that the music started, after firstAudioMillis since the click on play.
+	 * Returns the target the session is counted under.
+	 */
+	public long startSession(long firstAudioMillis) {
+		Stats stats = _stats.get(_targetMillis);
+		if (null == stats) {
+			stats = new Stats();
+			_stats.put(_targetMillis, stats);
+		}
+		stats.sessions++;
+		stats.firstAudioMillis += firstAudioMillis;
+		_session = stats;
+		_sessionRebuffers = 0;
+		return _targetMillis;
+	}
+
+	/**
+	 * Notes a rebuffer while playing, and raises the target.
+	 */
+	public void onRebuffer() {
+		String m = "onRebuffer";
+		if (null == _session) {
+			return;
+		}
+		_session.rebuffers++;
+		_sessionRebuffers++;
+		_targetMillis = Math.min(MAX_TARGET_MS, _targetMillis + REBUFFER_STEP_MS);
+		sop(m,"Raised preroll target. targetMs=" + _targetMillis);
+	}
+
+	/**
+	 * Notes that the music stopped after playing for playMillis.  Lowers the target after a long clean session.
+	 * Returns the rebuffers of the session.
+	 */
+	public int endSession(long playMillis) {
+		String m = "endSession";
+		if (null == _session) {
+			return 0;
+		}
+		_session.playMillis += playMillis;
+		if (0 == _sessionRebuffers && CLEAN_SESSION_MS <= playMillis) {
+			_targetMillis = Math.max(_initialTargetMillis, _targetMillis - DECAY_STEP_MS);
+			sop(m,"Lowered preroll target. targetMs=" + _targetMillis);
+		}
+		_session = null;
+		sop(m,getStatsString());
+		return _sessionRebuffers;
+	}
+
+	/**
+	 * Returns a human-readable summary, one entry per target:
+	 * sessions, average time to first audio, and rebuffers per hour of play.
+	 */
+	public String getStatsString() {
+		StringBuilder builder = new StringBuilder("targetMs=" + _targetMillis);
+		for (Map.Entry<Long, Stats> entry : _stats.entrySet()) {
+			Stats stats = entry.getValue();
+			builder.append("; ").append(entry.getKey()).append("ms:")
+					.append(" sessions=").append(stats.sessions)
+					.append(" avgFirstAudioMs=").append(stats.firstAudioMillis / stats.sessions)
+					.append(" rebuffersPerHour=")
+					.append((0 == stats.playMillis) ? 0 : (stats.rebuffers * 3600000L / stats.playMillis));
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,245 @@
+/**
+ * Finds stream relays on the local network, and announces our own.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.net.nsd.NsdManager;
+import android.net.nsd.NsdServiceInfo;
+
+/**
+ * Network service discovery (DNS-SD) of StreamRelay instances.
+ * Remembers one resolved relay, whose URL a player may use instead of the upstream.
+ * A relay which failed is passed over until it disappears from the network and comes back.
+ * So is one which resolves to an address off the local network, since any host may answer a DNS-SD query.
+ * NSD callbacks arrive on a binder thread, hence the volatile fields.  Needs Android API 16 and later.
+ */
+@TargetApi(android.os.Build.VERSION_CODES.JELLY_BEAN)
+public class RelayDiscovery {
+
+	/**
+	 * Logs messages to the console.
+     * Enable/disable logging here when publishing to Android Market.
+	 */
+	private static final String _logTag = RelayDiscovery.class.getName().toString();
+	private static void sop(String method, String message) {
+		//Log.d(_logTag, method + ": " + message);
+	}
+
+	/**
+	 * DNS-SD service type, of at most 15 characters before "._tcp", and the name of a relay.
+	 * NSD renames the service if the name is taken.
+	 */
+	public static final String SERVICE_TYPE = "_sfrelay._tcp.";
+	private static final String SERVICE_NAME = Constants.APP_NAME_MIXED + " relay";
+
+	private NsdManager _nsdManager = null;
+
+	/**
+	 * Our own relay's registration, and the name NSD gave it.
+	 */
+	private NsdManager.RegistrationListener _registrationListener = null;
+	private volatile String _ownServiceName = null;
+
+	/**
+	 * Discovery, and the relay found.  One resolve runs at a time.
+	 */
+	private NsdManager.DiscoveryListener _discoveryListener = null;
+	private volatile boolean _resolving = false;
+	private volatile String _relayServiceName = null;
+	private volatile String _relayURLString = null;
+	private volatile String _failedServiceName = null;
+
+	/**
+	 * Constructor.  Call from the main thread.
+	 */
+	public RelayDiscovery(Context context) {
+		_nsdManager = (NsdManager) context.getApplicationContext().getSystemService(Context.NSD_SERVICE);
+	}
+
+	/**
+	 * Returns the URL of the relay found, or null if none.
+	 */
+	public String getRelayURLString() {
+		return _relayURLString;
+	}
+
+	/**
+	 * Passes over the relay, if it is the one at the URL, after a player failed on it.
+	 */
+	public void onRelayFailed(String urlString) {
+		String m = "onRelayFailed";
+		if (null != urlString && urlString.equals(_relayURLString)) {
+			sop(m,"Passing over relay=" + _relayServiceName);
+			_failedServiceName = _relayServiceName;
+			_relayServiceName = null;
+			_relayURLString = null;
+		}
+	}
+
+	/**
+	 * Announces our own relay on the port.  Call from the main thread.
+	 */
+	public void advertise(int port) {
+		String m = "advertise";
+		if (null != _registrationListener) {
+			return;
+		}
+		NsdServiceInfo info = new NsdServiceInfo();
+		info.setServiceName(SERVICE_NAME);
+		info.setServiceType(SERVICE_TYPE);
+		info.setPort(port);
+		_registrationListener = new NsdManager.RegistrationListener() {
+			public void onServiceRegistered(NsdServiceInfo info) {
+				_ownServiceName = info.getServiceName();
+				sop("onServiceRegistered","name=" + _ownServiceName);
+			}
+			public void onRegistrationFailed(NsdServiceInfo info, int errorCode) {
+				sop("onRegistrationFailed","errorCode=" + errorCode);
+			}
+			public void onServiceUnregistered(NsdServiceInfo info) {
+			}
+			public void onUnregistrationFailed(NsdServiceInfo info, int errorCode) {
+			}
+		};
+		sop(m,"port=" + port);
+		_nsdManager.registerService(info, NsdManager.PROTOCOL_DNS_SD, _registrationListener);
+	}
+
+	/**
+	 * Withdraws our own relay.  Call from the main thread.
+	 */
+	public void unadvertise() {
+		if (null != _registrationListener) {
+			try {
+				_nsdManager.unregisterService(_registrationListener);
+			}
+			catch (IllegalArgumentException e) {
+				// Registration never completed.  Nothing to do.
+			}
+			_registrationListener = null;
+			_ownServiceName = null;
+		}
+	}
+
+	/**
+	 * Starts looking for relays.  Call from the main thread.
+	 */
+	public void startDiscovery() {
+		if (null != _discoveryListener) {
+			return;
+		}
+		_discoveryListener = new NsdManager.DiscoveryListener() {
+			public void onServiceFound(NsdServiceInfo info) {
+				onFound(info);
+			}
+			public void onServiceLost(NsdServiceInfo info) {
+				onLost(info);
+			}
+			public void onDiscoveryStarted(String serviceType) {
+			}
+			public void onDiscoveryStopped(String serviceType) {
+			}
+			public void onStartDiscoveryFailed(String serviceType, int errorCode) {
+				sop("onStartDiscoveryFailed","errorCode=" + errorCode);
+			}
+			public void onStopDiscoveryFailed(String serviceType, int errorCode) {
+			}
+		};
+		_nsdManager.discoverServices(SERVICE_TYPE, NsdManager.PROTOCOL_DNS_SD, _discoveryListener);
+	}
+
+	/**
+	 * Stops looking for relays, and forgets the one found.  Call from the main thread.
+	 */
+	public void stopDiscovery() {
+		if (null != _discoveryListener) {
+			try {
+				_nsdManager.stopServiceDiscovery(_discoveryListener);
+			}
+			catch (IllegalArgumentException e) {
+				// Discovery never started.  Nothing to do.
+			}
+			_discoveryListener = null;
+		}
+		_relayServiceName = null;
+		_relayURLString = null;
+	}
+
+	private void onFound(NsdServiceInfo info) {
+		String m = "onFound";
+		String name = info.getServiceName();
+		sop(m,"name=" + name);
+		if (name.equals(_ownServiceName) || name.equals(_failedServiceName) || null != _relayURLString || _resolving) {
+			return;
+		}
+		_resolving = true;
+		_nsdManager.resolveService(info, new NsdManager.ResolveListener() {
+			public void onServiceResolved(NsdServiceInfo info) {
+				_resolving = false;
+				InetAddress host = info.getHost();
+				if (!isLocalAddress(host)) {
+					sop("onServiceResolved","Passing over relay off the local network. host=" + host);
+					_failedServiceName = info.getServiceName();
+					return;
+				}
+				String address = host.getHostAddress();
+				if (host instanceof Inet6Address) {
+					address = "[" + address + "]";
+				}
+				_relayServiceName = info.getServiceName();
+				_relayURLString = "http://" + address + ":" + info.getPort() + StreamRelay.PATH;
+				sop("onServiceResolved","relay=" + _relayURLString);
+			}
+			public void onResolveFailed(NsdServiceInfo info, int errorCode) {
+				_resolving = false;
+				sop("onResolveFailed","errorCode=" + errorCode);
+			}
+		});
+	}
+
+	/**
+	 * Returns true if the address is on the local network: IPv4 private or link-local, or IPv6 unique or link-local.
+	 */
+	static boolean isLocalAddress(InetAddress address) {
+		if (null == address) {
+			return false;
+		}
+		if (address.isSiteLocalAddress() || address.isLinkLocalAddress()) {
+			return true;
+		}
+		// IPv6 unique local addresses, fc00::/7.
+		return (address instanceof Inet6Address) && (0xfc == (address.getAddress()[0] & 0xfe));
+	}
+
+	private void onLost(NsdServiceInfo info) {
+		String m = "onLost";
+		String name = info.getServiceName();
+		sop(m,"name=" + name);
+		if (name.equals(_relayServiceName)) {
+			_relayServiceName = null;
+			_relayURLString = null;
+		}
+		if (name.equals(_failedServiceName)) {
+			_failedServiceName = null;
+		}
+	}
+}
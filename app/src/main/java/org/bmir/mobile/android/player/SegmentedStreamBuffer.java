@@ -0,0 +1,429 @@
+/**
+ * Buffers the music stream in pooled, off-heap, fixed-size segments.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * A window onto a live byte stream, addressed by absolute stream position.
+ * One writer appends at the end; readers read at any position still in the window.
+ *
+ * The writer blocks when the data ahead of the furthest read reaches the high watermark,
+ * and continues once it falls to the low watermark.  Data behind the furthest read is kept
+ * for a little while, since the player sometimes reads backwards a little.
+ * Segments come from a process-wide pool of direct ByteBuffers.  Thread safe.
+ *
+ * When the stream is MP3 or AAC ADTS, the writer also walks the frame headers as they arrive,
+ * touching only the header bytes.  This gives the first clean frame to start playback on,
+ * the end of the last complete frame to cut on, and the buffered duration in milliseconds.
+ */
+public class SegmentedStreamBuffer {
+
+	/**
+	 * Size of one segment.
+	 */
+	public static final int SEGMENT_BYTES = 16 * 1024;
+
+	/**
+	 * Maximum number of free segments kept in the pool.
+	 */
+	private static final int MAX_POOLED_SEGMENTS = 32;
+
+	/**
+	 * The pool of free segments.  Guarded by itself.
+	 */
+	private static final ArrayDeque<ByteBuffer> _pool = new ArrayDeque<ByteBuffer>();
+
+	/**
+	 * A filled or partially filled segment.
+	 */
+	private static class Segment {
+		final ByteBuffer buffer;
+		final long start;
+		Segment(ByteBuffer buffer, long start) {
+			this.buffer = buffer;
+			this.start = start;
+		}
+		long end() {
+			return start + buffer.position();
+		}
+	}
+
+	/**
+	 * Watermarks, in bytes ahead of the furthest read, and the bytes kept behind it.
+	 */
+	private final int _lowWatermark;
+	private final int _highWatermark;
+	private final int _retainBehind;
+
+	/**
+	 * The segments in the window, oldest first.  Guarded by this.
+	 * Each segment but the last is full, so the segment for a position is found by arithmetic.
+	 */
+	private final ArrayList<Segment> _segments = new ArrayList<Segment>();
+
+	/**
+	 * Stream positions: end of the written data, and end of the furthest read.
+	 */
+	private long _writePosition = 0;
+	private long _readPosition = 0;
+
+	/**
+	 * True while the writer waits for the data ahead to drain to the low watermark.
+	 */
+	private boolean _writerHeld = false;
+
+	/**
+	 * End of stream, and the failure which ended it, if any.
+	 */
+	private boolean _ended = false;
+	private IOException _failure = null;
+	private boolean _closed = false;
+
+	/**
+	 * Frame accounting.  Guarded by this.
+	 * _scanPosition is where the next frame header is expected, or the next byte to try while not in sync.
+	 * _frameStart is the first frame of the stream, or -1 until found.
+	 * _frameBytes and _frameMicros are the size and duration of the complete frames walked.
+	 */
+	private static final int SYNC_SEARCH_BYTES = 64 * 1024;
+	private final FrameParser.Header _header = new FrameParser.Header();
+	private final FrameParser.Header _nextHeader = new FrameParser.Header();
+	private final ByteBuffer _headerBytes = ByteBuffer.allocate(FrameParser.PARSE_BYTES);
+	private long _scanPosition = 0;
+	private long _frameStart = -1;
+	private boolean _inSync = false;
+	private long _frameCount = 0;
+	private long _frameBytes = 0;
+	private long _frameMicros = 0;
+	private int _syncLosses = 0;
+
+	/**
+	 * Constructor
+	 */
+	public SegmentedStreamBuffer(int lowWatermark, int highWatermark, int retainBehind) {
+		_lowWatermark = lowWatermark;
+		_highWatermark = highWatermark;
+		_retainBehind = retainBehind;
+	}
+
+	/**
+	 * Appends data at the end of the stream.
+	 * Blocks while the data ahead is above the watermarks.  Returns false if the buffer was closed.
+	 */
+	public synchronized boolean write(byte[] bytes, int offset, int length) throws InterruptedException {
+		while (0 < length) {
+			while (!_closed && (_writerHeld || _highWatermark <= getBufferedAheadBytes())) {
+				_writerHeld = true;
+				wait();
+			}
+			if (_closed) {
+				return false;
+			}
+
+			Segment tail = _segments.isEmpty() ? null : _segments.get(_segments.size() - 1);
+			if (null == tail || !tail.buffer.hasRemaining()) {
+				tail = new Segment(takeFromPool(), _writePosition);
+				_segments.add(tail);
+			}
+			int count = Math.min(length, tail.buffer.remaining());
+			tail.buffer.put(bytes, offset, count);
+			offset += count;
+			length -= count;
+			_writePosition += count;
+			scanFrames();
+			notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * Walks the frame headers written since the last call.
+	 * A frame counts once all of it is written.  Sync is taken only on a header followed by a compatible one.
+	 */
+	private void scanFrames() {
+		while (_scanPosition + FrameParser.PARSE_BYTES <= _writePosition) {
+			int frameBytes = parseHeaderAt(_scanPosition, _header);
+			if (0 < frameBytes && !_inSync) {
+				long next = _scanPosition + frameBytes;
+				if (next + FrameParser.PARSE_BYTES > _writePosition) {
+					return;
+				}
+				if (0 >= parseHeaderAt(next, _nextHeader) || !_header.isCompatible(_nextHeader)) {
+					frameBytes = -1;
+				}
+			}
+			if (0 >= frameBytes) {
+				if (_inSync) {
+					_inSync = false;
+					_syncLosses++;
+				}
+				_scanPosition++;
+				continue;
+			}
+			if (_scanPosition + frameBytes > _writePosition) {
+				return;
+			}
+			if (!_inSync) {
+				_inSync = true;
+				if (-1 == _frameStart) {
+					_frameStart = _scanPosition;
+				}
+			}
+			_frameCount++;
+			_frameBytes += frameBytes;
+			_frameMicros += _header.getDurationMicros();
+			_scanPosition += frameBytes;
+		}
+	}
+
+	/**
+	 * Parses the frame header at an absolute position which has at least FrameParser.PARSE_BYTES written.
+	 * Gathers the header bytes only if the header straddles two segments.
+	 */
+	private int parseHeaderAt(long position, FrameParser.Header out) {
+		Segment segment = segmentAt(position);
+		int offset = (int) (position - segment.start);
+		if (offset + FrameParser.PARSE_BYTES <= SEGMENT_BYTES) {
+			return FrameParser.parse(segment.buffer, offset, out);
+		}
+		_headerBytes.clear();
+		for (long p = position; p < position + FrameParser.PARSE_BYTES; p++) {
+			Segment s = segmentAt(p);
+			_headerBytes.put(s.buffer.get((int) (p - s.start)));
+		}
+		_headerBytes.flip();
+		return FrameParser.parse(_headerBytes, 0, out);
+	}
+
+	private Segment segmentAt(long position) {
+		return _segments.get((int) ((position - _segments.get(0).start) / SEGMENT_BYTES));
+	}
+
+	/**
+	 * Marks the end of the stream.  A non-null failure is thrown to readers which reach the end.
+	 */
+	public synchronized void end(IOException failure) {
+		_ended = true;
+		_failure = failure;
+		notifyAll();
+	}
+
+	/**
+	 * Reads data at an absolute stream position, waiting up to timeoutMs for it to arrive.
+	 * Returns the number of bytes read, 0 on timeout, or -1 at the end of the stream.
+	 */
+	public synchronized int read(long position, byte[] bytes, int offset, int length, long timeoutMs)
+			throws IOException, InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		while (!_closed && !_ended && position >= _writePosition) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (0 >= remaining) {
+				return 0;
+			}
+			wait(remaining);
+		}
+		if (_closed) {
+			throw new IOException("Stream buffer is closed.");
+		}
+		if (position >= _writePosition) {
+			if (null != _failure) {
+				throw _failure;
+			}
+			return -1;
+		}
+		Segment first = _segments.isEmpty() ? null : _segments.get(0);
+		if (null == first || position < first.start) {
+			throw new IOException("Position is no longer buffered. position=" + position);
+		}
+
+		int total = 0;
+		for (Segment segment : _segments) {
+			if (0 == length || position >= _writePosition) {
+				break;
+			}
+			if (position >= segment.end()) {
+				continue;
+			}
+			ByteBuffer view = segment.buffer.duplicate();
+			view.flip();
+			view.position((int) (position - segment.start));
+			int count = Math.min(length, view.remaining());
+			view.get(bytes, offset, count);
+			offset += count;
+			length -= count;
+			position += count;
+			total += count;
+		}
+
+		if (position > _readPosition) {
+			_readPosition = position;
+			dropBehind();
+		}
+		if (_writerHeld && _lowWatermark >= getBufferedAheadBytes()) {
+			_writerHeld = false;
+			notifyAll();
+		}
+		return total;
+	}
+
+	/**
+	 * Returns the segments which are far enough behind the furthest read, and the frame scan, to the pool.
+	 */
+	private void dropBehind() {
+		long keepFrom = Math.min(_readPosition - _retainBehind, _scanPosition);
+		int drop = 0;
+		while (drop < _segments.size() - 1 && _segments.get(drop).end() <= keepFrom) {
+			returnToPool(_segments.get(drop).buffer);
+			drop++;
+		}
+		if (0 < drop) {
+			_segments.subList(0, drop).clear();
+		}
+	}
+
+	/**
+	 * Returns the bytes written beyond the furthest read.
+	 */
+	public synchronized long getBufferedAheadBytes() {
+		return Math.max(0, _writePosition - _readPosition);
+	}
+
+	/**
+	 * Returns the play time of the data ahead of the furthest read, or -1 if the stream has no frames to time.
+	 * Uses the average bytes per millisecond of the frames so far, which is exact for a constant bitrate.
+	 */
+	public synchronized long getBufferedAheadMillis() {
+		if (0 == _frameMicros) {
+			return -1;
+		}
+		return getBufferedAheadBytes() * _frameMicros / _frameBytes / 1000;
+	}
+
+	/**
+	 * Returns the average bitrate of the frames so far in kbit/s, or -1 if none yet.
+	 */
+	public synchronized int getAverageBitrateKbps() {
+		if (0 == _frameMicros) {
+			return -1;
+		}
+		return (int) (_frameBytes * 8 * 1000 / _frameMicros);
+	}
+
+	/**
+	 * Returns the position of the first frame, to start playback on.
+	 * Waits up to timeoutMs for it.  Returns -1 if the stream ends, or has no frames near its start.
+	 */
+	public synchronized long waitForFrameStart(long timeoutMs) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		while (-1 == _frameStart && !_closed && !_ended && SYNC_SEARCH_BYTES > _writePosition) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (0 >= remaining) {
+				break;
+			}
+			wait(remaining);
+		}
+		return _frameStart;
+	}
+
+	/**
+	 * Returns the end of the last complete frame written, to cut the stream on, or -1 if not in sync.
+	 */
+	public synchronized long getLastFrameEnd() {
+		return _inSync ? _scanPosition : -1;
+	}
+
+	/**
+	 * Returns a human-readable summary of the frame accounting.
+	 */
+	public synchronized String getFrameStatsString() {
+		return "frameStart=" + _frameStart
+				+ " frames=" + _frameCount
+				+ " avgKbps=" + getAverageBitrateKbps()
+				+ " bufferedMs=" + getBufferedAheadMillis()
+				+ " syncLosses=" + _syncLosses;
+	}
+
+	/**
+	 * Returns the data ahead as a percentage of the high watermark.
+	 */
+	public synchronized int getBufferedPercent() {
+		return (int) Math.min(100, (100 * getBufferedAheadBytes()) / _highWatermark);
+	}
+
+	/**
+	 * Returns the bytes held in segments.
+	 */
+	public synchronized long getBytesHeld() {
+		return (long) _segments.size() * SEGMENT_BYTES;
+	}
+
+	/**
+	 * Returns all segments to the pool and wakes any waiting reader or writer.
+	 */
+	public synchronized void close() {
+		_closed = true;
+		for (Segment segment : _segments) {
+			returnToPool(segment.buffer);
+		}
+		_segments.clear();
+		notifyAll();
+	}
+
+	private static ByteBuffer takeFromPool() {
+		synchronized (_pool) {
+			ByteBuffer buffer = _pool.pollFirst();
+			if (null != buffer) {
+				buffer.clear();
+				return buffer;
+			}
+		}
+		return ByteBuffer.allocateDirect(SEGMENT_BYTES);
+	}
+
+	private static void returnToPool(ByteBuffer buffer) {
+		synchronized (_pool) {
+			if (MAX_POOLED_SEGMENTS > _pool.size()) {
+				_pool.addLast(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Drops free segments from the pool, keeping at most the specified number.
+	 */
+	public static void trimPool(int keep) {
+		synchronized (_pool) {
+			while (keep < _pool.size()) {
+				_pool.pollFirst();
+			}
+		}
+	}
+
+	/**
+	 * Returns the bytes held by free segments in the pool.
+	 */
+	public static long getPooledBytes() {
+		synchronized (_pool) {
+			return (long) _pool.size() * SEGMENT_BYTES;
+		}
+	}
+}
@@ -0,0 +1,195 @@
+/**
+ * Records where launch time goes in MainActivity and PlayerService.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import android.util.Log;
+
+/**
+ * Startup trace of named sections with monotonic timestamps, kept in a small ring buffer.
+ * The trace runs from the launch of the MainActivity until it receives its first state broadcast,
+ * at which point the total is compared with the startup budget.
+ */
+public class StartupTrace {
+
+	/**
+	 * Logs messages to the console.
+     * Enable/disable logging here when publishing to Android Market.
+	 */
+	private static final String _logTag = StartupTrace.class.getName().toString();
+	private static void sop(String method, String message) {
+		//Log.d(_logTag, method + ": " + message);
+	}
+
+	/**
+	 * Record kinds.
+	 */
+	private static final int KIND_BEGIN = 0;
+	private static final int KIND_END = 1;
+	private static final int KIND_MARK = 2;
+
+	/**
+	 * The ring buffer.  When full, the oldest records are overwritten.
+	 */
+	private static final int CAPACITY = 64;
+	private static final String[] _names = new String[CAPACITY];
+	private static final int[] _kinds = new int[CAPACITY];
+	private static final long[] _nanos = new long[CAPACITY];
+	private static int _count = 0;
+
+	/**
+	 * Time of the first record, and whether the trace is complete.
+	 */
+	private static long _startNanos = 0;
+	private static long _totalNanos = 0;
+	private static boolean _finished = false;
+
+	/**
+	 * Starts a new trace, dropping any records so far.
+	 * Called as the MainActivity launches, so that records of the service, restarted by Android before
+	 * the activity, do not count against this launch.
+	 */
+	public static synchronized void reset() {
+		for (int i = 0; i < CAPACITY; i++) {
+			_names[i] = null;
+		}
+		_count = 0;
+		_startNanos = 0;
+		_totalNanos = 0;
+		_finished = false;
+	}
+
+	/**
+	 * Records the beginning of a named section.
+	 */
+	public static void begin(String section) {
+		record(KIND_BEGIN, section);
+	}
+
+	/**
+	 * Records the end of a named section.
+	 */
+	public static void end(String section) {
+		record(KIND_END, section);
+	}
+
+	/**
+	 * Records a single point in time.
+	 */
+	public static void mark(String event) {
+		record(KIND_MARK, event);
+	}
+
+	private static synchronized void record(int kind, String name) {
+		if (_finished) {
+			return;
+		}
+		long now = System.nanoTime();
+		if (0 == _count) {
+			_startNanos = now;
+		}
+		int ix = _count % CAPACITY;
+		_names[ix] = name;
+		_kinds[ix] = kind;
+		_nanos[ix] = now;
+		_count++;
+	}
+
+	/**
+	 * Completes the trace and checks it against the startup budget.  Later calls have no effect.
+	 * Returns true if startup was within budget.
+	 */
+	public static synchronized boolean finish(String event) {
+		String m = "finish";
+		if (_finished) {
+			return true;
+		}
+		record(KIND_MARK, event);
+		_totalNanos = System.nanoTime() - _startNanos;
+		_finished = true;
+
+		long budget = Tuning.get().startupBudgetMillis;
+		boolean withinBudget = (getTotalMillis() <= budget);
+		if (!withinBudget) {
+			Log.w(_logTag, "Startup took " + getTotalMillis() + " ms. Budget is " + budget + " ms.\n" + dump());
+		}
+		sop(m,"total=" + getTotalMillis() + "ms budget=" + budget + "ms");
+		return withinBudget;
+	}
+
+	/**
+	 * Returns true once the trace is complete.
+	 */
+	public static synchronized boolean isFinished() {
+		return _finished;
+	}
+
+	/**
+	 * Returns the total startup time, or zero until the trace is complete.
+	 */
+	public static synchronized long getTotalMillis() {
+		return _totalNanos / 1000000;
+	}
+
+	/**
+	 * Returns a human-readable listing of the trace.
+	 * Times are in ms since the first record.  Section ends also show the section's duration.
+	 */
+	public static synchronized String dump() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Startup trace. total=").append(getTotalMillis()).append("ms");
+		if (CAPACITY < _count) {
+			sb.append(" dropped=").append(_count - CAPACITY);
+		}
+		int first = Math.max(0, _count - CAPACITY);
+		for (int i = first; i < _count; i++) {
+			int ix = i % CAPACITY;
+			sb.append("\n").append(toMillis(_nanos[ix] - _startNanos)).append("ms ");
+			if (KIND_BEGIN == _kinds[ix]) {
+				sb.append("begin ").append(_names[ix]);
+			}
+			else if (KIND_END == _kinds[ix]) {
+				sb.append("end   ").append(_names[ix]);
+				long begin = findBegin(first, i, _names[ix]);
+				if (-1 != begin) {
+					sb.append(" (").append(toMillis(_nanos[ix] - begin)).append("ms)");
+				}
+			}
+			else {
+				sb.append("mark  ").append(_names[ix]);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the timestamp of the latest matching section begin before record i, or -1.
+	 */
+	private static long findBegin(int first, int i, String name) {
+		for (int j = i - 1; j >= first; j--) {
+			int ix = j % CAPACITY;
+			if (KIND_BEGIN == _kinds[ix] && name.equals(_names[ix])) {
+				return _nanos[ix];
+			}
+		}
+		return -1;
+	}
+
+	private static String toMillis(long nanos) {
+		return String.valueOf(nanos / 1000000) + "." + String.valueOf((nanos / 100000) % 10);
+	}
+}
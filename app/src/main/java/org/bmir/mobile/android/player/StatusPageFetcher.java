@@ -0,0 +1,393 @@
+/**
+ * Fetches the server status page with as few bytes as the server allows.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Fetches the status page for NowPlayingThread.
+ *
+ * Asks for gzip or deflate, and inflates while reading.  Asks for the page in ranges of RANGE_BYTES,
+ * until the server shows that it does not honour them.  Stops reading as soon as the current song is complete,
+ * since the song sits near the top of the page.
+ * Counts, per poll, the bytes received and the page bytes they inflated to.  Bytes already in flight when a read
+ * is cancelled are not counted; with ranges, there are few of those.
+ *
+ * Uses no Android classes, so it runs on any JVM, as in StatusPageFetcherTest.
+ */
+public class StatusPageFetcher {
+
+	/**
+	 * Logs messages to the console.
+     * Enable/disable logging here when publishing to Android Market.
+	 */
+	private static final String _logTag = StatusPageFetcher.class.getName().toString();
+	private static void sop(String method, String message) {
+		//Log.d(_logTag, method + ": " + message);
+	}
+
+	/**
+	 * Range size, and the most ranges read for one page.
+	 */
+	public static final int RANGE_BYTES = 4096;
+	private static final int MAX_RANGES = 64;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+	/**
+	 * Features to use.  All off behaves like the original fetch, for comparison.
+	 */
+	private final boolean _compress;
+	private final boolean _range;
+	private final boolean _earlyCancel;
+
+	/**
+	 * Whether the server honours ranges: 0 not known yet, 1 yes, -1 no.
+	 */
+	private volatile int _rangeSupport = 0;
+
+	/**
+	 * Statistics.
+	 */
+	private volatile int _polls = 0;
+	private volatile int _earlyCancels = 0;
+	private volatile long _totalWireBytes = 0;
+	private volatile long _totalPageBytes = 0;
+	private volatile long _lastWireBytes = 0;
+	private volatile long _lastPageBytes = 0;
+	private volatile String _lastStats = "";
+
+	/**
+	 * Constructor
+	 */
+	public StatusPageFetcher(boolean compress, boolean range, boolean earlyCancel) {
+		_compress = compress;
+		_range = range;
+		_earlyCancel = earlyCancel;
+	}
+
+	/**
+	 * Returns the page, or as much of it as holds the current song.
+	 * Returns NowPlayingParser.RC_UNKNOWN_CURRENT_SONG upon error.
+	 */
+	public String fetch(String urlString) {
+		String m = "fetch";
+		long run = WakeupLedger.begin();
+		Transfer transfer = new Transfer(urlString);
+		Inflater inflater = null;
+		CountingInputStream decoded = null;
+		BufferedReader reader = null;
+		StringBuilder page = new StringBuilder();
+		boolean cancelled = false;
+		try {
+			transfer.open();
+			InputStream in = transfer;
+			if ("gzip".equals(transfer.encoding) || "x-gzip".equals(transfer.encoding)) {
+				in = new GZIPInputStream(in, 1024);
+			}
+			else if ("deflate".equals(transfer.encoding)) {
+				// Servers send deflate either zlib-wrapped, as the standard says, or raw.  Tell from the first two bytes.
+				PushbackInputStream pushback = new PushbackInputStream(in, 2);
+				byte[] header = new byte[2];
+				int count = 0;
+				while (2 > count) {
+					int n = pushback.read(header, count, 2 - count);
+					if (0 > n) {
+						break;
+					}
+					count += n;
+				}
+				pushback.unread(header, 0, count);
+				boolean zlib = 2 == count && 8 == (header[0] & 0x0F) && 0 == ((header[0] & 0xFF) * 256 + (header[1] & 0xFF)) % 31;
+				inflater = new Inflater(!zlib);
+				in = new InflaterInputStream(pushback, inflater, 1024);
+			}
+			else if (!"identity".equals(transfer.encoding)) {
+				throw new IOException("Unsupported encoding=" + transfer.encoding);
+			}
+			decoded = new CountingInputStream(in);
+			// A small buffer, so that little is read past the current song.
+			reader = new BufferedReader(new InputStreamReader(decoded, UTF8), 1024);
+			// Safety valve on the lines read.  The page was originally 81 lines long.
+			int maxLines = Tuning.get().statusMaxLines;
+			int lines = 0;
+			String line;
+			while ((null != (line = reader.readLine())) && (maxLines > (lines++))) {
+				page.append(line);
+				if (_earlyCancel && -1 != line.indexOf("</td") && NowPlayingParser.hasCurrentSong(page.toString())) {
+					cancelled = true;
+					break;
+				}
+			}
+		}
+		catch (EOFException e) {
+			// Compressed data cut short.  Keep what arrived.
+			sop(m,"Caught e=" + e.getMessage());
+		}
+		catch (IOException e) {
+			sop(m,"Caught e=" + e.getMessage());
+			page = null;
+		}
+		finally {
+			if (null != reader) {
+				try { reader.close(); } catch (IOException e) { ; }
+			}
+			transfer.close();
+			if (null != inflater) {
+				inflater.end();
+			}
+		}
+
+		long pageBytes = (null == decoded) ? 0 : decoded.count;
+		_polls++;
+		_totalWireBytes += transfer.wireBytes;
+		_totalPageBytes += pageBytes;
+		if (cancelled) {
+			_earlyCancels++;
+		}
+		_lastWireBytes = transfer.wireBytes;
+		_lastPageBytes = pageBytes;
+		_lastStats = "wireBytes=" + transfer.wireBytes
+				+ " pageBytes=" + pageBytes
+				+ " fullBytes=" + transfer.fullBytes
+				+ " encoding=" + transfer.encoding
+				+ " ranges=" + transfer.ranges
+				+ " cancelled=" + cancelled;
+		sop(m,_lastStats);
+		WakeupLedger.endRun(WakeupLedger.STATUS_FETCH, run);
+		return (null == page) ? NowPlayingParser.RC_UNKNOWN_CURRENT_SONG : page.toString();
+	}
+
+	/**
+	 * Returns the bytes received by the last poll.
+	 */
+	public long getLastWireBytes() {
+		return _lastWireBytes;
+	}
+
+	/**
+	 * Returns the page bytes of the last poll, after inflation.  What the poll would have received uncompressed.
+	 */
+	public long getLastPageBytes() {
+		return _lastPageBytes;
+	}
+
+	/**
+	 * Returns a human-readable summary of the fetch statistics.
+	 */
+	public String getStatsString() {
+		int polls = Math.max(1, _polls);
+		return "polls=" + _polls
+				+ " avgWireBytes=" + (_totalWireBytes / polls)
+				+ " avgPageBytes=" + (_totalPageBytes / polls)
+				+ " earlyCancels=" + _earlyCancels
+				+ " rangeSupport=" + _rangeSupport
+				+ " last: " + _lastStats;
+	}
+
+	/**
+	 * The encoded page as one stream, across as many range requests as it takes.  Counts the bytes received.
+	 * fullBytes is the encoded size of the whole page, if the server said, else -1.
+	 */
+	private class Transfer extends InputStream {
+		private final String _urlString;
+		private HttpURLConnection _connection = null;
+		private InputStream _in = null;
+		private boolean _ranged = false;
+		private long _rangeStart = 0;
+		private long _offset = 0;
+		String encoding = null;
+		long fullBytes = -1;
+		long wireBytes = 0;
+		int ranges = 0;
+
+		Transfer(String urlString) {
+			_urlString = urlString;
+		}
+
+		void open() throws IOException {
+			if (!connect(0)) {
+				throw new IOException("Empty page.");
+			}
+		}
+
+		/**
+		 * Requests the page from the offset on.  Returns false if there is nothing more.
+		 */
+		private boolean connect(long from) throws IOException {
+			close();
+			_connection = (HttpURLConnection) new URL(_urlString).openConnection();
+			TlsSessionCache.prepare(_connection);
+			_connection.setConnectTimeout(Tuning.get().statusConnectTimeoutMillis);
+			_connection.setReadTimeout(Tuning.get().statusReadTimeoutMillis);
+			_connection.setUseCaches(false);
+			// Naming the encoding also stops Android from inflating behind our back, which would hide the byte counts.
+			_connection.setRequestProperty("Accept-Encoding", _compress ? "gzip, deflate" : "identity");
+			boolean askRange = _range && -1 != _rangeSupport;
+			if (askRange) {
+				_connection.setRequestProperty("Range", "bytes=" + from + "-" + (from + RANGE_BYTES - 1));
+			}
+			int responseCode = _connection.getResponseCode();
+			if (HttpURLConnection.HTTP_PARTIAL == responseCode) {
+				_rangeSupport = 1;
+				_ranged = true;
+				ranges++;
+				parseContentRange(_connection.getHeaderField("Content-Range"), from);
+			}
+			else if (HttpURLConnection.HTTP_OK == responseCode) {
+				if (0 != from) {
+					throw new IOException("Server stopped honouring ranges.");
+				}
+				if (askRange) {
+					_rangeSupport = -1;
+				}
+				_ranged = false;
+				fullBytes = _connection.getContentLength();
+			}
+			else if (HTTP_RANGE_NOT_SATISFIABLE == responseCode && askRange) {
+				if (0 != from) {
+					// Past the end of a page of unknown size.
+					return false;
+				}
+				_rangeSupport = -1;
+				return connect(0);
+			}
+			else {
+				throw new IOException("Unexpected response code=" + responseCode);
+			}
+
+			String responseEncoding = _connection.getContentEncoding();
+			responseEncoding = (null == responseEncoding) ? "identity" : responseEncoding.trim().toLowerCase();
+			if (0 == from) {
+				encoding = responseEncoding;
+			}
+			else if (!responseEncoding.equals(encoding)) {
+				throw new IOException("Encoding changed between ranges.");
+			}
+			_rangeStart = from;
+			_in = _connection.getInputStream();
+			return true;
+		}
+
+		/**
+		 * Checks a 'Content-Range: bytes first-last/total' header, and notes the total.
+		 */
+		private void parseContentRange(String value, long from) throws IOException {
+			try {
+				int space = value.indexOf(' ');
+				int dash = value.indexOf('-', space);
+				int slash = value.indexOf('/', dash);
+				if (from != Long.parseLong(value.substring(space + 1, dash).trim())) {
+					throw new IOException("Unexpected Content-Range=" + value);
+				}
+				String total = value.substring(slash + 1).trim();
+				if (!"*".equals(total)) {
+					fullBytes = Long.parseLong(total);
+				}
+			}
+			catch (RuntimeException e) {
+				throw new IOException("Bad Content-Range=" + value);
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return (1 == read(one, 0, 1)) ? (one[0] & 0xFF) : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			while (true) {
+				int count = _in.read(bytes, offset, length);
+				if (0 < count) {
+					_offset += count;
+					wireBytes += count;
+					return count;
+				}
+				if (0 == count) {
+					return 0;
+				}
+				// End of this response.  A short range, or the known total, is the end of the page.
+				if (!_ranged || RANGE_BYTES > _offset - _rangeStart || (-1 != fullBytes && _offset >= fullBytes) || MAX_RANGES <= ranges) {
+					return -1;
+				}
+				if (!connect(_offset)) {
+					return -1;
+				}
+			}
+		}
+
+		/**
+		 * Drops the connection first, so that closing the stream does not drain the rest of the response.
+		 */
+		@Override
+		public void close() {
+			if (null != _connection) {
+				_connection.disconnect();
+				_connection = null;
+			}
+			if (null != _in) {
+				try { _in.close(); } catch (IOException e) { ; }
+				_in = null;
+			}
+		}
+	}
+
+	/**
+	 * Counts the bytes read through it.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		long count = 0;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (-1 != b) {
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			int n = super.read(bytes, offset, length);
+			if (0 < n) {
+				count += n;
+			}
+			return n;
+		}
+	}
+}
@@ -0,0 +1,81 @@
+/**
+ * Feeds the Android media player from our own network reader and stream buffer.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import java.io.IOException;
+
+import android.annotation.TargetApi;
+import android.media.MediaDataSource;
+import android.os.Build;
+
+/**
+ * MediaDataSource backed by a StreamReader.
+ * Lets us choose the buffering depth, and makes the buffer level and read latency visible.
+ * The player sees the stream from its first clean frame, so it never starts on a partial frame.
+ * Requires Android API 23 (Marshmallow).
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class StreamDataSource extends MediaDataSource {
+
+	/**
+	 * How long a read by the player may wait for data.
+	 */
+	private static final long READ_WAIT_MS = 10000;
+
+	private final StreamReader _reader;
+
+	/**
+	 * Stream position of the player's position 0, or -1 until the first read.
+	 * Used only by the player's reading thread.
+	 */
+	private long _startPosition = -1;
+
+	/**
+	 * Constructor.  Call from the main thread.  Starts reading from the network at once.
+	 */
+	public StreamDataSource(String url, StreamReader.Listener listener) {
+		_reader = new StreamReader(url, listener);
+	}
+
+	public StreamReader getReader() {
+		return _reader;
+	}
+
+	@Override
+	public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+		if (-1 == _startPosition) {
+			_startPosition = Math.max(0, _reader.waitForFrameStart(READ_WAIT_MS));
+		}
+		int count = _reader.read(_startPosition + position, buffer, offset, size, READ_WAIT_MS);
+		if (0 == count) {
+			throw new IOException("Timed out waiting for stream data.");
+		}
+		return count;
+	}
+
+	@Override
+	public long getSize() {
+		// A live stream has no size.
+		return -1;
+	}
+
+	@Override
+	public void close() {
+		_reader.close();
+	}
+}
@@ -0,0 +1,279 @@
+/**
+ * Reads the music stream from the network into a stream buffer.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import android.os.Handler;
+
+/**
+ * A network reader thread filling a SegmentedStreamBuffer, and the read side of that buffer.
+ * Shared by the playback engines which read the stream themselves.
+ * Makes the buffer level and the read latency visible.
+ */
+public class StreamReader {
+
+	/**
+	 * Receives buffer level changes on the main thread.
+	 */
+	public interface Listener {
+		void onStreamBufferLevel(StreamReader reader, int percent);
+	}
+
+	/**
+	 * Logs messages to the console.
+     * Enable/disable logging here when publishing to Android Market.
+	 */
+	private static final String _logTag = StreamReader.class.getName().toString();
+	private static void sop(String method, String message) {
+		//Log.d(_logTag, method + ": " + message);
+	}
+
+	/**
+	 * Bytes kept behind the reader.  The buffer watermarks and network timeouts are tuned,
+	 * and a reader keeps the values current when it was created.  At 128 kbit/s, 256 KB is about 16 seconds of music.
+	 */
+	private static final int RETAIN_BEHIND_BYTES = 32 * 1024;
+	private final Tuning.Values _tuning = Tuning.get();
+
+	/**
+	 * Only report buffer level changes of at least this many percent.
+	 */
+	private static final int LEVEL_REPORT_STEP_PERCENT = 10;
+
+	private final String _url;
+	private final SegmentedStreamBuffer _buffer;
+	private final Listener _listener;
+	private final Handler _mainHandler;
+	private Thread _readerThread = null;
+	private volatile boolean _closed = false;
+
+	/**
+	 * Bitrate announced by the server in the icy-br response header, in kbit/s, or 0 if none.
+	 */
+	private volatile int _icyBitrateKbps = 0;
+
+	/**
+	 * The last buffer level reported to the listener.
+	 */
+	private volatile int _reportedPercent = -1;
+
+	/**
+	 * Read statistics.  Updated by the one thread which reads from this reader.
+	 */
+	private volatile long _readCount = 0;
+	private volatile long _readWaitNanos = 0;
+	private volatile long _maxReadWaitNanos = 0;
+	private volatile long _bytesRead = 0;
+
+	/**
+	 * Constructor.  Call from the main thread.  Starts reading from the network at once.
+	 */
+	public StreamReader(String url, Listener listener) {
+		_url = url;
+		_listener = listener;
+		_mainHandler = new Handler();
+		_buffer = new SegmentedStreamBuffer(_tuning.streamLowWatermarkBytes, _tuning.streamHighWatermarkBytes, RETAIN_BEHIND_BYTES);
+		_readerThread = new Thread(new Runnable() {
+			public void run() {
+				readNetwork();
+			}
+		}, "StreamReader");
+		_readerThread.start();
+	}
+
+	/**
+	 * Body of the network reader thread.
+	 */
+	private void readNetwork() {
+		String m = "readNetwork";
+		HttpURLConnection connection = null;
+		InputStream in = null;
+		IOException failure = null;
+		try {
+			connection = (HttpURLConnection) new URL(_url).openConnection();
+			TlsSessionCache.prepare(connection);
+			connection.setConnectTimeout(_tuning.streamConnectTimeoutMillis);
+			connection.setReadTimeout(_tuning.streamReadTimeoutMillis);
+			connection.setUseCaches(false);
+			int responseCode = connection.getResponseCode();
+			if (HttpURLConnection.HTTP_OK != responseCode) {
+				throw new IOException("Unexpected response code=" + responseCode);
+			}
+			_icyBitrateKbps = parseIcyBitrate(connection.getHeaderField("icy-br"));
+			sop(m,"Connected. icyBitrateKbps=" + _icyBitrateKbps);
+			in = connection.getInputStream();
+			byte[] scratch = new byte[8 * 1024];
+			while (!_closed) {
+				int count = in.read(scratch);
+				long wakeup = WakeupLedger.begin();
+				if (0 > count) {
+					sop(m,"End of stream.");
+					break;
+				}
+				if (!_buffer.write(scratch, 0, count)) {
+					break;
+				}
+				reportLevel();
+				WakeupLedger.end(WakeupLedger.STREAM_READ, wakeup);
+			}
+		}
+		catch (IOException e) {
+			sop(m,"Caught e=" + e.getMessage());
+			failure = e;
+		}
+		catch (InterruptedException e) {
+			sop(m,"Interrupted.");
+		}
+		finally {
+			if (null != in) {
+				try { in.close(); } catch (IOException e) { ; }
+			}
+			if (null != connection) {
+				connection.disconnect();
+			}
+			_buffer.end(failure);
+		}
+	}
+
+	/**
+	 * Returns the bitrate from an icy-br header value, or 0.  Some servers send a list, like "128,128".
+	 */
+	private static int parseIcyBitrate(String value) {
+		if (null == value) {
+			return 0;
+		}
+		int comma = value.indexOf(',');
+		try {
+			return Integer.parseInt(((-1 == comma) ? value : value.substring(0, comma)).trim());
+		}
+		catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Tells the listener about significant buffer level changes.
+	 */
+	private void reportLevel() {
+		final int percent = _buffer.getBufferedPercent();
+		if (null == _listener || Math.abs(percent - _reportedPercent) < LEVEL_REPORT_STEP_PERCENT) {
+			return;
+		}
+		_reportedPercent = percent;
+		_mainHandler.post(new Runnable() {
+			public void run() {
+				if (!_closed) {
+					_listener.onStreamBufferLevel(StreamReader.this, percent);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Reads data at an absolute stream position, waiting up to timeoutMs for it to arrive.
+	 * Returns the number of bytes read, 0 on timeout, or -1 at the end of the stream.
+	 */
+	public int read(long position, byte[] bytes, int offset, int length, long timeoutMs) throws IOException {
+		long start = System.nanoTime();
+		int count;
+		try {
+			count = _buffer.read(position, bytes, offset, length, timeoutMs);
+		}
+		catch (InterruptedException e) {
+			throw new IOException("Interrupted.");
+		}
+		long wait = System.nanoTime() - start;
+		_readCount++;
+		_readWaitNanos += wait;
+		if (wait > _maxReadWaitNanos) {
+			_maxReadWaitNanos = wait;
+		}
+		if (0 < count) {
+			_bytesRead += count;
+			reportLevel();
+		}
+		return count;
+	}
+
+	/**
+	 * Stops the reader thread and frees the buffer.
+	 */
+	public void close() {
+		_closed = true;
+		_buffer.close();
+		if (null != _readerThread) {
+			_readerThread.interrupt();
+		}
+	}
+
+	/**
+	 * Returns the buffered data ahead of the reader as a percentage of the high watermark.
+	 */
+	public int getBufferedPercent() {
+		return _buffer.getBufferedPercent();
+	}
+
+	/**
+	 * Returns the play time of the buffered data ahead of the reader, or -1 if unknown.
+	 * Timed by the stream's frames, or by the icy-br bitrate until frames are found.
+	 */
+	public long getBufferedAheadMillis() {
+		long millis = _buffer.getBufferedAheadMillis();
+		if (-1 == millis && 0 < _icyBitrateKbps) {
+			millis = _buffer.getBufferedAheadBytes() * 8 / _icyBitrateKbps;
+		}
+		return millis;
+	}
+
+	/**
+	 * Returns the position of the first clean frame of the stream, or -1 if none was found in time.
+	 */
+	public long waitForFrameStart(long timeoutMs) throws IOException {
+		try {
+			return _buffer.waitForFrameStart(timeoutMs);
+		}
+		catch (InterruptedException e) {
+			throw new IOException("Interrupted.");
+		}
+	}
+
+	/**
+	 * Returns the bytes held in buffer segments.
+	 */
+	public long getBytesHeld() {
+		return _buffer.getBytesHeld();
+	}
+
+	/**
+	 * Returns a human-readable summary of the read statistics.
+	 */
+	public String getStatsString() {
+		long reads = _readCount;
+		return "reads=" + reads
+				+ " bytesRead=" + _bytesRead
+				+ " avgReadWaitUs=" + ((0 == reads) ? 0 : (_readWaitNanos / reads / 1000))
+				+ " maxReadWaitMs=" + (_maxReadWaitNanos / 1000000)
+				+ " bufferedPercent=" + getBufferedPercent()
+				+ " icyKbps=" + _icyBitrateKbps
+				+ " " + _buffer.getFrameStatsString();
+	}
+}
@@ -0,0 +1,728 @@
+/**
+ * Relays the music stream to listeners on the local network.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Fetches the music stream once, and serves it over HTTP to many listeners.
+ *
+ * The upstream thread writes the stream into one shared ring buffer.  The server thread serves all listeners
+ * from a non-blocking selector.  Each listener's socket is written straight from its own view of the ring,
+ * so the fan-out copies nothing per listener.
+ * ICY metadata is passed on to listeners which ask for it with 'Icy-MetaData: 1', and skipped for the others.
+ * A listener which falls too far behind the upstream is disconnected.  So are all listeners when the upstream
+ * reconnects, since the stream is not continuous across the reconnect.
+ *
+ * Uses no Android classes, so it runs on any JVM, for RelayBench in the bench module.
+ */
+public class StreamRelay implements Trimmable {
+
+	/**
+	 * Logs messages to the console.
+     * Enable/disable logging here when publishing to Android Market.
+	 */
+	private static final String _logTag = StreamRelay.class.getName().toString();
+	private static void sop(String method, String message) {
+		//Log.d(_logTag, method + ": " + message);
+	}
+
+	/**
+	 * The path of the relayed stream.
+	 */
+	public static final String PATH = "/live";
+
+	/**
+	 * Listener limit on a phone.
+	 */
+	public static final int MAX_LISTENERS = 32;
+
+	/**
+	 * Ring size.  At 128 kbit/s, 512 KB is about 32 seconds of music.
+	 * A listener may lag by up to half of it.  A new listener starts with a burst of BURST_BYTES, for a fast start.
+	 */
+	private static final int RING_BYTES = 512 * 1024;
+	private static final int MAX_LAG_BYTES = RING_BYTES / 2;
+	private static final int MAX_FEED_BYTES = 16 * 1024;
+	private static final int BURST_BYTES = 64 * 1024;
+
+	/**
+	 * Request limits.
+	 */
+	private static final int MAX_REQUEST_BYTES = 4096;
+	private static final long REQUEST_TIMEOUT_MS = 10000;
+	private static final long SELECT_TIMEOUT_MS = 1000;
+
+	/**
+	 * Upstream timeouts, and the reconnect back-off.
+	 */
+	private static final int CONNECT_TIMEOUT_MS = 10000;
+	private static final int READ_TIMEOUT_MS = 15000;
+	private static final long MIN_RETRY_MS = 1000;
+	private static final long MAX_RETRY_MS = 16000;
+
+	/**
+	 * Upstream response headers passed on to listeners.
+	 */
+	private static final String[] PASSED_HEADERS = { "icy-br", "icy-name", "icy-genre", "icy-description", "icy-url", "icy-pub" };
+
+	/**
+	 * One upstream connection.  Replaced, never changed, so the server thread sees a consistent set.
+	 * start is the ring position of its first byte.
+	 */
+	private static class Upstream {
+		final int generation;
+		final String contentType;
+		final int metaint;
+		final String headers;
+		final long start;
+
+		Upstream(int generation, String contentType, int metaint, String headers, long start) {
+			this.generation = generation;
+			this.contentType = contentType;
+			this.metaint = metaint;
+			this.headers = headers;
+			this.start = start;
+		}
+	}
+
+	/**
+	 * One listener.  Used by the server thread only.
+	 * With ICY metadata, audioLeft counts the audio bytes before the next metadata length byte,
+	 * and metaLeft the bytes of the current metadata block, or -1 before its length byte is read.
+	 */
+	private static class Client {
+		final SocketChannel channel;
+		final SelectionKey key;
+		final long acceptMillis = System.currentTimeMillis();
+		ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+		boolean wantsMeta = false;
+		int generation = -1;
+		ByteBuffer response = null;
+		ByteBuffer view = null;
+		long position = 0;
+		int audioLeft = 0;
+		int metaLeft = -1;
+
+		Client(SocketChannel channel, SelectionKey key) {
+			this.channel = channel;
+			this.key = key;
+		}
+	}
+
+	private final String _upstreamURLString;
+	private final int _port;
+	private final int _maxListeners;
+
+	/**
+	 * The shared ring.  _written is the stream position of the next byte, written by the upstream thread only.
+	 */
+	private final ByteBuffer _ring = ByteBuffer.allocateDirect(RING_BYTES);
+	private final ByteBuffer _writeView = _ring.duplicate();
+	private volatile long _written = 0;
+	private volatile Upstream _upstream = null;
+
+	/**
+	 * Metadata walk of the upstream thread, and the block starts it found, where a new listener can join.
+	 * Guarded by _blockStarts.
+	 */
+	private final long[] _blockStarts = new long[64];
+	private int _blockCount = 0;
+	private int _generation = 0;
+	private int _feedMetaint = 0;
+	private int _feedAudioLeft = 0;
+	private int _feedMetaLeft = -1;
+
+	private Selector _selector = null;
+	private ServerSocketChannel _serverChannel = null;
+	private Thread _serverThread = null;
+	private Thread _upstreamThread = null;
+	private volatile boolean _closed = false;
+
+	/**
+	 * The listeners.  Used by the server thread only.
+	 */
+	private final List<Client> _clients = new ArrayList<Client>();
+
+	/**
+	 * Statistics.
+	 */
+	private volatile int _listenerCount = 0;
+	private volatile int _listenersServed = 0;
+	private volatile int _listenersRefused = 0;
+	private volatile int _listenersDropped = 0;
+	private volatile int _upstreamConnects = 0;
+	private volatile long _bytesIn = 0;
+	private volatile long _bytesOut = 0;
+	private volatile long _busyNanos = 0;
+
+	/**
+	 * Constructor.  Serves on the port, or on any free port if 0.
+	 * Without an upstream URL, the stream comes from beginStream() and feed(), as in RelayBench.
+	 */
+	public StreamRelay(String upstreamURLString, int port, int maxListeners) {
+		_upstreamURLString = upstreamURLString;
+		_port = port;
+		_maxListeners = maxListeners;
+	}
+
+	/**
+	 * Opens the server socket on all interfaces, and starts the server and upstream threads.
+	 */
+	public void start() throws IOException {
+		_selector = Selector.open();
+		try {
+			_serverChannel = ServerSocketChannel.open();
+			_serverChannel.socket().setReuseAddress(true);
+			_serverChannel.socket().bind(new InetSocketAddress(_port));
+			_serverChannel.configureBlocking(false);
+			_serverChannel.register(_selector, SelectionKey.OP_ACCEPT);
+		}
+		catch (IOException e) {
+			if (null != _serverChannel) {
+				try { _serverChannel.close(); } catch (IOException e2) { ; }
+			}
+			_selector.close();
+			throw e;
+		}
+		_serverThread = new Thread(new Runnable() {
+			public void run() {
+				serve();
+			}
+		}, "StreamRelay");
+		_serverThread.start();
+		if (null != _upstreamURLString) {
+			_upstreamThread = new Thread(new Runnable() {
+				public void run() {
+					fetchUpstream();
+				}
+			}, "StreamRelayUpstream");
+			_upstreamThread.start();
+		}
+	}
+
+	/**
+	 * Stops both threads and disconnects all listeners.
+	 */
+	public void close() {
+		_closed = true;
+		if (null != _selector) {
+			_selector.wakeup();
+		}
+		if (null != _upstreamThread) {
+			_upstreamThread.interrupt();
+		}
+	}
+
+	/**
+	 * Returns the port served on.
+	 */
+	public int getPort() {
+		return _serverChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * Returns the URL of the relayed stream, for a player on this device.
+	 */
+	public String getLocalURLString() {
+		return "http://127.0.0.1:" + getPort() + PATH;
+	}
+
+	public int getListenerCount() {
+		return _listenerCount;
+	}
+
+	public int getListenersServed() {
+		return _listenersServed;
+	}
+
+	public long getBytesOut() {
+		return _bytesOut;
+	}
+
+	/**
+	 * Returns a human-readable summary of the relay statistics.
+	 */
+	public String getStatsString() {
+		return "listeners=" + _listenerCount
+				+ " served=" + _listenersServed
+				+ " refused=" + _listenersRefused
+				+ " dropped=" + _listenersDropped
+				+ " upstreamConnects=" + _upstreamConnects
+				+ " inKB=" + (_bytesIn / 1024)
+				+ " outKB=" + (_bytesOut / 1024)
+				+ " busyMs=" + (_busyNanos / 1000000);
+	}
+
+	/**
+	 * Returns the bytes of the ring buffer.
+	 */
+	public long getBytesHeld() {
+		return RING_BYTES;
+	}
+
+	/**
+	 * Keeps the ring buffer, which listeners are playing from.
+	 */
+	public void trim(int level) {
+	}
+
+	/**
+	 * Body of the upstream thread.  Reconnects with a back-off until closed.
+	 */
+	private void fetchUpstream() {
+		String m = "fetchUpstream";
+		long retryMillis = MIN_RETRY_MS;
+		while (!_closed) {
+			long start = System.currentTimeMillis();
+			try {
+				fetchOnce();
+			}
+			catch (IOException e) {
+				sop(m,"Caught e=" + e.getMessage());
+			}
+			endStream();
+			if (_closed) {
+				break;
+			}
+			// A connection which lasted a while starts the back-off over.
+			if (System.currentTimeMillis() - start > MAX_RETRY_MS) {
+				retryMillis = MIN_RETRY_MS;
+			}
+			sop(m,"Reconnecting in ms=" + retryMillis);
+			try {
+				Thread.sleep(retryMillis);
+			}
+			catch (InterruptedException e) {
+				break;
+			}
+			retryMillis = Math.min(MAX_RETRY_MS, retryMillis * 2);
+		}
+	}
+
+	private void fetchOnce() throws IOException {
+		String m = "fetchOnce";
+		HttpURLConnection connection = (HttpURLConnection) new URL(_upstreamURLString).openConnection();
+		TlsSessionCache.prepare(connection);
+		InputStream in = null;
+		try {
+			connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+			connection.setReadTimeout(READ_TIMEOUT_MS);
+			connection.setUseCaches(false);
+			connection.setRequestProperty("Icy-MetaData", "1");
+			int responseCode = connection.getResponseCode();
+			if (HttpURLConnection.HTTP_OK != responseCode) {
+				throw new IOException("Unexpected response code=" + responseCode);
+			}
+			int metaint = 0;
+			String value = connection.getHeaderField("icy-metaint");
+			if (null != value) {
+				try {
+					metaint = Integer.parseInt(value.trim());
+				}
+				catch (NumberFormatException e) {
+					throw new IOException("Bad icy-metaint=" + value);
+				}
+			}
+			StringBuilder headers = new StringBuilder();
+			for (String name : PASSED_HEADERS) {
+				value = connection.getHeaderField(name);
+				if (null != value) {
+					headers.append(name).append(": ").append(value).append("\r\n");
+				}
+			}
+			String contentType = connection.getContentType();
+			_upstreamConnects++;
+			sop(m,"Connected. contentType=" + contentType + " metaint=" + metaint);
+			beginStream((null == contentType) ? "audio/mpeg" : contentType, metaint, headers.toString());
+
+			in = connection.getInputStream();
+			byte[] scratch = new byte[8 * 1024];
+			while (!_closed) {
+				int count = in.read(scratch);
+				if (0 > count) {
+					sop(m,"End of stream.");
+					break;
+				}
+				long wakeup = WakeupLedger.begin();
+				feed(scratch, 0, count);
+				WakeupLedger.end(WakeupLedger.RELAY_UPSTREAM, wakeup);
+			}
+		}
+		finally {
+			if (null != in) {
+				try { in.close(); } catch (IOException e) { ; }
+			}
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * Starts a new upstream stream at the current ring position.
+	 * Listeners of the previous one are disconnected.  Call from the one thread which feeds the relay.
+	 */
+	void beginStream(String contentType, int metaint, String headers) {
+		synchronized (_blockStarts) {
+			_feedMetaint = metaint;
+			_feedAudioLeft = metaint;
+			_feedMetaLeft = -1;
+			_blockStarts[0] = _written;
+			_blockCount = 1;
+			_generation++;
+			_upstream = new Upstream(_generation, contentType, metaint, headers, _written);
+		}
+		_selector.wakeup();
+	}
+
+	/**
+	 * Ends the upstream stream.  Its listeners are disconnected.
+	 */
+	void endStream() {
+		_upstream = null;
+		_selector.wakeup();
+	}
+
+	/**
+	 * Appends stream bytes to the ring, and wakes the server thread.  Call from the one thread which feeds the relay.
+	 */
+	void feed(byte[] bytes, int offset, int length) {
+		while (0 < length) {
+			long written = _written;
+			int index = (int) (written % RING_BYTES);
+			int count = Math.min(length, Math.min(MAX_FEED_BYTES, RING_BYTES - index));
+			_writeView.limit(index + count);
+			_writeView.position(index);
+			_writeView.put(bytes, offset, count);
+			if (0 < _feedMetaint) {
+				walkMetadata(bytes, offset, count, written);
+			}
+			_written = written + count;
+			_bytesIn += count;
+			offset += count;
+			length -= count;
+		}
+		_selector.wakeup();
+	}
+
+	/**
+	 * Follows the ICY metadata blocks through newly fed bytes, and records where each audio block starts.
+	 */
+	private void walkMetadata(byte[] bytes, int offset, int length, long position) {
+		int i = 0;
+		while (i < length) {
+			if (0 < _feedAudioLeft) {
+				int count = Math.min(_feedAudioLeft, length - i);
+				_feedAudioLeft -= count;
+				i += count;
+			}
+			else if (-1 == _feedMetaLeft) {
+				_feedMetaLeft = 1 + 16 * (bytes[offset + i] & 0xFF);
+			}
+			else {
+				int count = Math.min(_feedMetaLeft, length - i);
+				_feedMetaLeft -= count;
+				i += count;
+				if (0 == _feedMetaLeft) {
+					_feedMetaLeft = -1;
+					_feedAudioLeft = _feedMetaint;
+					synchronized (_blockStarts) {
+						_blockStarts[_blockCount % _blockStarts.length] = position + i;
+						_blockCount++;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Body of the server thread.
+	 */
+	private void serve() {
+		String m = "serve";
+		try {
+			while (!_closed) {
+				_selector.select(SELECT_TIMEOUT_MS);
+				long busyStart = System.nanoTime();
+				Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					}
+					else if (key.isReadable()) {
+						readRequest((Client) key.attachment());
+					}
+				}
+				for (int i = _clients.size() - 1; 0 <= i; i--) {
+					Client client = _clients.get(i);
+					try {
+						if (!pump(client)) {
+							closeClient(client);
+						}
+					}
+					catch (IOException e) {
+						closeClient(client);
+					}
+				}
+				_busyNanos += System.nanoTime() - busyStart;
+				WakeupLedger.end(WakeupLedger.RELAY_SERVE, busyStart);
+			}
+		}
+		catch (IOException e) {
+			sop(m,"Caught e=" + e.getMessage());
+		}
+		finally {
+			while (!_clients.isEmpty()) {
+				closeClient(_clients.get(_clients.size() - 1));
+			}
+			try { _serverChannel.close(); } catch (IOException e) { ; }
+			try { _selector.close(); } catch (IOException e) { ; }
+			sop(m,"Stopped. " + getStatsString());
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = _serverChannel.accept();
+		if (null == channel) {
+			return;
+		}
+		if (_clients.size() >= _maxListeners) {
+			_listenersRefused++;
+			channel.close();
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		SelectionKey key = channel.register(_selector, SelectionKey.OP_READ);
+		Client client = new Client(channel, key);
+		key.attach(client);
+		_clients.add(client);
+		_listenerCount = _clients.size();
+	}
+
+	private void closeClient(Client client) {
+		client.key.cancel();
+		try { client.channel.close(); } catch (IOException e) { ; }
+		_clients.remove(client);
+		_listenerCount = _clients.size();
+	}
+
+	/**
+	 * Reads the request of a new listener.  Closes it if the request is not a GET of the stream.
+	 */
+	private void readRequest(Client client) {
+		try {
+			if (null == client.request) {
+				return;
+			}
+			if (0 > client.channel.read(client.request)) {
+				closeClient(client);
+				return;
+			}
+			String request = new String(client.request.array(), 0, client.request.position(), "ISO-8859-1");
+			int end = request.indexOf("\r\n\r\n");
+			if (-1 == end) {
+				if (!client.request.hasRemaining()) {
+					closeClient(client);
+				}
+				return;
+			}
+			String[] lines = request.substring(0, end).split("\r\n");
+			if (!lines[0].startsWith("GET " + PATH)) {
+				closeClient(client);
+				return;
+			}
+			for (String line : lines) {
+				int colon = line.indexOf(':');
+				if (-1 != colon && "Icy-MetaData".equalsIgnoreCase(line.substring(0, colon).trim())) {
+					client.wantsMeta = "1".equals(line.substring(colon + 1).trim());
+				}
+			}
+			client.request = null;
+			client.key.interestOps(0);
+		}
+		catch (IOException e) {
+			closeClient(client);
+		}
+	}
+
+	/**
+	 * Sends a listener what it can take of the stream.  Returns false to disconnect it.
+	 */
+	private boolean pump(Client client) throws IOException {
+		if (null != client.request) {
+			return REQUEST_TIMEOUT_MS > System.currentTimeMillis() - client.acceptMillis;
+		}
+		Upstream upstream = _upstream;
+		if (-1 == client.generation) {
+			if (null == upstream) {
+				return true;
+			}
+			upstream = startClient(client);
+		}
+		else if (null == upstream || upstream.generation != client.generation) {
+			return false;
+		}
+
+		if (null != client.response) {
+			client.channel.write(client.response);
+			if (client.response.hasRemaining()) {
+				client.key.interestOps(SelectionKey.OP_WRITE);
+				return true;
+			}
+			client.response = null;
+		}
+
+		long written = _written;
+		while (client.position < written) {
+			if (written - client.position > MAX_LAG_BYTES) {
+				_listenersDropped++;
+				return false;
+			}
+			int index = (int) (client.position % RING_BYTES);
+			// Short writes keep each send well clear of the upstream's writes.
+			int span = (int) Math.min(Math.min(written - client.position, RING_BYTES - index), MAX_FEED_BYTES);
+			boolean send = true;
+			if (0 < upstream.metaint) {
+				if (0 < client.audioLeft) {
+					span = Math.min(span, client.audioLeft);
+				}
+				else {
+					if (-1 == client.metaLeft) {
+						client.metaLeft = 1 + 16 * (_ring.get(index) & 0xFF);
+					}
+					span = Math.min(span, client.metaLeft);
+					send = client.wantsMeta;
+				}
+			}
+			int count = span;
+			if (send) {
+				client.view.limit(index + span);
+				client.view.position(index);
+				count = client.channel.write(client.view);
+				_bytesOut += count;
+				// The upstream may have overwritten what was just sent.  Only possible for a listener far behind.
+				if (_written + MAX_FEED_BYTES - client.position > RING_BYTES) {
+					_listenersDropped++;
+					return false;
+				}
+			}
+			advance(client, upstream, count);
+			if (count < span) {
+				client.key.interestOps(SelectionKey.OP_WRITE);
+				return true;
+			}
+		}
+		client.key.interestOps(0);
+		return true;
+	}
+
+	/**
+	 * Starts a listener on the current upstream, at a recent audio block start, so that its
+	 * metadata blocks line up.  Returns the upstream.
+	 */
+	private Upstream startClient(Client client) {
+		Upstream upstream;
+		long start;
+		synchronized (_blockStarts) {
+			upstream = _upstream;
+			long written = _written;
+			if (0 == upstream.metaint) {
+				start = Math.max(upstream.start, written - BURST_BYTES);
+			}
+			else {
+				// The newest block start at least a burst back, else the oldest known, else the newest.
+				int newest = _blockCount - 1;
+				int oldest = Math.max(0, _blockCount - _blockStarts.length);
+				start = _blockStarts[oldest % _blockStarts.length];
+				for (int i = newest; i >= oldest; i--) {
+					long blockStart = _blockStarts[i % _blockStarts.length];
+					if (blockStart <= written - BURST_BYTES) {
+						start = blockStart;
+						break;
+					}
+				}
+				if (written - start > MAX_LAG_BYTES / 2) {
+					start = _blockStarts[newest % _blockStarts.length];
+				}
+			}
+		}
+		client.generation = upstream.generation;
+		client.position = start;
+		client.audioLeft = upstream.metaint;
+		client.metaLeft = -1;
+		client.view = _ring.duplicate();
+
+		StringBuilder response = new StringBuilder("HTTP/1.0 200 OK\r\n");
+		response.append("Content-Type: ").append(upstream.contentType).append("\r\n");
+		response.append(upstream.headers);
+		if (client.wantsMeta && 0 < upstream.metaint) {
+			response.append("icy-metaint: ").append(upstream.metaint).append("\r\n");
+		}
+		response.append("Cache-Control: no-cache\r\n");
+		response.append("Connection: close\r\n\r\n");
+		try {
+			client.response = ByteBuffer.wrap(response.toString().getBytes("ISO-8859-1"));
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		_listenersServed++;
+		return upstream;
+	}
+
+	/**
+	 * Moves a listener past bytes sent or skipped.
+	 */
+	private static void advance(Client client, Upstream upstream, int count) {
+		client.position += count;
+		if (0 == upstream.metaint) {
+			return;
+		}
+		if (0 < client.audioLeft) {
+			client.audioLeft -= count;
+			if (0 == client.audioLeft) {
+				client.metaLeft = -1;
+			}
+		}
+		else {
+			client.metaLeft -= count;
+			if (0 == client.metaLeft) {
+				client.metaLeft = -1;
+				client.audioLeft = upstream.metaint;
+			}
+		}
+	}
+}
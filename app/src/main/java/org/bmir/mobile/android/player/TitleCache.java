@@ -0,0 +1,155 @@
+/**
+ * Remembers recently cleaned-up song titles.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU map from a raw title, as found on the status page, to the canonical
+ * cleaned-up title.  A repeated title skips decoding and cleanup, and every repeat
+ * shares the one canonical String.  Titles are truncated to a limit which a tuning reload
+ * may change, so each lookup names its limit, and a new limit empties the cache.  Thread safe.
+ */
+public class TitleCache implements Trimmable {
+
+	/**
+	 * The entries, least recently used first.
+	 */
+	private final LinkedHashMap<String, String> _map;
+
+	/**
+	 * Maximum number of entries.
+	 */
+	private final int _capacity;
+
+	/**
+	 * Longest title, as truncated, of the cached entries.
+	 */
+	private int _maxChars = -1;
+
+	/**
+	 * Statistics.
+	 */
+	private long _hits = 0;
+	private long _misses = 0;
+	private long _evictions = 0;
+	private long _bytesSaved = 0;
+
+	/**
+	 * Constructor
+	 */
+	public TitleCache(int capacity) {
+		_capacity = capacity;
+		_map = new LinkedHashMap<String, String>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				if (size() > _capacity) {
+					_evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns the canonical title for a raw title truncated to maxChars, or null if it is not cached.
+	 */
+	public synchronized String get(String raw, int maxChars) {
+		setMaxChars(maxChars);
+		String title = _map.get(raw);
+		if (null == title) {
+			_misses++;
+		}
+		else {
+			_hits++;
+			// Each hit avoids the decoded, stripped and truncated copies of the title.
+			_bytesSaved += 2L * (raw.length() + 2 * title.length());
+		}
+		return title;
+	}
+
+	/**
+	 * Caches the canonical title for a raw title truncated to maxChars.
+	 */
+	public synchronized void put(String raw, String title, int maxChars) {
+		setMaxChars(maxChars);
+		_map.put(raw, title);
+	}
+
+	/**
+	 * Empties the cache if its entries were truncated to another limit.
+	 * A put from before a reload may bring back the old limit, but the next lookup with the new one empties it again.
+	 */
+	private void setMaxChars(int maxChars) {
+		if (maxChars != _maxChars) {
+			_map.clear();
+			_maxChars = maxChars;
+		}
+	}
+
+	/**
+	 * Removes all entries.  The statistics are kept.
+	 */
+	public synchronized void clear() {
+		_map.clear();
+	}
+
+	/**
+	 * Empties the cache under any memory pressure.  Titles are cheap to clean up again.
+	 */
+	public void trim(int level) {
+		clear();
+	}
+
+	public synchronized long getHits() { return _hits; }
+	public synchronized long getMisses() { return _misses; }
+
+	/**
+	 * Returns the fraction of lookups which were hits.
+	 */
+	public synchronized double getHitRate() {
+		long lookups = _hits + _misses;
+		return (0 == lookups) ? 0 : ((double) _hits / lookups);
+	}
+
+	/**
+	 * Returns an estimate of the bytes held by the cached strings.
+	 */
+	public synchronized long getBytesHeld() {
+		long bytes = 0;
+		for (Map.Entry<String, String> entry : _map.entrySet()) {
+			bytes += 2L * (entry.getKey().length() + entry.getValue().length());
+		}
+		return bytes;
+	}
+
+	/**
+	 * Returns a human-readable summary of the cache statistics.
+	 */
+	public synchronized String getStatsString() {
+		return "entries=" + _map.size()
+				+ " hits=" + _hits
+				+ " misses=" + _misses
+				+ " hitRate=" + Math.round(100 * getHitRate()) + "%"
+				+ " evictions=" + _evictions
+				+ " bytesSaved=" + _bytesSaved
+				+ " bytesHeld=" + getBytesHeld();
+	}
+}
@@ -0,0 +1,220 @@
+/**
+ * Keeps TLS sessions across connections, so that reconnects resume them.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URLConnection;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+
+/**
+ * One SSL context for the whole process, whose client session cache outlives every player, relay and probe.
+ * A reconnect to the same host and port then resumes the cached session with an abbreviated handshake,
+ * instead of paying for a full one.
+ * Counts full and resumed handshakes, and their latency from the socket's creation to the handshake's completion.
+ * Handshakes complete on connection threads, hence the atomic counters.
+ */
+public class TlsSessionCache {
+
+	/**
+	 * Logs messages to the console.
+     * Enable/disable logging here when publishing to Android Market.
+	 */
+	private static final String _logTag = TlsSessionCache.class.getName().toString();
+	private static void sop(String method, String message) {
+		//Log.d(_logTag, method + ": " + message);
+	}
+
+	/**
+	 * Session cache geometry.  A handful of hosts, and sessions kept for as long as a server will resume them.
+	 */
+	public static final int SESSION_CACHE_SIZE = 16;
+	public static final int SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+
+	/**
+	 * The shared socket factory.  Null until first used.
+	 */
+	private static SSLSocketFactory _socketFactory = null;
+
+	/**
+	 * Statistics.
+	 */
+	private static final AtomicInteger _fullHandshakes = new AtomicInteger();
+	private static final AtomicInteger _resumedHandshakes = new AtomicInteger();
+	private static final AtomicLong _fullHandshakeNanos = new AtomicLong();
+	private static final AtomicLong _resumedHandshakeNanos = new AtomicLong();
+
+	/**
+	 * Makes an HTTPS connection use the shared session cache.  Other connections are left alone.
+	 * Call after openConnection() and before connecting.
+	 */
+	public static void prepare(URLConnection connection) {
+		if (connection instanceof HttpsURLConnection) {
+			SSLSocketFactory socketFactory = getSocketFactory();
+			if (null != socketFactory) {
+				((HttpsURLConnection) connection).setSSLSocketFactory(socketFactory);
+			}
+		}
+	}
+
+	/**
+	 * Returns the shared socket factory, or null if TLS is not available, in which case connections keep their default.
+	 */
+	public static synchronized SSLSocketFactory getSocketFactory() {
+		String m = "getSocketFactory";
+		if (null == _socketFactory) {
+			try {
+				init(null);
+			}
+			catch (GeneralSecurityException e) {
+				sop(m,"Using the default socket factory. e=" + e.getMessage());
+			}
+		}
+		return _socketFactory;
+	}
+
+	/**
+	 * Builds the shared context, trusting the platform's certificate authorities if trustManagers is null.
+	 * Forgets any cached sessions.  Tests pass their own trust managers, for a self-signed test certificate.
+	 */
+	static synchronized void init(TrustManager[] trustManagers) throws GeneralSecurityException {
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, trustManagers, null);
+		SSLSessionContext sessions = context.getClientSessionContext();
+		if (null != sessions) {
+			sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+			sessions.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+		}
+		_socketFactory = new CountingSocketFactory(context.getSocketFactory());
+	}
+
+	public static int getFullHandshakes() {
+		return _fullHandshakes.get();
+	}
+
+	public static int getResumedHandshakes() {
+		return _resumedHandshakes.get();
+	}
+
+	/**
+	 * Returns handshake statistics for logging.
+	 */
+	public static String getStatsString() {
+		int full = _fullHandshakes.get();
+		int resumed = _resumedHandshakes.get();
+		return "fullHandshakes=" + full
+				+ " avgFullMs=" + ((0 == full) ? 0 : _fullHandshakeNanos.get() / full / 1000000)
+				+ " resumedHandshakes=" + resumed
+				+ " avgResumedMs=" + ((0 == resumed) ? 0 : _resumedHandshakeNanos.get() / resumed / 1000000);
+	}
+
+	/**
+	 * A session created before the socket was is a resumed one.
+	 */
+	private static void onHandshakeCompleted(HandshakeCompletedEvent event, long startNanos, long startMillis) {
+		String m = "onHandshakeCompleted";
+		long nanos = System.nanoTime() - startNanos;
+		if (event.getSession().getCreationTime() < startMillis) {
+			_resumedHandshakes.incrementAndGet();
+			_resumedHandshakeNanos.addAndGet(nanos);
+			sop(m,"Resumed. ms=" + nanos / 1000000);
+		}
+		else {
+			_fullHandshakes.incrementAndGet();
+			_fullHandshakeNanos.addAndGet(nanos);
+			sop(m,"Full. ms=" + nanos / 1000000);
+		}
+	}
+
+	/**
+	 * Wraps the context's socket factory, to time each socket's handshake.
+	 */
+	private static class CountingSocketFactory extends SSLSocketFactory {
+
+		private final SSLSocketFactory _delegate;
+
+		CountingSocketFactory(SSLSocketFactory delegate) {
+			_delegate = delegate;
+		}
+
+		private Socket watch(Socket socket) {
+			if (socket instanceof SSLSocket) {
+				final long startNanos = System.nanoTime();
+				final long startMillis = System.currentTimeMillis();
+				((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+					public void handshakeCompleted(HandshakeCompletedEvent event) {
+						onHandshakeCompleted(event, startNanos, startMillis);
+					}
+				});
+			}
+			return socket;
+		}
+
+		@Override
+		public String[] getDefaultCipherSuites() {
+			return _delegate.getDefaultCipherSuites();
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites() {
+			return _delegate.getSupportedCipherSuites();
+		}
+
+		@Override
+		public Socket createSocket() throws IOException {
+			return watch(_delegate.createSocket());
+		}
+
+		@Override
+		public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+			return watch(_delegate.createSocket(socket, host, port, autoClose));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException {
+			return watch(_delegate.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+			return watch(_delegate.createSocket(host, port, localHost, localPort));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port) throws IOException {
+			return watch(_delegate.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+			return watch(_delegate.createSocket(address, port, localAddress, localPort));
+		}
+	}
+}
@@ -0,0 +1,36 @@
+/**
+ * A cache or buffer which can give memory back.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+/**
+ * Reports the memory a component holds, and gives some back on request.
+ * Registered with MemoryGovernor.  trim() receives the ComponentCallbacks2 level, and runs on the main thread.
+ * Uses no Android classes.
+ */
+public interface Trimmable {
+
+	/**
+	 * Returns an estimate of the bytes held.
+	 */
+	long getBytesHeld();
+
+	/**
+	 * Releases what the component can spare at the trim level.
+	 */
+	void trim(int level);
+}
@@ -0,0 +1,194 @@
+/**
+ * Performance parameters, tunable in the field without a new build.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Typed registry of timeouts, buffer sizes and poll intervals.
+ * The current Values are one immutable snapshot behind a volatile field: a subsystem reads Tuning.get()
+ * where it uses a value, so a reload applies from its next poll, click or connection, without a restart.
+ * Values come from the properties in the bundled tuning.properties asset, overridden by those in
+ * the app-private file of the same name.  A value which is missing, malformed or out of range keeps its default.
+ * TuningWatcher loads the files, and reloads the override when it changes.  Uses no Android classes.
+ */
+public class Tuning {
+
+	/**
+	 * Logs messages to the console.
+     * Enable/disable logging here when publishing to Android Market.
+	 */
+	private static final String _logTag = Tuning.class.getName().toString();
+	private static void sop(String method, String message) {
+		//Log.d(_logTag, method + ": " + message);
+	}
+
+	/**
+	 * Name of the bundled asset, and of the override file in the app's files directory.
+	 */
+	public static final String FILE_NAME = "tuning.properties";
+
+	/**
+	 * One consistent set of values.
+	 */
+	public static class Values {
+		// Now playing: least time between status queries, safety valve on the lines read, poll and notification intervals.
+		public final long statusDebounceMillis;
+		public final int statusMaxLines;
+		public final int statusConnectTimeoutMillis;
+		public final int statusReadTimeoutMillis;
+		public final long nowPlayingPollMillis;
+		public final long titleNotifyMinMillis;
+
+		// User interface: clicks on the 'dots' image before the player is reset, and the longest Toast message.
+		public final int maxClicksWhilePreparing;
+		public final int maxToastChars;
+
+		// Startup: longest time from the launch of the activity to its first state broadcast.
+		public final long startupBudgetMillis;
+
+		// Start of playback: preroll checks and their limit, and how long a parked player may hold its connection.
+		public final long prerollCheckMillis;
+		public final long prerollMaxWaitMillis;
+		public final long prewarmTimeoutMillis;
+
+		// Stream reader of the codec engine, for players created afterwards.
+		public final int streamConnectTimeoutMillis;
+		public final int streamReadTimeoutMillis;
+		public final int streamLowWatermarkBytes;
+		public final int streamHighWatermarkBytes;
+
+		// Playback engine, one of PlaybackEngine.TYPE_*, for players created afterwards.  The codec engine needs Android API 21.
+		public final int playbackEngine;
+
+		// LAN relay, from the next click on play: serve the stream to nearby devices, and play from a relay found nearby.
+		public final boolean relayEnabled;
+		public final boolean relayDiscovery;
+
+		Values(Properties properties) {
+			statusDebounceMillis = getLong(properties, "status.debounce.ms", 501, 0, 60000);
+			statusMaxLines = (int) getLong(properties, "status.max.lines", 810, 10, 100000);
+			statusConnectTimeoutMillis = (int) getLong(properties, "status.connect.timeout.ms", 10000, 500, 120000);
+			statusReadTimeoutMillis = (int) getLong(properties, "status.read.timeout.ms", 10000, 500, 120000);
+			nowPlayingPollMillis = getLong(properties, "nowplaying.poll.ms", 30000, 5000, 3600000);
+			titleNotifyMinMillis = getLong(properties, "title.notify.min.ms", 10000, 0, 600000);
+			maxClicksWhilePreparing = (int) getLong(properties, "ui.max.clicks.while.preparing", 3, 1, 100);
+			maxToastChars = (int) getLong(properties, "ui.max.toast.chars", 98, 10, 1000);
+			startupBudgetMillis = getLong(properties, "startup.budget.ms", 1000, 100, 60000);
+			prerollCheckMillis = getLong(properties, "preroll.check.ms", 100, 10, 5000);
+			prerollMaxWaitMillis = getLong(properties, "preroll.max.wait.ms", 15000, 0, 120000);
+			prewarmTimeoutMillis = getLong(properties, "prewarm.timeout.ms", 60000, 0, 600000);
+			streamConnectTimeoutMillis = (int) getLong(properties, "stream.connect.timeout.ms", 10000, 500, 120000);
+			streamReadTimeoutMillis = (int) getLong(properties, "stream.read.timeout.ms", 15000, 500, 120000);
+			int low = (int) getLong(properties, "stream.low.watermark.bytes", 64 * 1024, 16 * 1024, 4 * 1024 * 1024);
+			int high = (int) getLong(properties, "stream.high.watermark.bytes", 256 * 1024, 32 * 1024, 8 * 1024 * 1024);
+			if (high <= low) {
+				sop("Values","Ignoring watermarks with high=" + high + " <= low=" + low);
+				low = 64 * 1024;
+				high = 256 * 1024;
+			}
+			streamLowWatermarkBytes = low;
+			streamHighWatermarkBytes = high;
+			// PlaybackEngine.TYPE_MEDIA_PLAYER to TYPE_CODEC, spelled out so that the tools build Tuning on its own.
+			playbackEngine = (int) getLong(properties, "playback.engine", 1, 1, 2);
+			relayEnabled = 1 == getLong(properties, "relay.enabled", 0, 0, 1);
+			relayDiscovery = 1 == getLong(properties, "relay.discovery", 0, 0, 1);
+		}
+
+		@Override
+		public String toString() {
+			return "statusDebounceMs=" + statusDebounceMillis + " statusMaxLines=" + statusMaxLines
+					+ " statusTimeoutsMs=" + statusConnectTimeoutMillis + "/" + statusReadTimeoutMillis
+					+ " nowPlayingPollMs=" + nowPlayingPollMillis + " titleNotifyMinMs=" + titleNotifyMinMillis
+					+ " maxClicksWhilePreparing=" + maxClicksWhilePreparing + " maxToastChars=" + maxToastChars
+					+ " startupBudgetMs=" + startupBudgetMillis
+					+ " prerollCheckMs=" + prerollCheckMillis + " prerollMaxWaitMs=" + prerollMaxWaitMillis
+					+ " prewarmTimeoutMs=" + prewarmTimeoutMillis
+					+ " streamTimeoutsMs=" + streamConnectTimeoutMillis + "/" + streamReadTimeoutMillis
+					+ " streamWatermarks=" + streamLowWatermarkBytes + "/" + streamHighWatermarkBytes
+					+ " playbackEngine=" + playbackEngine
+					+ " relayEnabled=" + relayEnabled + " relayDiscovery=" + relayDiscovery;
+		}
+	}
+
+	/**
+	 * The compiled-in defaults, used until the files are loaded.
+	 */
+	public static final Values DEFAULTS = new Values(new Properties());
+
+	private static volatile Values _current = DEFAULTS;
+
+	/**
+	 * Returns the current values.  Cheap enough to call at every use.
+	 */
+	public static Values get() {
+		return _current;
+	}
+
+	/**
+	 * Loads the bundled properties, then the override properties over them, and makes the result current.
+	 * Either stream may be null.  Returns the new values.
+	 */
+	public static Values load(InputStream bundled, InputStream override) {
+		String m = "load";
+		Properties properties = new Properties();
+		read(properties, bundled, "bundled");
+		read(properties, override, "override");
+		Values values = new Values(properties);
+		_current = values;
+		sop(m,"Tuning: " + values);
+		return values;
+	}
+
+	private static void read(Properties properties, InputStream in, String name) {
+		String m = "read";
+		if (null == in) {
+			return;
+		}
+		try {
+			properties.load(in);
+		}
+		catch (IOException e) {
+			sop(m,"Ignoring the rest of the " + name + " file. e=" + e.getMessage());
+		}
+		catch (IllegalArgumentException e) {
+			sop(m,"Ignoring the rest of the malformed " + name + " file. e=" + e.getMessage());
+		}
+	}
+
+	private static long getLong(Properties properties, String key, long defaultValue, long min, long max) {
+		String m = "getLong";
+		String value = properties.getProperty(key);
+		if (null == value) {
+			return defaultValue;
+		}
+		try {
+			long parsed = Long.parseLong(value.trim());
+			if (min <= parsed && max >= parsed) {
+				return parsed;
+			}
+			sop(m,"Out of range. key=" + key + " value=" + value + " min=" + min + " max=" + max);
+		}
+		catch (NumberFormatException e) {
+			sop(m,"Not a number. key=" + key + " value=" + value);
+		}
+		return defaultValue;
+	}
+}
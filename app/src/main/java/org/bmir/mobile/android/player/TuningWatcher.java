@@ -0,0 +1,125 @@
+/**
+ * Loads the tuning files, and reloads them when they change.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.os.FileObserver;
+
+/**
+ * Loads Tuning from the bundled asset and the app-private override file, off the main thread,
+ * then watches the files directory, so that writing, replacing or deleting the override reloads it.
+ * To replace the override safely, write a temporary file and rename it to Tuning.FILE_NAME.
+ * One watcher for the process.  FileObserver events arrive on its own thread.
+ */
+public class TuningWatcher {
+
+	/**
+	 * Logs messages to the console.
+     * Enable/disable logging here when publishing to Android Market.
+	 */
+	private static final String _logTag = TuningWatcher.class.getName().toString();
+	private static void sop(String method, String message) {
+		//Log.d(_logTag, method + ": " + message);
+	}
+
+	private static final int EVENTS = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO | FileObserver.DELETE | FileObserver.MOVED_FROM;
+
+	/**
+	 * The watcher.  Held here, because a FileObserver which is garbage collected stops watching.
+	 */
+	private static FileObserver _observer = null;
+	private static final Object _reloadLock = new Object();
+
+	/**
+	 * Loads the tuning, and starts watching the override.  Does nothing if already started.  Call from the main thread.
+	 */
+	public static synchronized void start(Context context) {
+		String m = "start";
+		if (null != _observer) {
+			return;
+		}
+		final AssetManager assets = context.getApplicationContext().getAssets();
+		final File override = new File(context.getFilesDir(), Tuning.FILE_NAME);
+		_observer = new FileObserver(override.getParent(), EVENTS) {
+			@Override
+			public void onEvent(int event, String path) {
+				if (Tuning.FILE_NAME.equals(path)) {
+					sop("onEvent","event=" + event);
+					reload(assets, override);
+				}
+			}
+		};
+		_observer.startWatching();
+		new Thread(new Runnable() {
+			public void run() {
+				reload(assets, override);
+			}
+		}, "TuningLoad").start();
+		sop(m,"Watching " + override);
+	}
+
+	/**
+	 * Loads both files.  One at a time, so that the last reload to finish reads the latest override.
+	 */
+	private static void reload(AssetManager assets, File override) {
+		long wakeup = WakeupLedger.begin();
+		synchronized (_reloadLock) {
+			load(assets, override);
+		}
+		WakeupLedger.end(WakeupLedger.TUNING_RELOAD, wakeup);
+	}
+
+	private static void load(AssetManager assets, File override) {
+		String m = "load";
+		InputStream bundled = null;
+		InputStream overriding = null;
+		try {
+			try {
+				bundled = assets.open(Tuning.FILE_NAME);
+			}
+			catch (IOException e) {
+				sop(m,"No bundled tuning. Using defaults. e=" + e.getMessage());
+			}
+			try {
+				if (override.isFile()) {
+					overriding = new FileInputStream(override);
+				}
+			}
+			catch (IOException e) {
+				sop(m,"Cannot read override. e=" + e.getMessage());
+			}
+			Tuning.load(bundled, overriding);
+		}
+		finally {
+			close(bundled);
+			close(overriding);
+		}
+	}
+
+	private static void close(InputStream in) {
+		if (null != in) {
+			try { in.close(); } catch (IOException e) { ; }
+		}
+	}
+}
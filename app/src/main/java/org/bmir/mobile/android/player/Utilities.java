@@ -15,7 +15,6 @@
  */
 package org.bmir.mobile.android.player;
 
-import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
@@ -61,27 +60,23 @@ public class Utilities {
 		return rc;
 	}
 	
-	/** 
-	 * Checks whether a server is pingable on the network.
-	 * TODO: Suppress caching.
+	/**
+	 * Resolves a hostname on a background thread so that later connections find it in the DNS cache.
 	 */
-	public static boolean ipAvailable(String hostname) {
-		String m = "ipAvailable";
-		int timeout = 3000; // ms
-		try {
-			//java.security.Security.setProperty("networkaddress.cache.ttl", "0");
-			InetAddress.getByName(hostname).isReachable(timeout);
-			Log.e(m,"Hostname is pingable. hostname=" + hostname);
-			return true;
-		} catch (UnknownHostException e) {
-			Log.e(m,"Hostname is unknown. hostname=" + hostname);
-			return false;
-		} catch (IOException e) {
-			Log.e(m,"Hostname is not pingable. hostname=" + hostname);
-			return false;
-		}
+	public static void prefetchHostAddress(final String hostname) {
+		new Thread(new Runnable() {
+			public void run() {
+				String m = "prefetchHostAddress";
+				try {
+					InetAddress.getByName(hostname);
+					sop(m,"Resolved hostname=" + hostname);
+				} catch (UnknownHostException e) {
+					sop(m,"Hostname is unknown. hostname=" + hostname);
+				}
+			}
+		}).start();
 	}
-	
+
 	/**
 	 * Checks whether a service is reachable via 'HTTP HEAD' request.
 	 */
@@ -105,6 +100,7 @@ public class Utilities {
 		sop(m,"url=" + url);
 		try {
 			URLConnection urlConnection = url.openConnection();
+			TlsSessionCache.prepare(urlConnection);
 			HttpURLConnection httpURLConnection = (HttpURLConnection)urlConnection;
 		    httpURLConnection.setRequestMethod("HEAD");
 		    int responseCode = httpURLConnection.getResponseCode();
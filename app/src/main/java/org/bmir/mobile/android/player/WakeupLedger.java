@@ -0,0 +1,190 @@
+/**
+ * Counts how often our own code wakes the CPU, per subsystem.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Wakeups, runs and busy time of each subsystem: timers, polls, notification rebuilds, broadcasts and thread loops.
+ * A subsystem calls begin() when it starts, and end() when a wakeup of its own is done, or endRun() when work
+ * done within another wakeup, such as a notification rebuild, is done.  Busy time is the time between,
+ * an upper bound on the CPU time it took.  Counters are atomic, as subsystems run on many threads.
+ * Scheduled wakeups are those our own code chooses to make, such as timers.  They have a budget
+ * per minute of steady-state playback.  Data wakeups follow the stream, and are reported but not budgeted.
+ * Uses no Android classes.
+ */
+public class WakeupLedger {
+
+	/**
+	 * Subsystems.  Add new ones at the end, with a name in NAMES and a flag in SCHEDULED.
+	 * Status fetches, notifications and broadcasts are runs within the wakeups of others.
+	 */
+	public static final int POLL_TIMER = 0;
+	public static final int STATUS_FETCH = 1;
+	public static final int TITLE_TIMER = 2;
+	public static final int NOTIFICATION = 3;
+	public static final int BROADCAST = 4;
+	public static final int PREROLL_TIMER = 5;
+	public static final int PREWARM_TIMER = 6;
+	public static final int FOCUS_RAMP = 7;
+	public static final int EVENT_SPILL = 8;
+	public static final int TUNING_RELOAD = 9;
+	public static final int STREAM_READ = 10;
+	public static final int LEVEL_REPORT = 11;
+	public static final int RELAY_UPSTREAM = 12;
+	public static final int RELAY_SERVE = 13;
+	public static final int COUNT = 14;
+
+	private static final String[] NAMES = {
+		"pollTimer", "statusFetch", "titleTimer", "notification", "broadcast", "prerollTimer", "prewarmTimer",
+		"focusRamp", "eventSpill", "tuningReload", "streamRead", "levelReport", "relayUpstream", "relayServe"
+	};
+	private static final boolean[] SCHEDULED = {
+		true, true, true, true, true, true, true,
+		true, true, true, false, false, false, false
+	};
+
+	/**
+	 * Most scheduled wakeups per minute of steady-state playback.
+	 * The now playing poll takes 2 at the default 30 second interval, which leaves room for title changes.
+	 */
+	public static final double BUDGET_SCHEDULED_PER_MINUTE = 8;
+
+	/**
+	 * Source of the elapsed time of a measurement, in milliseconds.
+	 */
+	public interface Clock {
+		long elapsedMillis();
+	}
+
+	private static final AtomicLongArray _wakeups = new AtomicLongArray(COUNT);
+	private static final AtomicLongArray _runs = new AtomicLongArray(COUNT);
+	private static final AtomicLongArray _busyNanos = new AtomicLongArray(COUNT);
+	private static volatile Clock _clock = null;
+	private static volatile long _startMillis = now();
+
+	/**
+	 * Sets the clock of the rates, and starts a new measurement.  System.nanoTime() until set.
+	 * PlayerService sets the clock of its session times, which a Robolectric test advances with the main looper.
+	 */
+	public static void setClock(Clock clock) {
+		_clock = clock;
+		reset();
+	}
+
+	private static long now() {
+		Clock clock = _clock;
+		return (null == clock) ? System.nanoTime() / 1000000 : clock.elapsedMillis();
+	}
+
+	/**
+	 * Marks the start of a wakeup or run.  Returns the time to pass to end() or endRun().
+	 */
+	public static long begin() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Counts a wakeup of the subsystem, busy since begin() returned the time.
+	 */
+	public static void end(int subsystem, long beginNanos) {
+		_wakeups.incrementAndGet(subsystem);
+		endRun(subsystem, beginNanos);
+	}
+
+	/**
+	 * Counts a run of the subsystem within another wakeup, busy since begin() returned the time.
+	 */
+	public static void endRun(int subsystem, long beginNanos) {
+		_runs.incrementAndGet(subsystem);
+		_busyNanos.addAndGet(subsystem, System.nanoTime() - beginNanos);
+	}
+
+	/**
+	 * Starts a new measurement, for example at the start of a listening session.
+	 */
+	public static void reset() {
+		for (int i = 0; i < COUNT; i++) {
+			_wakeups.set(i, 0);
+			_runs.set(i, 0);
+			_busyNanos.set(i, 0);
+		}
+		_startMillis = now();
+	}
+
+	public static long getWakeups(int subsystem) {
+		return _wakeups.get(subsystem);
+	}
+
+	public static long getRuns(int subsystem) {
+		return _runs.get(subsystem);
+	}
+
+	public static long getElapsedMillis() {
+		return Math.max(1, now() - _startMillis);
+	}
+
+	/**
+	 * Returns the scheduled wakeups per minute since the last reset.
+	 */
+	public static double getScheduledPerMinute() {
+		long wakeups = 0;
+		for (int i = 0; i < COUNT; i++) {
+			if (SCHEDULED[i]) {
+				wakeups += _wakeups.get(i);
+			}
+		}
+		return wakeups * 60000.0 / getElapsedMillis();
+	}
+
+	/**
+	 * Returns the busy milliseconds per hour since the last reset, of all subsystems.
+	 */
+	public static long getBusyMillisPerHour() {
+		long nanos = 0;
+		for (int i = 0; i < COUNT; i++) {
+			nanos += _busyNanos.get(i);
+		}
+		return nanos * 3600 / getElapsedMillis() / 1000;
+	}
+
+	public static boolean isWithinBudget() {
+		return BUDGET_SCHEDULED_PER_MINUTE >= getScheduledPerMinute();
+	}
+
+	/**
+	 * Returns the wakeups and runs per minute, and busy milliseconds per hour, of each subsystem which ran.
+	 */
+	public static String getStatsString() {
+		long elapsed = getElapsedMillis();
+		StringBuilder stats = new StringBuilder("elapsedMs=").append(elapsed)
+				.append(" scheduledPerMin=").append(String.format("%.2f", getScheduledPerMinute()))
+				.append(" budgetPerMin=").append(String.format("%.0f", BUDGET_SCHEDULED_PER_MINUTE))
+				.append(" busyMsPerHour=").append(getBusyMillisPerHour());
+		for (int i = 0; i < COUNT; i++) {
+			long runs = _runs.get(i);
+			if (0 < runs) {
+				stats.append(' ').append(NAMES[i]).append('=')
+						.append(String.format("%.2f", _wakeups.get(i) * 60000.0 / elapsed)).append("w/min,")
+						.append(String.format("%.2f", runs * 60000.0 / elapsed)).append("r/min,")
+						.append(_busyNanos.get(i) * 3600 / elapsed / 1000).append("ms/h");
+			}
+		}
+		return stats.toString();
+	}
+}
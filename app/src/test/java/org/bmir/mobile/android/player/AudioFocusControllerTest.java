@@ -0,0 +1,145 @@
+/**
+ * Tests of the volume control of AudioFocusController.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.util.ReflectionHelpers;
+
+import android.media.AudioManager;
+import android.os.HandlerThread;
+
+/**
+ * Ducks a player, then hands over to another, as a network handover does.
+ * Robolectric runs the ramp thread's messages only when the test advances its scheduler.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 25)
+public class AudioFocusControllerTest {
+
+	private static final float DELTA = 0.001f;
+	private static final long STEP_MILLIS = 10;
+
+	private AudioFocusController _focus;
+
+	@Before
+	public void setUp() {
+		_focus = new AudioFocusController(RuntimeEnvironment.application, new AudioManager.OnAudioFocusChangeListener() {
+			public void onAudioFocusChange(int focusChange) {
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		_focus.release();
+	}
+
+	@Test
+	public void testSetPlayerIsFullVolume() {
+		FakeEngine player = new FakeEngine();
+		_focus.setPlayer(player);
+		runRamp();
+		assertEquals(AudioFocusController.FULL_VOLUME, player.volume, DELTA);
+	}
+
+	@Test
+	public void testHandOverWhileDucked() {
+		FakeEngine oldPlayer = new FakeEngine();
+		_focus.setPlayer(oldPlayer);
+		_focus.duck();
+		runRamp();
+		assertEquals(AudioFocusController.DUCK_VOLUME, oldPlayer.volume, DELTA);
+
+		FakeEngine newPlayer = new FakeEngine();
+		_focus.handOverTo(newPlayer);
+		assertEquals(AudioFocusController.DUCK_VOLUME, newPlayer.volume, DELTA);
+		runRamp();
+		assertEquals(AudioFocusController.DUCK_VOLUME, newPlayer.volume, DELTA);
+
+		_focus.unduck();
+		runRamp();
+		assertEquals(AudioFocusController.FULL_VOLUME, newPlayer.volume, DELTA);
+		assertEquals(AudioFocusController.DUCK_VOLUME, oldPlayer.volume, DELTA);
+	}
+
+	/**
+	 * A handover in the middle of a ramp starts the new player where the ramp is, and the ramp goes on with it.
+	 */
+	@Test
+	public void testHandOverDuringRamp() {
+		FakeEngine oldPlayer = new FakeEngine();
+		_focus.setPlayer(oldPlayer);
+		runRamp();
+		_focus.duck();
+		runRamp(100);
+		float volume = oldPlayer.volume;
+
+		FakeEngine newPlayer = new FakeEngine();
+		_focus.handOverTo(newPlayer);
+		assertEquals(volume, newPlayer.volume, DELTA);
+		runRamp();
+		assertEquals(AudioFocusController.DUCK_VOLUME, newPlayer.volume, DELTA);
+		assertEquals(volume, oldPlayer.volume, DELTA);
+	}
+
+	private void runRamp() {
+		runRamp(1000);
+	}
+
+	/**
+	 * Runs the ramp thread's messages due within the milliseconds.  The ramp times itself by SystemClock,
+	 * which follows the main looper's clock, so the two clocks advance together, a step at a time.
+	 */
+	private void runRamp(long millis) {
+		HandlerThread rampThread = ReflectionHelpers.getField(_focus, "_rampThread");
+		ShadowLooper rampLooper = Shadows.shadowOf(rampThread.getLooper());
+		rampLooper.idle();
+		for (long elapsed = 0; elapsed < millis; elapsed += STEP_MILLIS) {
+			ShadowLooper.idleMainLooper(STEP_MILLIS);
+			rampLooper.idle(STEP_MILLIS);
+		}
+	}
+
+	/**
+	 * A player which only keeps its volume.
+	 */
+	private static class FakeEngine implements PlaybackEngine {
+		volatile float volume = -1;
+
+		public int getType() { return TYPE_CODEC; }
+		public void prepareAsync() { }
+		public void start() { }
+		public void pause() { }
+		public void stop() { }
+		public void release() { }
+		public boolean isPlaying() { return true; }
+		public long getBufferedMillis() { return -1; }
+		public void setVolume(float volume) { this.volume = volume; }
+		public String getStatsString() { return ""; }
+	}
+}
@@ -0,0 +1,171 @@
+/**
+ * Tests of EventRecorder.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * The recorder is one per process, so the tests share it, and each test tags its events with its own id.
+ */
+public class EventRecorderTest {
+
+	private static File _directory;
+
+	@BeforeClass
+	public static void setUpClass() throws IOException {
+		_directory = Files.createTempDirectory("events").toFile();
+		EventRecorder.get().start(_directory);
+	}
+
+	/**
+	 * Laps the spill thread many times over.  Every event which reaches the file must be whole and in order.
+	 */
+	@Test
+	public void testLappedSpillIsNotTorn() throws Exception {
+		EventRecorder recorder = EventRecorder.get();
+		int id = 1000;
+		long count = 2000000;
+		for (long i = 0; i < count; i++) {
+			recorder.record(id, i, ~i);
+		}
+		waitForSpill(recorder, id, count - 1);
+
+		long spilled = checkFile(new File(_directory, EventRecorder.FILE_NAME + ".old"), id)
+				+ checkFile(recorder.getFile(), id);
+		assertTrue("spilled=" + spilled, 0 < spilled);
+	}
+
+	/**
+	 * Recording an event must cost at most a microsecond on average, far less on a desktop JVM.
+	 */
+	@Test
+	public void testRecordCost() {
+		EventRecorder recorder = EventRecorder.get();
+		int id = 1001;
+		long count = 5000000;
+		for (long i = 0; i < count; i++) {
+			recorder.record(id, i, ~i);
+		}
+		long start = System.nanoTime();
+		for (long i = 0; i < count; i++) {
+			recorder.record(id, i, ~i);
+		}
+		long nanosPerEvent = (System.nanoTime() - start) / count;
+		assertTrue("nanosPerEvent=" + nanosPerEvent, 1000 >= nanosPerEvent);
+	}
+
+	/**
+	 * Waits until the last event of a test reaches the file.
+	 */
+	private static void waitForSpill(EventRecorder recorder, int id, long lastArg) throws Exception {
+		long deadline = System.currentTimeMillis() + 30000;
+		while (System.currentTimeMillis() < deadline) {
+			recorder.flush();
+			if (lastArg == readLastArg(recorder.getFile(), id)) {
+				return;
+			}
+			Thread.sleep(20);
+		}
+		throw new AssertionError("The last event was not spilled.");
+	}
+
+	/**
+	 * Checks the events of a test in a dump file, and returns their count.
+	 */
+	private static long checkFile(File file, int id) throws IOException {
+		if (!file.exists()) {
+			return 0;
+		}
+		DataInputStream data = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			assertEquals(EventRecorder.MAGIC, data.readInt());
+			assertEquals(EventRecorder.VERSION, data.readInt());
+			data.readLong();
+			data.readLong();
+			long count = 0;
+			long previousArg = -1;
+			long previousNanos = Long.MIN_VALUE;
+			while (true) {
+				int eventId;
+				try {
+					eventId = data.readInt();
+				}
+				catch (EOFException e) {
+					break;
+				}
+				long nanos = data.readLong();
+				long arg0 = data.readLong();
+				long arg1 = data.readLong();
+				if (id != eventId) {
+					continue;
+				}
+				assertEquals("Torn event at arg0=" + arg0, ~arg0, arg1);
+				assertTrue("Out of order at arg0=" + arg0, previousArg < arg0);
+				assertTrue("Timestamp out of order at arg0=" + arg0, previousNanos <= nanos);
+				previousArg = arg0;
+				previousNanos = nanos;
+				count++;
+			}
+			return count;
+		}
+		finally {
+			data.close();
+		}
+	}
+
+	/**
+	 * Returns the first argument of the last event of a test in a dump file, or -1.
+	 */
+	private static long readLastArg(File file, int id) throws IOException {
+		long length = file.length();
+		if (length < EventRecorder.HEADER_BYTES + EventRecorder.RECORD_BYTES) {
+			return -1;
+		}
+		DataInputStream data = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			long records = (length - EventRecorder.HEADER_BYTES) / EventRecorder.RECORD_BYTES;
+			data.skipBytes(EventRecorder.HEADER_BYTES);
+			long lastArg = -1;
+			for (long i = 0; i < records; i++) {
+				int eventId = data.readInt();
+				data.readLong();
+				long arg0 = data.readLong();
+				data.readLong();
+				if (id == eventId) {
+					lastArg = arg0;
+				}
+			}
+			return lastArg;
+		}
+		finally {
+			data.close();
+		}
+	}
+}
@@ -0,0 +1,454 @@
+/**
+ * A local stand-in for the Icecast server, for tests of the stream and status paths.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves, on 127.0.0.1, ignoring any query string:
+ *   MOUNT    a looping MP3 stream of silent 128 kbit/s frames, with ICY headers, and ICY metadata if asked for
+ *   / and /status.xsl   a status page in the layout of Icecast 2.3, with the current title
+ * Answers "ICY 200 OK" like SHOUTcast instead of "HTTP/1.0 200 OK" if asked to.
+ * The status page honours gzip, deflate and ranges only where switched on.
+ *
+ * Faults apply to requests which arrive afterwards:
+ *   latency      delay before the response headers, for every request
+ *   error        an HTTP status, such as 503, for the next so many requests
+ *   throttle     the most stream bytes per second
+ *   reset        abort the stream connection with a TCP reset after so many body bytes
+ *
+ * Each connection runs on its own daemon thread, named THREAD_PREFIX plus a number, so that harnesses
+ * can tell the server's threads from the app's.
+ */
+public class FakeIcecastServer {
+
+	public static final String MOUNT = "/live";
+	public static final String THREAD_PREFIX = "FakeIcecast-";
+	public static final int BITRATE_KBPS = 128;
+	public static final int METAINT = 16000;
+
+	/**
+	 * One MPEG-1 Layer III frame: 128 kbit/s, 44.1 kHz, stereo, no padding, no CRC.  417 bytes, 26 ms of silence.
+	 */
+	public static final int FRAME_BYTES = 417;
+	private static final byte[] FRAME = new byte[FRAME_BYTES];
+	static {
+		FRAME[0] = (byte) 0xFF;
+		FRAME[1] = (byte) 0xFB;
+		FRAME[2] = (byte) 0x90;
+		FRAME[3] = (byte) 0x00;
+	}
+
+	private ServerSocket _server = null;
+	private final Set<Socket> _sockets = new HashSet<Socket>();
+	private final AtomicInteger _threadNumber = new AtomicInteger();
+
+	private volatile String _title = "Goodiebag - hestedoktoren";
+	private volatile boolean _shoutcast = false;
+	private volatile boolean _gzip = false;
+	private volatile boolean _deflate = false;
+	private volatile boolean _ranges = false;
+	private volatile byte[] _statusPadding = new byte[0];
+
+	private volatile long _latencyMillis = 0;
+	private volatile int _throttleBytesPerSecond = 0;
+	private volatile long _resetAfterBytes = 0;
+	private volatile int _errorStatus = 0;
+	private final AtomicInteger _errorsLeft = new AtomicInteger();
+
+	private final AtomicInteger _streamRequests = new AtomicInteger();
+	private final AtomicInteger _statusRequests = new AtomicInteger();
+	private final AtomicInteger _errorsSent = new AtomicInteger();
+	private final AtomicInteger _resetsSent = new AtomicInteger();
+	private final AtomicLong _streamBytes = new AtomicLong();
+
+	/**
+	 * Starts listening on an ephemeral port.
+	 */
+	public void start() throws IOException {
+		_server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				acceptLoop();
+			}
+		}, THREAD_PREFIX + "accept");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops listening, and drops every connection.
+	 */
+	public void close() {
+		try { _server.close(); } catch (IOException e) { ; }
+		synchronized (_sockets) {
+			for (Socket socket : _sockets) {
+				try { socket.close(); } catch (IOException e) { ; }
+			}
+			_sockets.clear();
+		}
+	}
+
+	public int getPort() { return _server.getLocalPort(); }
+	public String getHostname() { return "127.0.0.1"; }
+	public String getStreamURLString() { return "http://127.0.0.1:" + getPort() + MOUNT; }
+	public String getStatusURLString() { return "http://127.0.0.1:" + getPort() + "/"; }
+
+	public void setTitle(String title) { _title = title; }
+	public String getTitle() { return _title; }
+	public void setShoutcast(boolean shoutcast) { _shoutcast = shoutcast; }
+
+	/**
+	 * Sets what the status page honours, and how many bytes of listener rows follow the current song.
+	 */
+	public void setStatusSupport(boolean gzip, boolean deflate, boolean ranges, int paddingBytes) {
+		_gzip = gzip;
+		_deflate = deflate;
+		_ranges = ranges;
+		StringBuilder padding = new StringBuilder();
+		for (int i = 0; padding.length() < paddingBytes; i++) {
+			padding.append("<tr><td>Listener ").append(i).append(":</td><td class=\"streamdata\">connected ").append(i * 37 % 1000).append(" s</td></tr>\n");
+		}
+		_statusPadding = toBytes(padding.toString());
+	}
+
+	public void setLatency(long millis) { _latencyMillis = millis; }
+	public void setThrottle(int bytesPerSecond) { _throttleBytesPerSecond = bytesPerSecond; }
+	public void setResetAfter(long bytes) { _resetAfterBytes = bytes; }
+
+	/**
+	 * Answers the next count requests with the HTTP status, such as 503.
+	 */
+	public void setError(int status, int count) {
+		_errorStatus = status;
+		_errorsLeft.set(count);
+	}
+
+	/**
+	 * Clears all faults.
+	 */
+	public void clearFaults() {
+		setLatency(0);
+		setThrottle(0);
+		setResetAfter(0);
+		setError(0, 0);
+	}
+
+	public int getStreamRequests() { return _streamRequests.get(); }
+	public int getStatusRequests() { return _statusRequests.get(); }
+	public int getErrorsSent() { return _errorsSent.get(); }
+	public int getResetsSent() { return _resetsSent.get(); }
+	public long getStreamBytes() { return _streamBytes.get(); }
+
+	/**
+	 * Returns the count of open connections.
+	 */
+	public int getConnectionCount() {
+		synchronized (_sockets) {
+			return _sockets.size();
+		}
+	}
+
+	/**
+	 * Returns the stream byte at a position, with no metadata: the frame header, or silence.
+	 */
+	public static byte getStreamByte(long position) {
+		return FRAME[(int) (position % FRAME_BYTES)];
+	}
+
+	private void acceptLoop() {
+		while (!_server.isClosed()) {
+			final Socket socket;
+			try {
+				socket = _server.accept();
+			}
+			catch (IOException e) {
+				return;
+			}
+			synchronized (_sockets) {
+				_sockets.add(socket);
+			}
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					try {
+						answer(socket);
+					}
+					catch (IOException e) {
+						// The client hung up, or the server is closing.
+					}
+					catch (InterruptedException e) {
+						// The server is closing.
+					}
+					finally {
+						synchronized (_sockets) {
+							_sockets.remove(socket);
+						}
+						try { socket.close(); } catch (IOException e) { ; }
+					}
+				}
+			}, THREAD_PREFIX + _threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	private void answer(Socket socket) throws IOException, InterruptedException {
+		InputStream in = socket.getInputStream();
+		String requestLine = readLine(in);
+		if (null == requestLine) {
+			return;
+		}
+		boolean icyMetadata = false;
+		String acceptEncoding = "";
+		String range = null;
+		String line;
+		while (null != (line = readLine(in)) && 0 < line.length()) {
+			int colon = line.indexOf(':');
+			if (-1 == colon) {
+				continue;
+			}
+			String name = line.substring(0, colon).trim();
+			String value = line.substring(colon + 1).trim();
+			if ("Icy-MetaData".equalsIgnoreCase(name)) {
+				icyMetadata = "1".equals(value);
+			}
+			else if ("Accept-Encoding".equalsIgnoreCase(name)) {
+				acceptEncoding = value;
+			}
+			else if ("Range".equalsIgnoreCase(name)) {
+				range = value;
+			}
+		}
+		String[] parts = requestLine.split(" ");
+		String path = (2 <= parts.length) ? parts[1] : "/";
+		int query = path.indexOf('?');
+		if (-1 != query) {
+			path = path.substring(0, query);
+		}
+
+		long latency = _latencyMillis;
+		if (0 < latency) {
+			Thread.sleep(latency);
+		}
+		OutputStream out = socket.getOutputStream();
+		int status = _errorStatus;
+		if (0 != status && 0 <= _errorsLeft.decrementAndGet()) {
+			_errorsSent.incrementAndGet();
+			out.write(toBytes("HTTP/1.0 " + status + " Fault\r\nContent-Type: text/plain\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"));
+			out.flush();
+			return;
+		}
+
+		if (MOUNT.equals(path)) {
+			_streamRequests.incrementAndGet();
+			serveStream(socket, out, icyMetadata);
+		}
+		else if ("/".equals(path) || "/status.xsl".equals(path)) {
+			_statusRequests.incrementAndGet();
+			serveStatus(out, acceptEncoding, range);
+		}
+		else {
+			out.write(toBytes("HTTP/1.0 404 Not Found\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"));
+			out.flush();
+		}
+	}
+
+	private void serveStream(Socket socket, OutputStream out, boolean icyMetadata) throws IOException, InterruptedException {
+		StringBuilder header = new StringBuilder(_shoutcast ? "ICY 200 OK\r\n" : "HTTP/1.0 200 OK\r\n");
+		header.append("Content-Type: audio/mpeg\r\n");
+		header.append("icy-name: ShoutingFire\r\n");
+		header.append("icy-genre: Electronic\r\n");
+		header.append("icy-pub: 1\r\n");
+		header.append("icy-br: ").append(BITRATE_KBPS).append("\r\n");
+		if (icyMetadata) {
+			header.append("icy-metaint: ").append(METAINT).append("\r\n");
+		}
+		header.append("Cache-Control: no-cache\r\n\r\n");
+		out.write(toBytes(header.toString()));
+
+		int throttle = _throttleBytesPerSecond;
+		long resetAfter = _resetAfterBytes;
+		byte[] chunk = new byte[1024];
+		long position = 0;
+		long untilMetadata = METAINT;
+		String sentTitle = null;
+		long startNanos = System.nanoTime();
+		while (true) {
+			int count = chunk.length;
+			if (icyMetadata) {
+				count = (int) Math.min(count, untilMetadata);
+			}
+			if (0 < resetAfter) {
+				count = (int) Math.min(count, resetAfter - position);
+				if (0 >= count) {
+					_resetsSent.incrementAndGet();
+					socket.setSoLinger(true, 0);
+					socket.close();
+					return;
+				}
+			}
+			for (int i = 0; i < count; i++) {
+				chunk[i] = getStreamByte(position + i);
+			}
+			out.write(chunk, 0, count);
+			position += count;
+			_streamBytes.addAndGet(count);
+			if (icyMetadata) {
+				untilMetadata -= count;
+				if (0 == untilMetadata) {
+					String title = _title;
+					out.write(makeMetadata(title.equals(sentTitle) ? null : title));
+					sentTitle = title;
+					untilMetadata = METAINT;
+				}
+			}
+			if (0 < throttle) {
+				long aheadMillis = position * 1000 / throttle - (System.nanoTime() - startNanos) / 1000000;
+				if (0 < aheadMillis) {
+					Thread.sleep(aheadMillis);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns an ICY metadata block: a length byte in units of 16 bytes, then the padded text.
+	 * A null title gives the empty block which says that nothing changed.
+	 */
+	static byte[] makeMetadata(String title) {
+		if (null == title) {
+			return new byte[] { 0 };
+		}
+		byte[] text = toBytes("StreamTitle='" + title.replace("'", "\\'") + "';");
+		int blocks = Math.min(255, (text.length + 15) / 16);
+		byte[] metadata = new byte[1 + blocks * 16];
+		metadata[0] = (byte) blocks;
+		System.arraycopy(text, 0, metadata, 1, Math.min(text.length, blocks * 16));
+		return metadata;
+	}
+
+	private void serveStatus(OutputStream out, String acceptEncoding, String range) throws IOException {
+		byte[] body = makeStatusPage();
+		String encoding = null;
+		if (_gzip && -1 != acceptEncoding.indexOf("gzip")) {
+			body = compress(body, true);
+			encoding = "gzip";
+		}
+		else if (_deflate && -1 != acceptEncoding.indexOf("deflate")) {
+			body = compress(body, false);
+			encoding = "deflate";
+		}
+
+		StringBuilder header = new StringBuilder();
+		int first = 0;
+		int last = body.length - 1;
+		if (_ranges && null != range && range.startsWith("bytes=")) {
+			int dash = range.indexOf('-');
+			first = Integer.parseInt(range.substring(6, dash));
+			last = Math.min(last, Integer.parseInt(range.substring(dash + 1)));
+			if (first >= body.length) {
+				header.append("HTTP/1.1 416 Range Not Satisfiable\r\nContent-Range: bytes */").append(body.length).append("\r\n");
+				header.append("Content-Length: 0\r\nConnection: close\r\n\r\n");
+				out.write(toBytes(header.toString()));
+				return;
+			}
+			header.append("HTTP/1.1 206 Partial Content\r\n");
+			header.append("Content-Range: bytes ").append(first).append('-').append(last).append('/').append(body.length).append("\r\n");
+		}
+		else {
+			header.append("HTTP/1.1 200 OK\r\n");
+		}
+		if (_ranges) {
+			header.append("Accept-Ranges: bytes\r\n");
+		}
+		if (null != encoding) {
+			header.append("Content-Encoding: ").append(encoding).append("\r\n");
+		}
+		header.append("Content-Type: text/html; charset=UTF-8\r\n");
+		header.append("Content-Length: ").append(last - first + 1).append("\r\n");
+		header.append("Connection: close\r\n\r\n");
+		out.write(toBytes(header.toString()));
+		out.write(body, first, last - first + 1);
+		out.flush();
+	}
+
+	/**
+	 * Returns the status page, with the current title escaped as Icecast does.
+	 */
+	private byte[] makeStatusPage() throws IOException {
+		String title = _title.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;").replace("'", "&apos;");
+		StringBuilder page = new StringBuilder("<html>\n<head><title>Icecast Streaming Media Server</title></head>\n<body>\n");
+		page.append("<h3>Mount Point ").append(MOUNT).append("</h3>\n<table border=\"0\" cellpadding=\"4\">\n");
+		page.append("<tr>\n<td>Stream Title:</td>\n<td class=\"streamdata\">ShoutingFire</td>\n</tr>\n");
+		page.append("<tr>\n<td>Bitrate:</td>\n<td class=\"streamdata\">").append(BITRATE_KBPS).append("</td>\n</tr>\n");
+		page.append("<tr>\n<td>Current Song:</td>\n<td class=\"streamdata\">").append(title).append("</td>\n</tr>\n");
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		bytes.write(page.toString().getBytes("UTF-8"));
+		bytes.write(_statusPadding);
+		bytes.write(toBytes("</table>\n</body>\n</html>\n"));
+		return bytes.toByteArray();
+	}
+
+	private static byte[] compress(byte[] bytes, boolean gzip) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DeflaterOutputStream deflater = gzip ? new GZIPOutputStream(out) : new DeflaterOutputStream(out);
+		deflater.write(bytes);
+		deflater.close();
+		return out.toByteArray();
+	}
+
+	/**
+	 * Reads a CRLF-terminated header line, or returns null at the end of the stream.
+	 */
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while (-1 != (c = in.read())) {
+			if ('\n' == c) {
+				int length = line.length();
+				if (0 < length && '\r' == line.charAt(length - 1)) {
+					line.setLength(length - 1);
+				}
+				return line.toString();
+			}
+			line.append((char) c);
+		}
+		return (0 == line.length()) ? null : line.toString();
+	}
+
+	private static byte[] toBytes(String string) {
+		try {
+			return string.getBytes("ISO-8859-1");
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
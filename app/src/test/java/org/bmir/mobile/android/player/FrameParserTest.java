@@ -0,0 +1,141 @@
+/**
+ * Tests of FrameParser.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * The headers checked here are those of the streams the app plays: MP3 at 128 kbit/s, and AAC in ADTS.
+ */
+public class FrameParserTest {
+
+	private static final byte[] MP3_128 = { (byte) 0xFF, (byte) 0xFB, (byte) 0x90, (byte) 0x00 };
+	private static final byte[] MP3_128_PADDED = { (byte) 0xFF, (byte) 0xFB, (byte) 0x92, (byte) 0x00 };
+
+	/**
+	 * MPEG-2 Layer III, 64 kbit/s, 22.05 kHz, mono.
+	 */
+	private static final byte[] MP3_MPEG2_64 = { (byte) 0xFF, (byte) 0xF3, (byte) 0x80, (byte) 0xC0 };
+
+	/**
+	 * AAC LC, 44.1 kHz, stereo, no CRC, 371 bytes.
+	 */
+	private static final byte[] ADTS_371 = { (byte) 0xFF, (byte) 0xF1, (byte) 0x50, (byte) 0x80, (byte) 0x2E, (byte) 0x7F, (byte) 0xFC };
+
+	@Test
+	public void testMp3() {
+		FrameParser.Header header = new FrameParser.Header();
+		assertEquals(417, FrameParser.parse(frame(MP3_128, 417), 0, header));
+		assertEquals(FrameParser.FORMAT_MP3, header.format);
+		assertEquals(44100, header.sampleRate);
+		assertEquals(2, header.channels);
+		assertEquals(128, header.bitrateKbps);
+		assertEquals(26122, header.getDurationMicros());
+		assertEquals(FrameParser.MIME_MP3, header.getMime());
+		assertEquals(418, FrameParser.parse(frame(MP3_128_PADDED, 418), 0, header));
+	}
+
+	@Test
+	public void testMp3Mpeg2() {
+		FrameParser.Header header = new FrameParser.Header();
+		assertEquals(208, FrameParser.parse(frame(MP3_MPEG2_64, 208), 0, header));
+		assertEquals(22050, header.sampleRate);
+		assertEquals(1, header.channels);
+		assertEquals(576, header.samplesPerFrame);
+	}
+
+	@Test
+	public void testAdts() {
+		FrameParser.Header header = new FrameParser.Header();
+		assertEquals(371, FrameParser.parse(frame(ADTS_371, 371), 0, header));
+		assertEquals(FrameParser.FORMAT_ADTS, header.format);
+		assertEquals(7, header.headerBytes);
+		assertEquals(44100, header.sampleRate);
+		assertEquals(2, header.channels);
+		assertEquals(1024, header.samplesPerFrame);
+		assertEquals(FrameParser.MIME_AAC, header.getMime());
+		// AudioSpecificConfig for AAC LC, 44.1 kHz, stereo.
+		assertArrayEquals(new byte[] { 0x12, 0x10 }, header.getAacConfig());
+	}
+
+	@Test
+	public void testInvalid() {
+		FrameParser.Header header = new FrameParser.Header();
+		// Free format bitrate, bad bitrate, reserved sample rate, reserved version, reserved layer.
+		assertEquals(-1, FrameParser.parse(frame(new byte[] { (byte) 0xFF, (byte) 0xFB, (byte) 0x00, 0 }, 8), 0, header));
+		assertEquals(-1, FrameParser.parse(frame(new byte[] { (byte) 0xFF, (byte) 0xFB, (byte) 0xF0, 0 }, 8), 0, header));
+		assertEquals(-1, FrameParser.parse(frame(new byte[] { (byte) 0xFF, (byte) 0xFB, (byte) 0x9C, 0 }, 8), 0, header));
+		assertEquals(-1, FrameParser.parse(frame(new byte[] { (byte) 0xFF, (byte) 0xEB, (byte) 0x90, 0 }, 8), 0, header));
+		assertEquals(-1, FrameParser.parse(frame(new byte[] { (byte) 0xFF, (byte) 0xE1, (byte) 0x90, 0 }, 8), 0, header));
+		// Too few bytes to tell.
+		assertEquals(-1, FrameParser.parse(ByteBuffer.wrap(MP3_128), 0, header));
+	}
+
+	/**
+	 * A header which no compatible header follows is a false sync, as in frame payloads and in garbage.
+	 */
+	@Test
+	public void testFindSyncSkipsFalseSync() {
+		ByteBuffer buffer = ByteBuffer.allocate(100 + 3 * 418);
+		buffer.put(50, (byte) 0xFF);
+		buffer.put(51, (byte) 0xFB);
+		buffer.put(52, (byte) 0x90);
+		for (int i = 0; i < 3; i++) {
+			buffer.position(100 + i * 418);
+			buffer.put(MP3_128_PADDED);
+		}
+		buffer.clear();
+		FrameParser.Header header = new FrameParser.Header();
+		assertEquals(100, FrameParser.findSync(buffer, 0, header));
+		assertEquals(100 + 418, FrameParser.findSync(buffer, 101, header));
+		// The last header counts, as the next would pass the limit.
+		assertEquals(100 + 2 * 418, FrameParser.findSync(buffer, 100 + 418 + 1, header));
+		assertEquals(-1, FrameParser.findSync(buffer, 100 + 2 * 418 + 1, header));
+	}
+
+	@Test
+	public void testCompatible() {
+		FrameParser.Header mp3 = new FrameParser.Header();
+		FrameParser.Header padded = new FrameParser.Header();
+		FrameParser.Header mpeg2 = new FrameParser.Header();
+		FrameParser.Header adts = new FrameParser.Header();
+		FrameParser.parse(frame(MP3_128, 417), 0, mp3);
+		FrameParser.parse(frame(MP3_128_PADDED, 418), 0, padded);
+		FrameParser.parse(frame(MP3_MPEG2_64, 208), 0, mpeg2);
+		FrameParser.parse(frame(ADTS_371, 371), 0, adts);
+		assertTrue(mp3.isCompatible(padded));
+		assertFalse(mp3.isCompatible(mpeg2));
+		assertFalse(mp3.isCompatible(adts));
+	}
+
+	/**
+	 * Returns a zeroed frame with the header.
+	 */
+	private static ByteBuffer frame(byte[] header, int frameBytes) {
+		byte[] frame = new byte[frameBytes];
+		System.arraycopy(header, 0, frame, 0, header.length);
+		return ByteBuffer.wrap(frame);
+	}
+}
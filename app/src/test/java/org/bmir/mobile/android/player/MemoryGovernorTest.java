@@ -0,0 +1,120 @@
+/**
+ * Tests of MemoryGovernor.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.content.ComponentCallbacks2;
+
+/**
+ * The registrations are one per process, so each test removes its own.
+ */
+public class MemoryGovernorTest {
+
+	/**
+	 * Holds bytes until trimmed, and counts the trims.
+	 */
+	private static class Holder implements Trimmable {
+		long bytes = 1000;
+		int trims = 0;
+
+		public long getBytesHeld() {
+			return bytes;
+		}
+
+		public void trim(int level) {
+			bytes = 0;
+			trims++;
+		}
+	}
+
+	private Holder _ui;
+	private Holder _spare;
+	private Holder _cache;
+	private Holder _index;
+	private Holder _playback;
+
+	@Before
+	public void setUp() {
+		_ui = new Holder();
+		_spare = new Holder();
+		_cache = new Holder();
+		_index = new Holder();
+		_playback = new Holder();
+		MemoryGovernor.register(MemoryGovernor.COMPONENT_RELAY, MemoryGovernor.PRIORITY_PLAYBACK, _playback);
+		MemoryGovernor.register(MemoryGovernor.COMPONENT_HISTORY, MemoryGovernor.PRIORITY_INDEX, _index);
+		MemoryGovernor.register(MemoryGovernor.COMPONENT_TITLE_CACHE, MemoryGovernor.PRIORITY_CACHE, _cache);
+		MemoryGovernor.register(MemoryGovernor.COMPONENT_SEGMENT_POOL, MemoryGovernor.PRIORITY_SPARE, _spare);
+		MemoryGovernor.register(MemoryGovernor.COMPONENT_BUTTON_IMAGES, MemoryGovernor.PRIORITY_UI, _ui);
+	}
+
+	@After
+	public void tearDown() {
+		MemoryGovernor.unregister(_ui);
+		MemoryGovernor.unregister(_spare);
+		MemoryGovernor.unregister(_cache);
+		MemoryGovernor.unregister(_index);
+		MemoryGovernor.unregister(_playback);
+	}
+
+	@Test
+	public void testLevelRanges() {
+		assertEquals(MemoryGovernor.PRIORITY_UI, MemoryGovernor.getSparedPriority(0));
+		assertEquals(MemoryGovernor.PRIORITY_CACHE, MemoryGovernor.getSparedPriority(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE));
+		assertEquals(MemoryGovernor.PRIORITY_INDEX, MemoryGovernor.getSparedPriority(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW));
+		assertEquals(MemoryGovernor.PRIORITY_PLAYBACK, MemoryGovernor.getSparedPriority(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL));
+		assertEquals(MemoryGovernor.PRIORITY_SPARE, MemoryGovernor.getSparedPriority(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN));
+		assertEquals(MemoryGovernor.PRIORITY_PLAYBACK, MemoryGovernor.getSparedPriority(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND));
+		assertEquals(MemoryGovernor.PRIORITY_PLAYBACK, MemoryGovernor.getSparedPriority(ComponentCallbacks2.TRIM_MEMORY_MODERATE));
+		assertEquals(MemoryGovernor.PRIORITY_PLAYBACK, MemoryGovernor.getSparedPriority(ComponentCallbacks2.TRIM_MEMORY_COMPLETE));
+		// A level the system adds later falls into the range below it.
+		assertEquals(MemoryGovernor.PRIORITY_SPARE, MemoryGovernor.getSparedPriority(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN + 5));
+	}
+
+	/**
+	 * Hiding the UI is not pressure on the service, so only what the UI uses goes.
+	 */
+	@Test
+	public void testUiHiddenTrimsOnlyUi() {
+		MemoryGovernor.trim(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+		assertEquals(1, _ui.trims);
+		assertEquals(0, _spare.trims);
+		assertEquals(0, _cache.trims);
+		assertEquals(0, _index.trims);
+		assertEquals(0, _playback.trims);
+	}
+
+	@Test
+	public void testPressureTrimsInPriorityOrder() {
+		MemoryGovernor.trim(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+		assertEquals(1, _ui.trims);
+		assertEquals(1, _spare.trims);
+		assertEquals(1, _cache.trims);
+		assertEquals(0, _index.trims);
+
+		MemoryGovernor.trim(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+		assertEquals(1, _index.trims);
+		// Playback is never trimmed.
+		assertEquals(0, _playback.trims);
+		assertEquals(1000, _playback.getBytesHeld());
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ * Tests of NetworkMonitor.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowNetworkInfo;
+import org.robolectric.util.ReflectionHelpers;
+import org.robolectric.util.ReflectionHelpers.ClassParameter;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.telephony.TelephonyManager;
+
+/**
+ * Drives the connectivity broadcast used before Android API 24, with the SDK level lowered to 23.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 25)
+public class NetworkMonitorTest {
+
+	private int _sdkInt;
+	private ConnectivityManager _connectivity;
+	private NetworkMonitor _monitor;
+	private int _changes = 0;
+
+	@Before
+	public void setUp() {
+		_sdkInt = android.os.Build.VERSION.SDK_INT;
+		ReflectionHelpers.setStaticField(android.os.Build.VERSION.class, "SDK_INT", 23);
+		_connectivity = (ConnectivityManager) RuntimeEnvironment.application.getSystemService(Context.CONNECTIVITY_SERVICE);
+		_monitor = new NetworkMonitor(RuntimeEnvironment.application, new NetworkMonitor.Listener() {
+			public void onDefaultNetworkChanged() {
+				_changes++;
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		_monitor.stop();
+		ReflectionHelpers.setStaticField(android.os.Build.VERSION.class, "SDK_INT", _sdkInt);
+	}
+
+	@Test
+	public void testSimulatedChange() {
+		_monitor.start();
+		connect(ConnectivityManager.TYPE_WIFI, 0, "\"playa\"");
+		assertEquals(0, _changes);
+		_monitor.simulateNetworkChange();
+		assertEquals(1, _changes);
+		_monitor.simulateNetworkChange();
+		assertEquals(2, _changes);
+	}
+
+	@Test
+	public void testSimulatedChangeWhenStopped() {
+		_monitor.simulateNetworkChange();
+		_monitor.start();
+		connect(ConnectivityManager.TYPE_WIFI, 0, "\"playa\"");
+		_monitor.stop();
+		_monitor.simulateNetworkChange();
+		assertEquals(0, _changes);
+	}
+
+	@Test
+	public void testNewAccessPointIsAChange() {
+		_monitor.start();
+		connect(ConnectivityManager.TYPE_WIFI, 0, "\"playa\"");
+		connect(ConnectivityManager.TYPE_WIFI, 0, "\"center camp\"");
+		assertEquals(1, _changes);
+		connect(ConnectivityManager.TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_LTE, "internet");
+		assertEquals(2, _changes);
+	}
+
+	@Test
+	public void testCellularHandoverIsNotAChange() {
+		_monitor.start();
+		connect(ConnectivityManager.TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_LTE, "internet");
+		connect(ConnectivityManager.TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_HSPA, "internet");
+		connect(ConnectivityManager.TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_LTE, "internet");
+		assertEquals(0, _changes);
+	}
+
+	/**
+	 * Makes a connected network the active one, and sends the connectivity broadcast.
+	 */
+	private void connect(int type, int subtype, String extraInfo) {
+		NetworkInfo networkInfo = ShadowNetworkInfo.newInstance(NetworkInfo.DetailedState.CONNECTED, type, subtype, true, true);
+		ReflectionHelpers.callInstanceMethod(networkInfo, "setExtraInfo", ClassParameter.from(String.class, extraInfo));
+		Shadows.shadowOf(_connectivity).setActiveNetworkInfo(networkInfo);
+		RuntimeEnvironment.application.sendBroadcast(new Intent(ConnectivityManager.CONNECTIVITY_ACTION));
+		ShadowLooper.idleMainLooper();
+	}
+}
@@ -0,0 +1,225 @@
+/**
+ * Tests of NowPlayingHistory.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import android.content.ComponentCallbacks2;
+
+/**
+ * Each test keeps its history file in a directory of its own.
+ * Writes run on the history's background thread, so the tests wait for their effect on the index.
+ */
+public class NowPlayingHistoryTest {
+
+	private static final long WAIT_MILLIS = 10000;
+
+	private File _file;
+
+	@Before
+	public void setUp() throws IOException {
+		_file = new File(Files.createTempDirectory("history").toFile(), NowPlayingHistory.FILE_NAME);
+	}
+
+	@Test
+	public void testAppendAndQuery() throws InterruptedException {
+		NowPlayingHistory history = new NowPlayingHistory(_file);
+		long[] times = new long[3];
+		for (int i = 0; i < times.length; i++) {
+			history.append(1, "Song " + i);
+			waitForSize(history, i + 1);
+			times[i] = history.getRecent(1).get(0).timestamp;
+			// Songs a few milliseconds apart, so that each has a time of its own.
+			Thread.sleep(5);
+		}
+		// A repeat of the latest song of the stream is not a new song.
+		history.append(1, "Song 2");
+		history.append(2, "Other 0");
+		waitForSize(history, 4);
+
+		assertNull(history.getAt(times[0] - 1));
+		assertEquals("Song 0", history.getAt(times[0]).title);
+		assertEquals("Song 0", history.getAt(times[1] - 1).title);
+		assertEquals("Song 1", history.getAt(times[1]).title);
+		assertEquals("Other 0", history.getAt(Long.MAX_VALUE).title);
+		assertEquals(2, history.getAt(Long.MAX_VALUE).streamId);
+
+		List<NowPlayingHistory.Entry> recent = history.getRecent(3);
+		assertEquals(3, recent.size());
+		assertEquals("Other 0", recent.get(0).title);
+		assertEquals("Song 2", recent.get(1).title);
+		assertEquals("Song 1", recent.get(2).title);
+		assertEquals(4, history.getRecent(10).size());
+		assertEquals(0, history.getRecent(0).size());
+
+		// Another process finds the same history in the file.
+		NowPlayingHistory reloaded = new NowPlayingHistory(_file);
+		waitForSize(reloaded, 4);
+		assertEquals("Song 1", reloaded.getAt(times[1]).title);
+	}
+
+	@Test
+	public void testTornTail() throws IOException, InterruptedException {
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(_file));
+		writeRecord(out, 1000, 1, "First");
+		writeRecord(out, 2000, 1, "Second");
+		long goodBytes = out.size();
+		// The process died in the middle of the next record.
+		out.writeInt(12 + 5);
+		out.writeLong(3000);
+		out.write(new byte[] { 'T', 'h' });
+		out.close();
+
+		NowPlayingHistory history = new NowPlayingHistory(_file);
+		waitForSize(history, 2);
+		assertEquals("Second", history.getAt(2500).title);
+		waitForLength(goodBytes);
+
+		// Appends line up with the good records again.
+		history.append(1, "Third");
+		waitForSize(history, 3);
+		NowPlayingHistory reloaded = new NowPlayingHistory(_file);
+		waitForSize(reloaded, 3);
+		assertEquals("Third", reloaded.getRecent(1).get(0).title);
+		assertEquals("First", reloaded.getAt(1500).title);
+	}
+
+	@Test
+	public void testCompaction() throws InterruptedException {
+		NowPlayingHistory history = new NowPlayingHistory(_file);
+		StringBuilder padding = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			padding.append('x');
+		}
+		// About 300 records of 220 bytes fill the cap.
+		int count = 400;
+		int compactions = 0;
+		long previousLength = 0;
+		for (int i = 0; i < count; i++) {
+			history.append(1, "Song " + i + " " + padding);
+			waitForTitle(history, "Song " + i + " " + padding);
+			long length = waitForLengthAtMost(NowPlayingHistory.MAX_FILE_BYTES);
+			if (length < previousLength) {
+				// Compacted to the newest records which fit in half the cap.
+				compactions++;
+				assertTrue("length=" + length, NowPlayingHistory.MAX_FILE_BYTES / 2 >= length);
+				assertTrue("length=" + length, NowPlayingHistory.MAX_FILE_BYTES / 2 - 300 < length);
+			}
+			previousLength = length;
+		}
+		assertEquals(1, compactions);
+
+		// The index holds what the file holds, newest first.
+		int size = history.size();
+		assertTrue("size=" + size, 0 < size && size < count);
+		List<NowPlayingHistory.Entry> recent = history.getRecent(size);
+		long bytes = 0;
+		for (int i = 0; i < size; i++) {
+			assertEquals("Song " + (count - 1 - i) + " " + padding, recent.get(i).title);
+			bytes += recent.get(i).recordBytes;
+		}
+		assertEquals(_file.length(), bytes);
+
+		NowPlayingHistory reloaded = new NowPlayingHistory(_file);
+		waitForSize(reloaded, size);
+		assertEquals(recent.get(size - 1).title, reloaded.getRecent(size).get(size - 1).title);
+	}
+
+	@Test
+	public void testTrimThenQuery() throws InterruptedException {
+		NowPlayingHistory history = new NowPlayingHistory(_file);
+		history.append(1, "Before");
+		waitForSize(history, 1);
+		long before = history.getRecent(1).get(0).timestamp;
+		assertTrue(0 < history.getBytesHeld());
+
+		history.trim(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+		assertEquals(0, history.getBytesHeld());
+		// The query finds the index dropped, and has it loaded again.
+		assertNull(history.getAt(Long.MAX_VALUE));
+		waitForSize(history, 1);
+		assertEquals("Before", history.getAt(before).title);
+
+		// A write after a trim loads the index first, so none of the history is lost.
+		history.trim(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+		history.append(1, "After");
+		waitForSize(history, 2);
+		assertEquals("After", history.getRecent(2).get(0).title);
+		assertEquals("Before", history.getRecent(2).get(1).title);
+	}
+
+	private static void writeRecord(DataOutputStream out, long timestamp, int streamId, String title) throws IOException {
+		byte[] bytes = title.getBytes("UTF-8");
+		out.writeInt(12 + bytes.length);
+		out.writeLong(timestamp);
+		out.writeInt(streamId);
+		out.write(bytes);
+	}
+
+	private static void waitForSize(NowPlayingHistory history, int size) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+		while (size != history.size() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(size, history.size());
+	}
+
+	private static void waitForTitle(NowPlayingHistory history, String title) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+		while (System.currentTimeMillis() < deadline) {
+			List<NowPlayingHistory.Entry> recent = history.getRecent(1);
+			if (!recent.isEmpty() && title.equals(recent.get(0).title)) {
+				return;
+			}
+			Thread.sleep(1);
+		}
+		assertEquals(title, history.getRecent(1).get(0).title);
+	}
+
+	/**
+	 * Waits for a compaction which the last write started.  Returns the length of the file.
+	 */
+	private long waitForLengthAtMost(long length) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+		while (length < _file.length() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		assertTrue("length=" + _file.length(), length >= _file.length());
+		return _file.length();
+	}
+
+	private void waitForLength(long length) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+		while (length != _file.length() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(length, _file.length());
+	}
+}
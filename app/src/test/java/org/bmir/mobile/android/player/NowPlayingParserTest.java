@@ -0,0 +1,71 @@
+/**
+ * Tests of NowPlayingParser.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+
+import org.junit.Test;
+
+public class NowPlayingParserTest {
+
+	@Test
+	public void testDecodeEntities() {
+		assertEquals("Simon & Garfunkel - \"The Boxer\" 'Live' <b>", NowPlayingParser.decodeHtmlEntityReferences("Simon &amp; Garfunkel - &quot;The Boxer&quot; &apos;Live&apos; &lt;b&gt;"));
+		String plain = "Bonobo - Kerala";
+		assertSame(plain, NowPlayingParser.decodeHtmlEntityReferences(plain));
+	}
+
+	/**
+	 * An escaped entity decodes to the entity itself, not to the character it stands for.
+	 */
+	@Test
+	public void testDecodeEscapedEntities() {
+		assertEquals("&lt;", NowPlayingParser.decodeHtmlEntityReferences("&amp;lt;"));
+		assertEquals("&gt;", NowPlayingParser.decodeHtmlEntityReferences("&amp;gt;"));
+		assertEquals("&amp;", NowPlayingParser.decodeHtmlEntityReferences("&amp;amp;"));
+	}
+
+	@Test
+	public void testParse() {
+		String page = "<tr>\n<td>Current Song:</td>\n<td class=\"streamdata\">Tosca - Suzuki.mp3 - </td>\n</tr>\n";
+		assertEquals("Tosca - Suzuki", NowPlayingParser.parse(page));
+		assertEquals(null, NowPlayingParser.parse("<td>Currently playing:</td><td>Tosca - Suzuki</td>"));
+	}
+
+	/**
+	 * A reload of the tuning which changes the longest title applies to a title already in the cache.
+	 */
+	@Test
+	public void testParseAfterMaxToastCharsReload() throws Exception {
+		String page = "<tr>\n<td>Current Song:</td>\n<td class=\"streamdata\">Orbital - Halcyon On And On.mp3 - </td>\n</tr>\n";
+		try {
+			Tuning.load(null, new ByteArrayInputStream("ui.max.toast.chars=10\n".getBytes("ISO-8859-1")));
+			assertEquals("Orbital - ...", NowPlayingParser.parse(page));
+			Tuning.load(null, null);
+			assertEquals("Orbital - Halcyon On And On", NowPlayingParser.parse(page));
+			Tuning.load(null, new ByteArrayInputStream("ui.max.toast.chars=10\n".getBytes("ISO-8859-1")));
+			assertEquals("Orbital - ...", NowPlayingParser.parse(page));
+		}
+		finally {
+			Tuning.load(null, null);
+		}
+	}
+}
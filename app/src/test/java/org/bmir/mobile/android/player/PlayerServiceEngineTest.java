@@ -0,0 +1,84 @@
+/**
+ * Checks that the tuned playback engine applies to the next player.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowMediaPlayer;
+import org.robolectric.util.ReflectionHelpers;
+
+/**
+ * Switches the playback.engine tuning while playing through PlayerService against a FakeIcecastServer.
+ * See PlayerServiceWakeupTest for the harness.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 25)
+public class PlayerServiceEngineTest {
+
+	private FakeIcecastServer _server;
+	private ServiceController<PlayerService> _controller;
+
+	@Before
+	public void setUp() throws IOException, InterruptedException {
+		_server = new FakeIcecastServer();
+		_server.start();
+		PlayerService.setEndpoints(_server.getHostname(), _server.getStreamURLString(), _server.getStatusURLString());
+		PlayerServiceWakeupTest.setUpMediaPlayers(0);
+		_controller = Robolectric.buildService(PlayerService.class).create();
+		PlayerServiceWakeupTest.loadTuning("");
+	}
+
+	@After
+	public void tearDown() {
+		_controller.destroy();
+		ShadowMediaPlayer.setCreateListener(null);
+		PlayerService.setEndpoints(Constants.MEDIA_HOSTNAME, Constants.MEDIA_URL_STRING, Constants.STATUS_URL_STRING);
+		Tuning.load(null, null);
+		_server.close();
+	}
+
+	@Test
+	public void testSwitchAppliesToNextPlayer() throws IOException, InterruptedException {
+		PlayerService service = _controller.get();
+		PlayerServiceWakeupTest.click(service);
+		PlayerServiceWakeupTest.waitForState(PlayerService.STATE_PLAYING);
+		assertTrue(ReflectionHelpers.getField(service, "_player") instanceof MediaPlayerEngine);
+
+		// The player which is playing keeps its engine.
+		PlayerServiceWakeupTest.loadTuning("playback.engine=" + PlaybackEngine.TYPE_CODEC + "\n");
+		assertTrue(ReflectionHelpers.getField(service, "_player") instanceof MediaPlayerEngine);
+
+		PlayerServiceWakeupTest.click(service);
+		assertEquals(PlayerService.STATE_STOPPED, PlayerServiceWakeupTest.getState());
+		PlayerServiceWakeupTest.click(service);
+		PlaybackEngine player = ReflectionHelpers.getField(service, "_player");
+		assertTrue(player instanceof CodecEngine);
+		assertEquals(PlaybackEngine.TYPE_CODEC, player.getType());
+	}
+}
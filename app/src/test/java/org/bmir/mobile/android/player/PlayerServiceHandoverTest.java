@@ -0,0 +1,193 @@
+/**
+ * Checks the network handover of the service.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.Shadows;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowMediaPlayer;
+import org.robolectric.util.ReflectionHelpers;
+
+import android.media.MediaPlayer;
+
+/**
+ * Plays through PlayerService against a FakeIcecastServer, and switches the default network with
+ * NetworkMonitor.simulateNetworkChange().  Each player takes PREPARE_MILLIS of the main looper's clock to prepare,
+ * so the old player is still playing while the one on the new network prepares.
+ * See PlayerServiceWakeupTest for the harness.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 25)
+public class PlayerServiceHandoverTest {
+
+	private static final int PREPARE_MILLIS = 2000;
+
+	private FakeIcecastServer _server;
+	private ServiceController<PlayerService> _controller;
+	private List<MediaPlayer> _players;
+
+	@Before
+	public void setUp() throws IOException, InterruptedException {
+		_server = new FakeIcecastServer();
+		_server.start();
+		PlayerService.setEndpoints(_server.getHostname(), _server.getStreamURLString(), _server.getStatusURLString());
+		_players = PlayerServiceWakeupTest.setUpMediaPlayers(PREPARE_MILLIS);
+		_controller = Robolectric.buildService(PlayerService.class).create();
+		PlayerServiceWakeupTest.loadTuning("");
+	}
+
+	@After
+	public void tearDown() {
+		_controller.destroy();
+		ShadowMediaPlayer.setCreateListener(null);
+		PlayerService.setEndpoints(Constants.MEDIA_HOSTNAME, Constants.MEDIA_URL_STRING, Constants.STATUS_URL_STRING);
+		Tuning.load(null, null);
+		_server.close();
+	}
+
+	@Test
+	public void testOldPlayerPlaysUntilNewPrepared() throws InterruptedException {
+		PlayerService service = startHandover();
+		MediaPlayer oldPlayer = _players.get(0);
+		MediaPlayer newPlayer = _players.get(1);
+		PlaybackEngine oldEngine = ReflectionHelpers.getField(service, "_player");
+
+		ShadowLooper.idleMainLooper(PREPARE_MILLIS - 100);
+		assertSame(oldEngine, ReflectionHelpers.getField(service, "_player"));
+		assertEquals(ShadowMediaPlayer.State.STARTED, Shadows.shadowOf(oldPlayer).getState());
+		assertEquals(ShadowMediaPlayer.State.PREPARING, Shadows.shadowOf(newPlayer).getState());
+
+		ShadowLooper.idleMainLooper(200);
+		assertNull(ReflectionHelpers.getField(service, "_handoverPlayer"));
+		assertEquals(ShadowMediaPlayer.State.END, Shadows.shadowOf(oldPlayer).getState());
+		assertEquals(ShadowMediaPlayer.State.STARTED, Shadows.shadowOf(newPlayer).getState());
+		assertEquals(PlayerService.STATE_PLAYING, PlayerServiceWakeupTest.getState());
+		assertHandover(0);
+	}
+
+	@Test
+	public void testOldPlayerFailsFirst() throws InterruptedException {
+		PlayerService service = startHandover();
+		MediaPlayer newPlayer = _players.get(1);
+
+		// The old network dies before the player on the new one is ready.
+		Shadows.shadowOf(_players.get(0)).invokeErrorListener(MediaPlayer.MEDIA_ERROR_SERVER_DIED, 0);
+		assertEquals(PlayerService.STATE_PLAYING, PlayerServiceWakeupTest.getState());
+		assertNotNull(ReflectionHelpers.getField(service, "_handoverPlayer"));
+
+		ShadowLooper.idleMainLooper(PREPARE_MILLIS + 100);
+		assertNull(ReflectionHelpers.getField(service, "_handoverPlayer"));
+		assertEquals(ShadowMediaPlayer.State.STARTED, Shadows.shadowOf(newPlayer).getState());
+		assertEquals(PlayerService.STATE_PLAYING, PlayerServiceWakeupTest.getState());
+		assertHandover(1);
+	}
+
+	@Test
+	public void testNewPlayerFailsFirst() throws InterruptedException {
+		PlayerService service = startHandover();
+		PlaybackEngine oldEngine = ReflectionHelpers.getField(service, "_player");
+		long handovers = countEvents(EventRecorder.EVT_HANDOVER);
+
+		// The new network dies first.  The old player carries on.
+		Shadows.shadowOf(_players.get(1)).invokeErrorListener(MediaPlayer.MEDIA_ERROR_SERVER_DIED, 0);
+		ShadowLooper.idleMainLooper(PREPARE_MILLIS + 100);
+		assertNull(ReflectionHelpers.getField(service, "_handoverPlayer"));
+		assertSame(oldEngine, ReflectionHelpers.getField(service, "_player"));
+		assertEquals(ShadowMediaPlayer.State.STARTED, Shadows.shadowOf(_players.get(0)).getState());
+		assertEquals(PlayerService.STATE_PLAYING, PlayerServiceWakeupTest.getState());
+		assertEquals(handovers, countEvents(EventRecorder.EVT_HANDOVER));
+	}
+
+	/**
+	 * Starts playing, then switches the default network.  Returns with the new player preparing.
+	 */
+	private PlayerService startHandover() throws InterruptedException {
+		PlayerService service = _controller.get();
+		PlayerServiceWakeupTest.click(service);
+		PlayerServiceWakeupTest.waitForState(PlayerService.STATE_PLAYING);
+		assertEquals(1, _players.size());
+
+		NetworkMonitor monitor = ReflectionHelpers.getField(service, "_networkMonitor");
+		// The first network the monitor notes is not a change.
+		if (null == ReflectionHelpers.getField(monitor, "_networkKey")) {
+			monitor.simulateNetworkChange();
+		}
+		monitor.simulateNetworkChange();
+		assertEquals(2, _players.size());
+		assertNotNull(ReflectionHelpers.getField(service, "_handoverPlayer"));
+		return service;
+	}
+
+	/**
+	 * Checks the last EVT_HANDOVER: the gap from the network change to the new player, and whether the old one failed first.
+	 */
+	private static void assertHandover(long oldPlayerFailed) {
+		long[] event = getLastEvent(EventRecorder.EVT_HANDOVER);
+		assertNotNull(event);
+		assertTrue("gapMs=" + event[0], PREPARE_MILLIS <= event[0] && PREPARE_MILLIS + 200 >= event[0]);
+		assertEquals(oldPlayerFailed, event[1]);
+	}
+
+	/**
+	 * Returns the arguments of the last event with the id in the recorder's ring, or null.
+	 * The test runs on the main thread, which is the recorder's writer.
+	 */
+	private static long[] getLastEvent(int id) {
+		EventRecorder recorder = EventRecorder.get();
+		int[] ids = ReflectionHelpers.getField(recorder, "_ids");
+		long[] args0 = ReflectionHelpers.getField(recorder, "_args0");
+		long[] args1 = ReflectionHelpers.getField(recorder, "_args1");
+		long writeIndex = recorder.getEventCount();
+		for (long ix = writeIndex - 1; 0 <= ix && writeIndex - ids.length < ix; ix--) {
+			int slot = (int) (ix % ids.length);
+			if (id == ids[slot]) {
+				return new long[] { args0[slot], args1[slot] };
+			}
+		}
+		return null;
+	}
+
+	private static long countEvents(int id) {
+		EventRecorder recorder = EventRecorder.get();
+		int[] ids = ReflectionHelpers.getField(recorder, "_ids");
+		long writeIndex = recorder.getEventCount();
+		long count = 0;
+		for (long ix = writeIndex - 1; 0 <= ix && writeIndex - ids.length < ix; ix--) {
+			if (id == ids[(int) (ix % ids.length)]) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,128 @@
+/**
+ * Checks when the service starts its LAN relay.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowMediaPlayer;
+import org.robolectric.util.ReflectionHelpers;
+
+import android.content.Context;
+import android.content.Intent;
+import android.media.MediaPlayer;
+import android.net.ConnectivityManager;
+
+/**
+ * Plays through PlayerService against a FakeIcecastServer with the relay tuned off and on.
+ * See PlayerServiceWakeupTest for the harness.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 25)
+public class PlayerServiceRelayTest {
+
+	private FakeIcecastServer _server;
+	private ServiceController<PlayerService> _controller;
+	private List<MediaPlayer> _players;
+
+	@Before
+	public void setUp() throws IOException, InterruptedException {
+		_server = new FakeIcecastServer();
+		_server.start();
+		PlayerService.setEndpoints(_server.getHostname(), _server.getStreamURLString(), _server.getStatusURLString());
+		_players = PlayerServiceWakeupTest.setUpMediaPlayers(0);
+		_controller = Robolectric.buildService(PlayerService.class).create();
+		// Robolectric has no network service discovery, so the relay is not advertised.
+		ReflectionHelpers.setField(_controller.get(), "_relayDiscovery", null);
+		PlayerServiceWakeupTest.loadTuning("");
+	}
+
+	@After
+	public void tearDown() {
+		_controller.destroy();
+		ShadowMediaPlayer.setCreateListener(null);
+		PlayerService.setEndpoints(Constants.MEDIA_HOSTNAME, Constants.MEDIA_URL_STRING, Constants.STATUS_URL_STRING);
+		Tuning.load(null, null);
+		_server.close();
+	}
+
+	@Test
+	public void testOffByDefault() throws InterruptedException {
+		PlayerService service = _controller.get();
+		PlayerServiceWakeupTest.click(service);
+		PlayerServiceWakeupTest.waitForState(PlayerService.STATE_PLAYING);
+
+		assertNull(ReflectionHelpers.getField(service, "_relay"));
+		assertEquals(_server.getStreamURLString(), ReflectionHelpers.getField(service, "_playerURLString"));
+		PlayerServiceWakeupTest.click(service);
+	}
+
+	@Test
+	public void testPrewarmedPlayerReleasedForRelay() throws IOException, InterruptedException {
+		PlayerService service = _controller.get();
+		service.onStartCommand(new Intent(PlayerService.ACTION_STATUS), 0, 1);
+		ShadowLooper.idleMainLooper();
+		assertEquals(1, _players.size());
+
+		// The user turns the relay on while the player is parked.
+		PlayerServiceWakeupTest.loadTuning("relay.enabled=1\n");
+		PlayerServiceWakeupTest.click(service);
+		PlayerServiceWakeupTest.waitForState(PlayerService.STATE_PLAYING);
+
+		// The parked player read the upstream, so it gave way to one which plays from the relay.
+		assertEquals(2, _players.size());
+		assertEquals(ShadowMediaPlayer.State.END, Shadows.shadowOf(_players.get(0)).getState());
+		StreamRelay relay = ReflectionHelpers.getField(service, "_relay");
+		assertNotNull(relay);
+		assertEquals(relay.getLocalURLString(), ReflectionHelpers.getField(service, "_playerURLString"));
+
+		PlayerServiceWakeupTest.click(service);
+		assertNull(ReflectionHelpers.getField(service, "_relay"));
+	}
+
+	@Test
+	public void testNoRelayWithoutNetwork() throws IOException, InterruptedException {
+		PlayerService service = _controller.get();
+		PlayerServiceWakeupTest.loadTuning("relay.enabled=1\n");
+		ConnectivityManager connectivityManager = (ConnectivityManager) RuntimeEnvironment.application.getSystemService(Context.CONNECTIVITY_SERVICE);
+		Shadows.shadowOf(connectivityManager).setActiveNetworkInfo(null);
+
+		PlayerServiceWakeupTest.click(service);
+		ShadowLooper.idleMainLooper();
+
+		assertEquals(PlayerService.STATE_STOPPED, PlayerServiceWakeupTest.getState());
+		assertNull(ReflectionHelpers.getField(service, "_relay"));
+		assertEquals(0, _players.size());
+		assertEquals(0, _server.getStreamRequests());
+	}
+}
@@ -0,0 +1,185 @@
+/**
+ * Counts the wakeups of an hour of playback through the real service.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.Shadows;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowApplication;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowMediaPlayer;
+import org.robolectric.shadows.util.DataSource;
+import org.robolectric.util.ReflectionHelpers;
+
+import android.content.Intent;
+import android.media.MediaPlayer;
+import android.os.HandlerThread;
+
+/**
+ * Plays through PlayerService against a FakeIcecastServer for 60 minutes of the main looper's clock,
+ * with a new song every few minutes, and checks the WakeupLedger of the session against its budget.
+ * The service's own timers, polls, title rebuilds and the focus ramp run as they do on a device.
+ * Robolectric's MediaPlayer does not read the stream, but the service's StreamReader does.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 25)
+public class PlayerServiceWakeupTest {
+
+	private static final long PLAY_MINUTES = 60;
+	private static final long SONG_MILLIS = 4 * 60 * 1000;
+	private static final long STEP_MILLIS = 1000;
+
+	/**
+	 * Robolectric's MediaPlayer plays this in place of the stream, which the service's data source reads.
+	 */
+	static final DataSource MEDIA = DataSource.toDataSource("fake-icecast");
+
+	private FakeIcecastServer _server;
+	private ServiceController<PlayerService> _controller;
+
+	@Before
+	public void setUp() throws IOException, InterruptedException {
+		_server = new FakeIcecastServer();
+		_server.start();
+		PlayerService.setEndpoints(_server.getHostname(), _server.getStreamURLString(), _server.getStatusURLString());
+		setUpMediaPlayers(0);
+		_controller = Robolectric.buildService(PlayerService.class).create();
+		// Polls are 30 s apart on the looper's clock but only milliseconds apart in real time, which the debounce would skip.
+		loadTuning("status.debounce.ms=0\n");
+	}
+
+	@After
+	public void tearDown() {
+		_controller.destroy();
+		ShadowMediaPlayer.setCreateListener(null);
+		PlayerService.setEndpoints(Constants.MEDIA_HOSTNAME, Constants.MEDIA_URL_STRING, Constants.STATUS_URL_STRING);
+		Tuning.load(null, null);
+		_server.close();
+	}
+
+	@Test
+	public void testHourWithinBudget() throws InterruptedException {
+		PlayerService service = _controller.get();
+		click(service);
+		waitForState(PlayerService.STATE_PLAYING);
+
+		HandlerThread rampThread = ReflectionHelpers.getField(ReflectionHelpers.getField(service, "_focus"), "_rampThread");
+		ShadowLooper rampLooper = Shadows.shadowOf(rampThread.getLooper());
+		int song = 0;
+		for (long elapsed = 0; elapsed < PLAY_MINUTES * 60000; elapsed += STEP_MILLIS) {
+			if (0 == elapsed % SONG_MILLIS) {
+				_server.setTitle("Artist " + song + " - Song " + song);
+				song++;
+			}
+			ShadowLooper.idleMainLooper(STEP_MILLIS);
+			rampLooper.idle(STEP_MILLIS);
+			// Let a poll which just went out reach the server, and post its title back.
+			Thread.sleep(2);
+		}
+		ShadowLooper.idleMainLooper();
+
+		String stats = WakeupLedger.getStatsString() + " statusRequests=" + _server.getStatusRequests() + " streamRequests=" + _server.getStreamRequests();
+		assertEquals(stats, PlayerService.STATE_PLAYING, getState());
+		assertTrue(stats, PLAY_MINUTES * 60000 <= WakeupLedger.getElapsedMillis());
+		long polls = WakeupLedger.getWakeups(WakeupLedger.POLL_TIMER);
+		long expectedPolls = PLAY_MINUTES * 60000 / Tuning.get().nowPlayingPollMillis;
+		assertTrue(stats, expectedPolls <= polls && polls <= expectedPolls + 1);
+		// The last fetch may still be on its way.
+		assertTrue(stats, expectedPolls - 1 <= WakeupLedger.getRuns(WakeupLedger.STATUS_FETCH));
+		assertTrue(stats, PLAY_MINUTES * 60000 / SONG_MILLIS <= WakeupLedger.getRuns(WakeupLedger.NOTIFICATION));
+		assertTrue(stats, 0 < WakeupLedger.getWakeups(WakeupLedger.STREAM_READ));
+		assertTrue(stats, WakeupLedger.isWithinBudget());
+
+		click(service);
+		assertEquals(PlayerService.STATE_STOPPED, getState());
+	}
+
+	/**
+	 * Makes each MediaPlayer the service creates play MEDIA, prepared after the delay on the main looper's clock.
+	 * Returns the list the players are added to as they are created.
+	 */
+	static List<MediaPlayer> setUpMediaPlayers(int preparationDelayMillis) {
+		final List<MediaPlayer> players = new java.util.ArrayList<MediaPlayer>();
+		ShadowMediaPlayer.addMediaInfo(MEDIA, new ShadowMediaPlayer.MediaInfo(Integer.MAX_VALUE, preparationDelayMillis));
+		ShadowMediaPlayer.setCreateListener(new ShadowMediaPlayer.CreateListener() {
+			public void onCreate(MediaPlayer player, ShadowMediaPlayer shadow) {
+				// The service sets our own data source, which Robolectric's MediaPlayer does not know.
+				shadow.doSetDataSource(MEDIA);
+				players.add(player);
+			}
+		});
+		return players;
+	}
+
+	/**
+	 * Waits for the tuning load which the service started, then loads the override over the defaults.
+	 */
+	static void loadTuning(String override) throws IOException, InterruptedException {
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if ("TuningLoad".equals(thread.getName())) {
+				thread.join();
+			}
+		}
+		Tuning.load(null, new ByteArrayInputStream(override.getBytes("UTF-8")));
+	}
+
+	/**
+	 * Clicks the play/stop button.
+	 */
+	static void click(PlayerService service) {
+		service.onStartCommand(new Intent(PlayerService.ACTION_BUTTON), 0, 1);
+	}
+
+	/**
+	 * Runs the main looper until the service broadcasts the state, for at most 30 s of its clock.
+	 * The StreamReader fills the preroll in real time, so each step also waits a little.
+	 */
+	static void waitForState(String state) throws InterruptedException {
+		for (int i = 0; i < 300 && !state.equals(getState()); i++) {
+			ShadowLooper.idleMainLooper(100);
+			Thread.sleep(10);
+		}
+		assertEquals(state, getState());
+	}
+
+	/**
+	 * Returns the state the service broadcast last, or null if none.
+	 */
+	static String getState() {
+		List<Intent> intents = ShadowApplication.getInstance().getBroadcastIntents();
+		for (int i = intents.size() - 1; 0 <= i; i--) {
+			if (MainActivity.ACTION_IMAGE.equals(intents.get(i).getAction())) {
+				return intents.get(i).getStringExtra(PlayerService.STATE_KEY);
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,111 @@
+/**
+ * Replays the launch of the app on the JVM, and checks it against the startup budget.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.android.controller.ActivityController;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowApplication;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+
+/**
+ * Drives MainActivity.onCreate, onResume, the service's ACTION_STATUS and the state broadcast back to
+ * the activity, in the order Android does at launch.  Fails if the trace is not complete or over budget.
+ * The first replay loads and instruments the classes, as a first launch of a fresh process would not,
+ * so only the second replay is measured.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 25)
+public class StartupReplayTest {
+
+	@Before
+	public void setUp() {
+		// No network, so that the service does not prewarm a player against the real stream.
+		ConnectivityManager connectivity = (ConnectivityManager) RuntimeEnvironment.application.getSystemService(Context.CONNECTIVITY_SERVICE);
+		Shadows.shadowOf(connectivity).setActiveNetworkInfo(null);
+	}
+
+	@Test
+	public void testLaunchWithinBudget() {
+		replayLaunch();
+		long total = replayLaunch();
+		long budget = Tuning.get().startupBudgetMillis;
+		assertTrue("Startup took " + total + " ms. Budget is " + budget + " ms.\n" + StartupTrace.dump(), total <= budget);
+	}
+
+	@Test
+	public void testStickyRestartBeforeLaunch() throws InterruptedException {
+		replayLaunch();
+
+		// Android restarts the sticky service with a null intent, long before the user opens the activity.
+		ServiceController<PlayerService> service = Robolectric.buildService(PlayerService.class).create();
+		service.get().onStartCommand(null, 0, 1);
+		Thread.sleep(Tuning.get().startupBudgetMillis + 100);
+
+		ActivityController<MainActivity> activity = Robolectric.buildActivity(MainActivity.class).create();
+		assertFalse(StartupTrace.isFinished());
+		activity.start().resume();
+		deliverStatus(service.get());
+		assertTrue(StartupTrace.isFinished());
+		assertTrue(StartupTrace.dump(), StartupTrace.getTotalMillis() <= Tuning.get().startupBudgetMillis);
+		activity.pause().stop().destroy();
+		service.destroy();
+	}
+
+	/**
+	 * Launches the activity with the service not yet running, and returns the traced startup time.
+	 */
+	private long replayLaunch() {
+		ActivityController<MainActivity> activity = Robolectric.buildActivity(MainActivity.class).create().start().resume();
+		ServiceController<PlayerService> service = Robolectric.buildService(PlayerService.class).create();
+		deliverStatus(service.get());
+		assertTrue(StartupTrace.isFinished());
+		long total = StartupTrace.getTotalMillis();
+		activity.pause().stop().destroy();
+		service.destroy();
+		return total;
+	}
+
+	/**
+	 * Hands the ACTION_STATUS intent, which the activity started in onResume, to the service.
+	 * The service broadcasts its state back to the activity.
+	 */
+	private void deliverStatus(PlayerService service) {
+		ShadowApplication application = ShadowApplication.getInstance();
+		Intent intent = application.getNextStartedService();
+		while (null != intent && !PlayerService.ACTION_STATUS.equals(intent.getAction())) {
+			intent = application.getNextStartedService();
+		}
+		assertEquals(PlayerService.ACTION_STATUS, (null == intent) ? null : intent.getAction());
+		service.onStartCommand(intent, 0, 2);
+	}
+}
@@ -0,0 +1,120 @@
+/**
+ * Tests of StatusPageFetcher.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Fetches the status page of a FakeIcecastServer which supports or refuses each of gzip, deflate and ranges,
+ * and checks the current song of every poll, and that the fetcher receives fewer bytes than the original fetch.
+ */
+public class StatusPageFetcherTest {
+
+	private static final String SONG = "Goodiebag - hestedoktoren";
+	private static final int POLLS = 3;
+
+	/**
+	 * Listener rows after the current song, as on a busy server.
+	 */
+	private static final int PADDING_BYTES = 48 * 1024;
+
+	private FakeIcecastServer _server;
+
+	@Before
+	public void setUp() throws IOException {
+		_server = new FakeIcecastServer();
+		_server.setTitle(SONG);
+		_server.start();
+	}
+
+	@After
+	public void tearDown() {
+		_server.close();
+	}
+
+	@Test
+	public void testOriginalFetch() {
+		StatusPageFetcher fetcher = check(true, true, true, false, false, false);
+		assertTrue(fetcher.getStatsString(), PADDING_BYTES < fetcher.getLastWireBytes());
+	}
+
+	@Test
+	public void testServerRefusesAll() {
+		StatusPageFetcher fetcher = check(false, false, false, true, true, true);
+		assertTrue(fetcher.getStatsString(), PADDING_BYTES > fetcher.getLastWireBytes());
+	}
+
+	@Test
+	public void testGzipOnly() {
+		StatusPageFetcher fetcher = check(true, false, false, true, true, true);
+		assertTrue(fetcher.getStatsString(), fetcher.getLastPageBytes() > fetcher.getLastWireBytes());
+	}
+
+	@Test
+	public void testDeflateOnly() {
+		StatusPageFetcher fetcher = check(false, true, false, true, true, true);
+		assertTrue(fetcher.getStatsString(), fetcher.getLastPageBytes() > fetcher.getLastWireBytes());
+	}
+
+	@Test
+	public void testRangesOnly() {
+		StatusPageFetcher fetcher = check(false, false, true, true, true, true);
+		assertTrue(fetcher.getStatsString(), StatusPageFetcher.RANGE_BYTES >= fetcher.getLastWireBytes());
+	}
+
+	@Test
+	public void testGzipAndRanges() {
+		StatusPageFetcher fetcher = check(true, false, true, true, true, true);
+		assertTrue(fetcher.getStatsString(), StatusPageFetcher.RANGE_BYTES >= fetcher.getLastWireBytes());
+	}
+
+	@Test
+	public void testSupportsAll() {
+		StatusPageFetcher fetcher = check(true, true, true, true, true, true);
+		assertTrue(fetcher.getStatsString(), StatusPageFetcher.RANGE_BYTES >= fetcher.getLastWireBytes());
+	}
+
+	@Test
+	public void testServerError() {
+		_server.setStatusSupport(true, true, true, PADDING_BYTES);
+		_server.setError(503, 1);
+		StatusPageFetcher fetcher = new StatusPageFetcher(true, true, true);
+		assertEquals(NowPlayingParser.RC_UNKNOWN_CURRENT_SONG, fetcher.fetch(_server.getStatusURLString()));
+		assertEquals(SONG, NowPlayingParser.getCurrentSongFromStatusPage(fetcher.fetch(_server.getStatusURLString())));
+	}
+
+	/**
+	 * Polls with a server and fetcher configuration, checks the song each time, and returns the fetcher.
+	 */
+	private StatusPageFetcher check(boolean gzip, boolean deflate, boolean ranges, boolean compress, boolean range, boolean cancel) {
+		_server.setStatusSupport(gzip, deflate, ranges, PADDING_BYTES);
+		StatusPageFetcher fetcher = new StatusPageFetcher(compress, range, cancel);
+		for (int i = 0; i < POLLS; i++) {
+			String page = fetcher.fetch(_server.getStatusURLString());
+			assertEquals(fetcher.getStatsString(), SONG, NowPlayingParser.getCurrentSongFromStatusPage(page));
+		}
+		return fetcher;
+	}
+}
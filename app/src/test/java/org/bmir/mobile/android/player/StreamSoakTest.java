@@ -0,0 +1,265 @@
+/**
+ * Soak of the stream and status paths against a faulty server.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Points PlayerService.setEndpoints at a FakeIcecastServer, then plays the stream through StreamReader and
+ * polls the status page through StatusPageFetcher while the server cycles through its faults.
+ * Each phase sets the endpoints anew, as a change of channel or media hostname does, so that the reader
+ * reconnects into the phase's fault.
+ * Fails if a reconnect takes too long, if the heap grows, or if threads are left behind.
+ * Runs for soak.seconds, 20 by default; pass -Psoak.seconds=3600 to Gradle for a real soak.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 25)
+public class StreamSoakTest {
+
+	private static final long DURATION_MILLIS = 1000L * Long.getLong("soak.seconds", 20);
+	private static final long PHASE_MILLIS = 2000;
+	private static final long POLL_MILLIS = 250;
+	private static final long RECONNECT_BACKOFF_MILLIS = 200;
+	private static final long MAX_RECONNECT_MILLIS = 10000;
+	private static final long MAX_HEAP_GROWTH_BYTES = 8 * 1024 * 1024;
+
+	private FakeIcecastServer _server;
+
+	@Before
+	public void setUp() throws IOException {
+		_server = new FakeIcecastServer();
+		_server.setStatusSupport(true, true, true, 16 * 1024);
+		_server.start();
+		PlayerService.setEndpoints(_server.getHostname(), _server.getStreamURLString(), _server.getStatusURLString());
+	}
+
+	@After
+	public void tearDown() {
+		PlayerService.setEndpoints(Constants.MEDIA_HOSTNAME, Constants.MEDIA_URL_STRING, Constants.STATUS_URL_STRING);
+		_server.close();
+	}
+
+	@Test
+	public void testSoak() throws Exception {
+		int baselineThreads = countThreads();
+		Poller poller = new Poller();
+		Thread pollerThread = new Thread(poller, "SoakPoller");
+		pollerThread.start();
+
+		StreamReader reader = null;
+		String readerURLString = null;
+		long position = -1;
+		byte[] bytes = new byte[4096];
+		long bytesPlayed = 0;
+		int reconnects = 0;
+		long maxReconnectMillis = 0;
+		long baselineHeap = -1;
+		int phase = -1;
+		long start = System.currentTimeMillis();
+		long end = start + DURATION_MILLIS;
+		long now;
+		while ((now = System.currentTimeMillis()) < end) {
+			int nextPhase = (int) ((now - start) / PHASE_MILLIS);
+			if (nextPhase != phase) {
+				phase = nextPhase;
+				setFault(phase);
+				PlayerService.setEndpoints(_server.getHostname(), _server.getStreamURLString() + "?phase=" + phase, _server.getStatusURLString());
+				if (1 == phase) {
+					baselineHeap = measureHeap();
+				}
+			}
+
+			if (null != reader && !readerURLString.equals(PlayerService.getMediaURLString())) {
+				reader.close();
+				reader = null;
+			}
+			if (null == reader) {
+				readerURLString = PlayerService.getMediaURLString();
+				long reconnectStart = System.nanoTime();
+				while (true) {
+					reader = new StreamReader(readerURLString, null);
+					try {
+						position = reader.waitForFrameStart(MAX_RECONNECT_MILLIS);
+					}
+					catch (IOException e) {
+						position = -1;
+					}
+					if (-1 != position) {
+						break;
+					}
+					reader.close();
+					reader = null;
+					Thread.sleep(RECONNECT_BACKOFF_MILLIS);
+					assertTrue("Did not reconnect", (System.nanoTime() - reconnectStart) / 1000000 < MAX_RECONNECT_MILLIS);
+				}
+				long reconnectMillis = (System.nanoTime() - reconnectStart) / 1000000;
+				maxReconnectMillis = Math.max(maxReconnectMillis, reconnectMillis);
+				reconnects++;
+			}
+
+			int count;
+			try {
+				count = reader.read(position, bytes, 0, bytes.length, 500);
+			}
+			catch (IOException e) {
+				count = -1;
+			}
+			if (0 > count) {
+				reader.close();
+				reader = null;
+				continue;
+			}
+			for (int i = 0; i < count; i++) {
+				assertEquals("Corrupt stream at " + (position + i), FakeIcecastServer.getStreamByte(position + i), bytes[i]);
+			}
+			position += count;
+			bytesPlayed += count;
+		}
+
+		if (null != reader) {
+			reader.close();
+		}
+		poller.stop();
+		pollerThread.join(5000);
+		String m = "testSoak";
+		sop(m, "seconds=" + (DURATION_MILLIS / 1000) + " reconnects=" + reconnects + " maxReconnectMs=" + maxReconnectMillis
+				+ " bytesPlayed=" + bytesPlayed + " polls=" + poller.polls.get() + " titles=" + poller.titles.get()
+				+ " errorsSent=" + _server.getErrorsSent() + " resetsSent=" + _server.getResetsSent());
+
+		assertTrue("bytesPlayed=" + bytesPlayed, 0 < bytesPlayed);
+		assertTrue("reconnects=" + reconnects, 1 < reconnects);
+		assertTrue("maxReconnectMs=" + maxReconnectMillis, MAX_RECONNECT_MILLIS > maxReconnectMillis);
+		assertTrue("No title was parsed", 0 < poller.titles.get());
+		assertEquals("Wrong title " + poller.wrongTitle, null, poller.wrongTitle);
+
+		if (-1 != baselineHeap) {
+			long heapGrowth = measureHeap() - baselineHeap;
+			assertTrue("heapGrowth=" + heapGrowth, MAX_HEAP_GROWTH_BYTES > heapGrowth);
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		int threads;
+		while (baselineThreads < (threads = countThreads()) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		assertTrue("threads=" + threads + " baselineThreads=" + baselineThreads, baselineThreads >= threads);
+	}
+
+	/**
+	 * Sets the server's fault for a phase of the soak.  Phases cycle through: none, latency, throttle, reset, errors.
+	 */
+	private void setFault(int phase) {
+		_server.clearFaults();
+		_server.setTitle("Artist " + phase + " & Friends - Track <" + phase + ">");
+		switch (phase % 5) {
+		case 1:
+			_server.setLatency(300);
+			break;
+		case 2:
+			// Half the bitrate, so that the reader underruns.
+			_server.setThrottle(FakeIcecastServer.BITRATE_KBPS * 1000 / 8 / 2);
+			break;
+		case 3:
+			_server.setResetAfter(64 * 1024);
+			break;
+		case 4:
+			_server.setError(503, 3);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Polls the status page as NowPlayingThread does, and checks that the title is the server's when the poll began or ended.
+	 */
+	private class Poller implements Runnable {
+		final AtomicInteger polls = new AtomicInteger();
+		final AtomicInteger titles = new AtomicInteger();
+		volatile String wrongTitle = null;
+		private volatile boolean _stopped = false;
+
+		public void run() {
+			StatusPageFetcher fetcher = new StatusPageFetcher(true, true, true);
+			while (!_stopped) {
+				String title = _server.getTitle();
+				String page = fetcher.fetch(PlayerService.getStatusURLString());
+				polls.incrementAndGet();
+				if (!NowPlayingParser.RC_UNKNOWN_CURRENT_SONG.equals(page)) {
+					String song = NowPlayingParser.getCurrentSongFromStatusPage(page);
+					String decoded = NowPlayingParser.decodeHtmlEntityReferences(song);
+					if (title.equals(decoded) || _server.getTitle().equals(decoded)) {
+						titles.incrementAndGet();
+					}
+					else {
+						wrongTitle = decoded;
+					}
+				}
+				try {
+					Thread.sleep(POLL_MILLIS);
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		void stop() {
+			_stopped = true;
+		}
+	}
+
+	/**
+	 * Returns the heap in use after a collection.
+	 */
+	private static long measureHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Returns the count of live threads, less the server's.
+	 */
+	private static int countThreads() {
+		int count = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.isAlive() && !thread.getName().startsWith(FakeIcecastServer.THREAD_PREFIX)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static void sop(String method, String message) {
+		System.out.println(StreamSoakTest.class.getSimpleName() + "." + method + ": " + message);
+	}
+}
@@ -0,0 +1,221 @@
+/**
+ * Tests of TlsSessionCache.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.security.KeyStore;
+import java.security.Provider;
+import java.security.Security;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Serves HTTPS on this machine with the self-signed certificate in tls/test.p12, made with:
+ *   keytool -genkeypair -alias test -keyalg RSA -keysize 2048 -validity 36500 -dname CN=localhost \
+ *     -ext san=dns:localhost,ip:127.0.0.1 -storetype PKCS12 -keystore test.p12 -storepass changeit
+ * and connects to it repeatedly.  Every response closes its connection, as a stream reconnect would.
+ * The handshake counters are for the whole process, so the tests compare counts before and after.
+ */
+public class TlsSessionCacheTest {
+
+	private static final String KEYSTORE = "/tls/test.p12";
+	private static final char[] PASSWORD = "changeit".toCharArray();
+	private static final String BODY = "ok\n";
+	private static final int CONNECTIONS = 10;
+
+	/**
+	 * Robolectric puts Bouncy Castle first among the JVM's providers once any Robolectric test has run,
+	 * and the JDK's TLS server fails on its RSASSA-PSS signatures.  Taken out for these tests, then put back.
+	 */
+	private static Provider _bouncyCastle = null;
+	private static int _bouncyCastlePosition = 0;
+
+	private ServerSocket _server;
+	private TrustManager[] _trust;
+	private String _url;
+
+	@BeforeClass
+	public static void setUpClass() {
+		Provider[] providers = Security.getProviders();
+		for (int i = 0; i < providers.length; i++) {
+			if ("BC".equals(providers[i].getName())) {
+				_bouncyCastle = providers[i];
+				_bouncyCastlePosition = i + 1;
+				Security.removeProvider("BC");
+				return;
+			}
+		}
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		if (null != _bouncyCastle) {
+			Security.insertProviderAt(_bouncyCastle, _bouncyCastlePosition);
+			_bouncyCastle = null;
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		KeyStore keyStore = KeyStore.getInstance("PKCS12");
+		InputStream in = TlsSessionCacheTest.class.getResourceAsStream(KEYSTORE);
+		try {
+			keyStore.load(in, PASSWORD);
+		}
+		finally {
+			in.close();
+		}
+		KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagers.init(keyStore, PASSWORD);
+		SSLContext serverContext = SSLContext.getInstance("TLS");
+		serverContext.init(keyManagers.getKeyManagers(), null, null);
+		TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trustManagers.init(keyStore);
+		_trust = trustManagers.getTrustManagers();
+
+		_server = serverContext.getServerSocketFactory().createServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		Thread serverThread = new Thread(new Runnable() {
+			public void run() {
+				serve(_server);
+			}
+		}, "TlsSessionCacheTestServer");
+		serverThread.setDaemon(true);
+		serverThread.start();
+		_url = "https://localhost:" + _server.getLocalPort() + "/live";
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		_server.close();
+		// Back to the platform's certificate authorities for the other tests.
+		TlsSessionCache.init(null);
+	}
+
+	/**
+	 * A fresh context for each connection, as each player had its own, never resumes.
+	 */
+	@Test
+	public void testFreshContextDoesNotResume() throws Exception {
+		int full = TlsSessionCache.getFullHandshakes();
+		int resumed = TlsSessionCache.getResumedHandshakes();
+		for (int i = 0; i < CONNECTIONS; i++) {
+			TlsSessionCache.init(_trust);
+			fetch(_url);
+		}
+		settle(full + resumed + CONNECTIONS);
+		assertEquals(TlsSessionCache.getStatsString(), full + CONNECTIONS, TlsSessionCache.getFullHandshakes());
+		assertEquals(TlsSessionCache.getStatsString(), resumed, TlsSessionCache.getResumedHandshakes());
+	}
+
+	/**
+	 * The shared context pays one full handshake, then resumes.
+	 */
+	@Test
+	public void testSharedContextResumes() throws Exception {
+		TlsSessionCache.init(_trust);
+		int full = TlsSessionCache.getFullHandshakes();
+		int resumed = TlsSessionCache.getResumedHandshakes();
+		for (int i = 0; i < CONNECTIONS; i++) {
+			fetch(_url);
+		}
+		settle(full + resumed + CONNECTIONS);
+		assertEquals(TlsSessionCache.getStatsString(), full + 1, TlsSessionCache.getFullHandshakes());
+		assertEquals(TlsSessionCache.getStatsString(), resumed + CONNECTIONS - 1, TlsSessionCache.getResumedHandshakes());
+	}
+
+	/**
+	 * Makes one request through the shared socket factory, and reads the whole response.
+	 */
+	private static void fetch(String urlString) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(urlString).openConnection();
+		TlsSessionCache.prepare(connection);
+		connection.setUseCaches(false);
+		assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+		InputStream in = connection.getInputStream();
+		try {
+			while (0 <= in.read()) {
+				;
+			}
+		}
+		finally {
+			in.close();
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * Handshake listeners may run on their own threads.  Waits up to a second for the total count.
+	 */
+	private static void settle(int expected) throws InterruptedException {
+		for (int i = 0; i < 100; i++) {
+			if (TlsSessionCache.getFullHandshakes() + TlsSessionCache.getResumedHandshakes() >= expected) {
+				return;
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * Answers requests one at a time until the socket is closed.
+	 */
+	private static void serve(ServerSocket server) {
+		while (!server.isClosed()) {
+			Socket socket = null;
+			try {
+				socket = server.accept();
+				BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+				String line;
+				while (null != (line = reader.readLine()) && 0 < line.length()) {
+					;
+				}
+				OutputStream out = socket.getOutputStream();
+				out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: " + BODY.length()
+						+ "\r\nConnection: close\r\n\r\n" + BODY).getBytes("ISO-8859-1"));
+				out.flush();
+			}
+			catch (IOException e) {
+				// The client hung up early, or the server is closing.
+			}
+			finally {
+				if (null != socket) {
+					try { socket.close(); } catch (IOException e) { ; }
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * Turns EventRecorder dumps into readable timelines.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Decodes an event dump pulled from the device, for example with:
+ *   adb shell run-as org.bmir.mobile.android.player cat files/events.bin > events.bin
+ *   gradle decodeEvents -Pdump=events.bin
+ * A desktop tool, so it lives in the bench module rather than in the app.
+ */
+public class EventDecoder {
+
+	/**
+	 * Decodes each dump file named on the command line to standard output.
+	 */
+	public static void main(String[] args) throws IOException {
+		for (String arg : args) {
+			InputStream in = new BufferedInputStream(new FileInputStream(arg));
+			try {
+				decode(in, System.out);
+			}
+			finally {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Writes one line per event: wall clock time, ms since the previous event, event name and arguments.
+	 */
+	public static void decode(InputStream in, PrintStream out) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		if (EventRecorder.MAGIC != data.readInt()) {
+			throw new IOException("Not an event dump.");
+		}
+		int version = data.readInt();
+		if (EventRecorder.VERSION != version) {
+			throw new IOException("Unsupported event dump version=" + version);
+		}
+		long originMillis = data.readLong();
+		long originNanos = data.readLong();
+
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		long previousNanos = 0;
+		boolean first = true;
+		while (true) {
+			int id;
+			try {
+				id = data.readInt();
+			}
+			catch (EOFException e) {
+				break;
+			}
+			long nanos = data.readLong();
+			long arg0 = data.readLong();
+			long arg1 = data.readLong();
+
+			if (first) {
+				previousNanos = nanos;
+				first = false;
+			}
+			long millis = originMillis + (nanos - originNanos) / 1000000;
+			out.println(format.format(new Date(millis))
+					+ " +" + ((nanos - previousNanos) / 1000000) + "ms "
+					+ getEventName(id) + " " + arg0 + " " + arg1);
+			previousNanos = nanos;
+		}
+	}
+
+	/**
+	 * Returns a human-readable name for an event id.
+	 */
+	public static String getEventName(int id) {
+		switch (id) {
+		case EventRecorder.EVT_STATE: return "STATE";
+		case EventRecorder.EVT_PREPARE: return "PREPARE";
+		case EventRecorder.EVT_PREPARED: return "PREPARED";
+		case EventRecorder.EVT_ERROR: return "ERROR";
+		case EventRecorder.EVT_INFO: return "INFO";
+		case EventRecorder.EVT_FOCUS: return "FOCUS";
+		case EventRecorder.EVT_BUFFERING: return "BUFFERING";
+		case EventRecorder.EVT_PREWARM: return "PREWARM";
+		case EventRecorder.EVT_START_COMMAND: return "START_COMMAND";
+		case EventRecorder.EVT_FOCUS_RESUMED: return "FOCUS_RESUMED";
+		case EventRecorder.EVT_LOCKS: return "LOCKS";
+		case EventRecorder.EVT_HANDOVER: return "HANDOVER";
+		case EventRecorder.EVT_PREROLL: return "PREROLL";
+		case EventRecorder.EVT_SESSION: return "SESSION";
+		case EventRecorder.EVT_RESTORE: return "RESTORE";
+		case EventRecorder.EVT_RELAY: return "RELAY";
+		case EventRecorder.EVT_STATUS_FETCH: return "STATUS_FETCH";
+		case EventRecorder.EVT_WAKEUPS: return "WAKEUPS";
+		case EventRecorder.EVT_TRIM: return "TRIM";
+		case EventRecorder.EVT_TRIM_HELD: return "TRIM_HELD";
+		case EventRecorder.EVT_IMAGE_DECODES: return "IMAGE_DECODES";
+		case EventRecorder.EVT_IMAGE_BYTES: return "IMAGE_BYTES";
+		case EventRecorder.EVT_TITLE_CACHE: return "TITLE_CACHE";
+		case EventRecorder.EVT_TLS: return "TLS";
+		}
+		return "Unknown(" + id + ")";
+	}
+}
@@ -0,0 +1,79 @@
+/**
+ * Measures the frame parser over synthetic streams.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of a walk over every frame of a StreamCorpus stream, as FrameScan walks it.
+ * Each stream is a MiB, so operations per second are MiB per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameParserBenchmark {
+
+	@Param({
+		StreamCorpus.MP3_128,
+		StreamCorpus.ADTS_64,
+		StreamCorpus.MP3_GARBLED,
+	})
+	public String stream;
+
+	private ByteBuffer _buffer;
+	private final FrameParser.Header _header = new FrameParser.Header();
+	private final FrameParser.Header _next = new FrameParser.Header();
+
+	@Setup
+	public void setUp() {
+		_buffer = StreamCorpus.get(stream);
+	}
+
+	@Benchmark
+	public long walk() {
+		return FrameScan.walk(_buffer, _header, _next).frames;
+	}
+
+	/**
+	 * A sync search from the start of each 64 KiB, as after a seek or a reconnect.
+	 */
+	@Benchmark
+	public int findSync() {
+		int sum = 0;
+		for (int from = 0; from < StreamCorpus.STREAM_BYTES; from += 64 * 1024) {
+			sum += FrameParser.findSync(_buffer, from, _header, _next);
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ * Validates a captured stream file.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Scans a captured stream, for example one saved with:
+ *   curl -s --max-time 60 https://shoutingfire-ice.streamguys1.com:80/live > live.mp3
+ *   gradle scanStream -Pstream=live.mp3
+ * Reports the frames, play time, bitrate and sync losses.  FrameParserBenchmark measures the throughput.
+ * A desktop tool, so it lives in the bench module rather than in the app.
+ */
+public class FrameScan {
+
+	/**
+	 * Scans each stream file named on the command line, reporting to standard output.
+	 */
+	public static void main(String[] args) throws IOException {
+		for (String arg : args) {
+			RandomAccessFile file = new RandomAccessFile(arg, "r");
+			try {
+				FileChannel channel = file.getChannel();
+				ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				System.out.println(arg + ":");
+				scan(buffer, System.out);
+			}
+			finally {
+				file.close();
+			}
+		}
+	}
+
+	/**
+	 * Walks all frames in the buffer, and reports.  Does not copy or modify the buffer.
+	 */
+	public static void scan(ByteBuffer buffer, PrintStream out) {
+		Result result = walk(buffer, new FrameParser.Header(), new FrameParser.Header());
+		out.println("  firstFrame=" + result.firstFrame
+				+ " frames=" + result.frames
+				+ " durationMs=" + (result.micros / 1000)
+				+ " avgKbps=" + ((0 == result.micros) ? 0 : (result.frameBytes * 8 * 1000 / result.micros))
+				+ " syncLosses=" + result.syncLosses
+				+ " lastFrameEnd=" + result.lastFrameEnd
+				+ " of " + buffer.limit());
+	}
+
+	/**
+	 * Totals of one walk over a buffer.
+	 */
+	static class Result {
+		int firstFrame = -1;
+		int lastFrameEnd = 0;
+		long frames = 0;
+		long frameBytes = 0;
+		long micros = 0;
+		int syncLosses = 0;
+	}
+
+	/**
+	 * Walks all frames in the buffer, resyncing after garbage.  Uses header and next as scratch space.
+	 */
+	static Result walk(ByteBuffer buffer, FrameParser.Header header, FrameParser.Header next) {
+		Result result = new Result();
+		int offset = 0;
+		boolean lost = false;
+		while (true) {
+			int sync = FrameParser.findSync(buffer, offset, header, next);
+			if (0 > sync) {
+				break;
+			}
+			if (-1 == result.firstFrame) {
+				result.firstFrame = sync;
+			}
+			if (lost) {
+				result.syncLosses++;
+				lost = false;
+			}
+			// Walk the run of frames from the sync.
+			offset = sync;
+			while (true) {
+				int frameBytes = FrameParser.parse(buffer, offset, header);
+				if (0 >= frameBytes || offset + frameBytes > buffer.limit()) {
+					break;
+				}
+				result.frames++;
+				result.frameBytes += frameBytes;
+				result.micros += header.getDurationMicros();
+				offset += frameBytes;
+				result.lastFrameEnd = offset;
+			}
+			if (offset + FrameParser.PARSE_BYTES > buffer.limit()) {
+				break;
+			}
+			lost = true;
+			offset++;
+		}
+		return result;
+	}
+}
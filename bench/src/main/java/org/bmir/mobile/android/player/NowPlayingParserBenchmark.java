@@ -0,0 +1,102 @@
+/**
+ * Measures the now playing parsing pipeline over the status page corpus.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of each stage of NowPlayingParser, and of the whole pipeline with and without the title cache,
+ * for each page of StatusPageCorpus.  Run with the GC profiler for the allocation rate per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NowPlayingParserBenchmark {
+
+	@Param({
+		StatusPageCorpus.ICECAST23_SINGLE,
+		StatusPageCorpus.ICECAST23_MULTIMOUNT,
+		StatusPageCorpus.ICECAST24,
+		StatusPageCorpus.SYNTHETIC_LISTENERS,
+		StatusPageCorpus.SYNTHETIC_ENTITIES,
+		StatusPageCorpus.SYNTHETIC_LONG_TITLE,
+	})
+	public String page;
+
+	private String _page;
+	private String _song;
+
+	@Setup
+	public void setUp() throws IOException {
+		_page = StatusPageCorpus.get(page);
+		_song = NowPlayingParser.getCurrentSongFromStatusPage(_page);
+	}
+
+	/**
+	 * The whole pipeline as NowPlayingThread runs it.  A repeated page hits the title cache.
+	 */
+	@Benchmark
+	public String parse() {
+		return NowPlayingParser.parse(_page);
+	}
+
+	/**
+	 * The whole pipeline on every call, as for a new song.
+	 */
+	@Benchmark
+	public String parseUncached() {
+		String song = NowPlayingParser.getCurrentSongFromStatusPage(_page);
+		return NowPlayingParser.cleanUpSong(song);
+	}
+
+	@Benchmark
+	public String extract() {
+		return NowPlayingParser.getCurrentSongFromStatusPage(_page);
+	}
+
+	@Benchmark
+	public String decodeEntities() {
+		return NowPlayingParser.decodeHtmlEntityReferences(_song);
+	}
+
+	@Benchmark
+	public String removeNuisance() {
+		return NowPlayingParser.removeNuisanceStrings(_song);
+	}
+
+	@Benchmark
+	public String truncate() {
+		return NowPlayingParser.truncateToastString(_song);
+	}
+}
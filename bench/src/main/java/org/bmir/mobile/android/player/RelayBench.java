@@ -0,0 +1,322 @@
+/**
+ * Measures the stream relay with many simulated listeners.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Runs a StreamRelay on this machine with a synthetic stream, and many listeners, for example:
+ *   gradle relayBench -Prelay=200,10,128
+ * for 200 listeners over 10 seconds of a 128 kbit/s stream.  A rate of 0 feeds as fast as the relay takes it.
+ * Half of the listeners ask for ICY metadata.  Every listener checks that its audio bytes are continuous,
+ * and that its metadata blocks are intact.
+ * Reports the listener rates, the check errors, and the relay statistics, with the busy time of its server thread.
+ * A load test of real sockets rather than a JMH benchmark, so it lives in the bench module as a tool,
+ * and RelayBenchTest runs a short load as a check.
+ */
+public class RelayBench {
+
+	/**
+	 * Synthetic stream.  Audio byte n is n % AUDIO_MODULUS, so that a gap or a stray metadata byte shows.
+	 */
+	private static final int METAINT = 16000;
+	private static final int AUDIO_MODULUS = 251;
+	private static final int CHUNK_BYTES = 4096;
+	private static final String TITLE_PREFIX = "StreamTitle='RelayBench ";
+
+	/**
+	 * One simulated listener.  audioNext is the expected next audio byte, or -1 before the first.
+	 */
+	private static class Listener {
+		final SocketChannel channel;
+		final boolean wantsMeta;
+		final StringBuilder header = new StringBuilder();
+		boolean headerDone = false;
+		int audioNext = -1;
+		int audioLeft = METAINT;
+		int metaLeft = -1;
+		final StringBuilder meta = new StringBuilder();
+		long audioBytes = 0;
+		int titles = 0;
+		int errors = 0;
+		boolean closed = false;
+
+		Listener(SocketChannel channel, boolean wantsMeta) {
+			this.channel = channel;
+			this.wantsMeta = wantsMeta;
+		}
+	}
+
+	private static volatile boolean _feeding = true;
+
+	/**
+	 * Totals over all listeners of one run.
+	 */
+	static class Report {
+		int listeners = 0;
+		int served = 0;
+		int closed = 0;
+		int errors = 0;
+		int droppedErrors = 0;
+		int titles = 0;
+		long totalBytes = 0;
+		long minKbps = 0;
+		long maxKbps = 0;
+		long seconds = 0;
+		String relayStats = null;
+
+		@Override
+		public String toString() {
+			return "listeners=" + listeners + " served=" + served + " closed=" + closed
+					+ " errors=" + errors + " droppedErrors=" + droppedErrors + " titles=" + titles + "\n"
+					+ "  totalMBps=" + String.format("%.1f", (double) totalBytes / (1024 * 1024) / seconds)
+					+ " minKbps=" + minKbps
+					+ " maxKbps=" + maxKbps + "\n"
+					+ "  relay: " + relayStats;
+		}
+	}
+
+	/**
+	 * Runs with the listener count, seconds and kbit/s on the command line, and reports to standard output.
+	 */
+	public static void main(String[] args) throws Exception {
+		int listenerCount = (0 < args.length) ? Integer.parseInt(args[0]) : 100;
+		int seconds = (1 < args.length) ? Integer.parseInt(args[1]) : 10;
+		int kbps = (2 < args.length) ? Integer.parseInt(args[2]) : 128;
+		System.out.println(run(listenerCount, seconds, kbps));
+	}
+
+	/**
+	 * Runs the relay with the listeners for the seconds, and returns the totals.
+	 */
+	static Report run(int listenerCount, int seconds, final int kbps) throws Exception {
+		_feeding = true;
+		final StreamRelay relay = new StreamRelay(null, 0, listenerCount);
+		relay.start();
+		relay.beginStream("audio/mpeg", METAINT, "icy-br: " + kbps + "\r\n");
+		Thread feeder = new Thread(new Runnable() {
+			public void run() {
+				feed(relay, kbps);
+			}
+		}, "RelayBenchFeeder");
+		feeder.start();
+
+		Selector selector = Selector.open();
+		List<Listener> listeners = new ArrayList<Listener>();
+		for (int i = 0; i < listenerCount; i++) {
+			SocketChannel channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			Listener listener = new Listener(channel, 0 == i % 2);
+			channel.register(selector, SelectionKey.OP_CONNECT, listener);
+			channel.connect(new InetSocketAddress("127.0.0.1", relay.getPort()));
+			listeners.add(listener);
+		}
+
+		ByteBuffer scratch = ByteBuffer.allocateDirect(64 * 1024);
+		long start = System.currentTimeMillis();
+		long end = start + seconds * 1000L;
+		while (System.currentTimeMillis() < end) {
+			selector.select(100);
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				Listener listener = (Listener) key.attachment();
+				try {
+					if (key.isConnectable() && listener.channel.finishConnect()) {
+						String request = "GET " + StreamRelay.PATH + " HTTP/1.0\r\n"
+								+ (listener.wantsMeta ? "Icy-MetaData: 1\r\n" : "") + "\r\n";
+						listener.channel.write(ByteBuffer.wrap(request.getBytes("ISO-8859-1")));
+						key.interestOps(SelectionKey.OP_READ);
+					}
+					else if (key.isReadable()) {
+						scratch.clear();
+						if (0 > listener.channel.read(scratch)) {
+							listener.closed = true;
+							key.cancel();
+							continue;
+						}
+						scratch.flip();
+						check(listener, scratch);
+					}
+				}
+				catch (IOException e) {
+					listener.closed = true;
+					key.cancel();
+				}
+			}
+		}
+		long elapsed = System.currentTimeMillis() - start;
+
+		_feeding = false;
+		feeder.join();
+		relay.close();
+		for (Listener listener : listeners) {
+			listener.channel.close();
+		}
+		selector.close();
+		return report(listeners, elapsed, relay);
+	}
+
+	/**
+	 * Feeds the synthetic stream, paced to the rate, or unpaced at 0.
+	 */
+	private static void feed(StreamRelay relay, int kbps) {
+		byte[] chunk = new byte[CHUNK_BYTES + 256];
+		long audio = 0;
+		int audioLeft = METAINT;
+		int title = 0;
+		long start = System.currentTimeMillis();
+		while (_feeding) {
+			int length = 0;
+			while (length < CHUNK_BYTES) {
+				if (0 == audioLeft) {
+					byte[] meta = makeMetadata(title++);
+					System.arraycopy(meta, 0, chunk, length, meta.length);
+					length += meta.length;
+					audioLeft = METAINT;
+					continue;
+				}
+				int count = Math.min(audioLeft, CHUNK_BYTES - length);
+				for (int i = 0; i < count; i++) {
+					chunk[length++] = (byte) (audio++ % AUDIO_MODULUS);
+				}
+				audioLeft -= count;
+			}
+			relay.feed(chunk, 0, length);
+			if (0 < kbps) {
+				long due = start + audio * 8 / kbps;
+				long wait = due - System.currentTimeMillis();
+				if (0 < wait) {
+					try {
+						Thread.sleep(wait);
+					}
+					catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+			else {
+				Thread.yield();
+			}
+		}
+	}
+
+	/**
+	 * Returns an ICY metadata block: the length byte, then the title padded to a multiple of 16 bytes.
+	 */
+	private static byte[] makeMetadata(int title) {
+		String text = TITLE_PREFIX + title + "';";
+		int blocks = (text.length() + 15) / 16;
+		byte[] meta = new byte[1 + blocks * 16];
+		meta[0] = (byte) blocks;
+		for (int i = 0; i < text.length(); i++) {
+			meta[1 + i] = (byte) text.charAt(i);
+		}
+		return meta;
+	}
+
+	/**
+	 * Checks received bytes against the synthetic stream.
+	 */
+	private static void check(Listener listener, ByteBuffer bytes) {
+		while (bytes.hasRemaining()) {
+			if (!listener.headerDone) {
+				listener.header.append((char) (bytes.get() & 0xFF));
+				if (listener.header.toString().endsWith("\r\n\r\n")) {
+					listener.headerDone = true;
+					String header = listener.header.toString();
+					if (!header.startsWith("HTTP/1.0 200") || listener.wantsMeta != header.contains("icy-metaint: " + METAINT)) {
+						listener.errors++;
+					}
+				}
+			}
+			else if (!listener.wantsMeta || 0 < listener.audioLeft) {
+				int value = bytes.get() & 0xFF;
+				if (-1 != listener.audioNext && value != listener.audioNext) {
+					listener.errors++;
+				}
+				listener.audioNext = (value + 1) % AUDIO_MODULUS;
+				listener.audioBytes++;
+				listener.audioLeft--;
+			}
+			else if (-1 == listener.metaLeft) {
+				listener.metaLeft = 16 * (bytes.get() & 0xFF);
+				listener.meta.setLength(0);
+				if (0 == listener.metaLeft) {
+					listener.metaLeft = -1;
+					listener.audioLeft = METAINT;
+				}
+			}
+			else {
+				char c = (char) (bytes.get() & 0xFF);
+				if (0 != c) {
+					listener.meta.append(c);
+				}
+				listener.metaLeft--;
+				if (0 == listener.metaLeft) {
+					if (!listener.meta.toString().startsWith(TITLE_PREFIX)) {
+						listener.errors++;
+					}
+					listener.titles++;
+					listener.metaLeft = -1;
+					listener.audioLeft = METAINT;
+				}
+			}
+		}
+	}
+
+	private static Report report(List<Listener> listeners, long elapsedMillis, StreamRelay relay) {
+		Report report = new Report();
+		long min = Long.MAX_VALUE;
+		long max = 0;
+		for (Listener listener : listeners) {
+			if (listener.headerDone) {
+				report.served++;
+				min = Math.min(min, listener.audioBytes);
+				max = Math.max(max, listener.audioBytes);
+			}
+			if (listener.closed) {
+				report.closed++;
+			}
+			// A listener dropped for lagging may get a damaged tail before the disconnect.
+			if (listener.closed) {
+				report.droppedErrors += listener.errors;
+			}
+			else {
+				report.errors += listener.errors;
+			}
+			report.titles += listener.titles;
+			report.totalBytes += listener.audioBytes;
+		}
+		report.listeners = listeners.size();
+		report.seconds = Math.max(1, elapsedMillis / 1000);
+		report.minKbps = (0 == report.served) ? 0 : (min * 8 / 1000 / report.seconds);
+		report.maxKbps = max * 8 / 1000 / report.seconds;
+		report.relayStats = relay.getStatsString();
+		return report;
+	}
+}
@@ -0,0 +1,115 @@
+/**
+ * Icecast status pages for the now playing benchmarks.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The corpus.  Pages named "icecast*" are resources in the layout of the stock status.xsl of Icecast 2.3 and 2.4.
+ * Pages named "synthetic-*" are generated to stress one stage of the pipeline each.
+ */
+public class StatusPageCorpus {
+
+	/**
+	 * Page names, as the JMH parameter values.
+	 */
+	public static final String ICECAST23_SINGLE = "icecast23-single";
+	public static final String ICECAST23_MULTIMOUNT = "icecast23-multimount";
+	public static final String ICECAST24 = "icecast24-currently-playing";
+	public static final String SYNTHETIC_LISTENERS = "synthetic-listeners";
+	public static final String SYNTHETIC_ENTITIES = "synthetic-entities";
+	public static final String SYNTHETIC_LONG_TITLE = "synthetic-long-title";
+
+	/**
+	 * Raw current song of the entity-heavy page.
+	 */
+	static final String ENTITIES_SONG = "&lt;b&gt;Rock &amp;amp; Roll&lt;/b&gt; &quot;Live&quot; at the &apos;99 Burn &amp;lt;remix&amp;gt;";
+
+	/**
+	 * Returns the named page.
+	 */
+	public static String get(String name) throws IOException {
+		if (SYNTHETIC_LISTENERS.equals(name)) {
+			return makeListenersPage();
+		}
+		if (SYNTHETIC_ENTITIES.equals(name)) {
+			return makePage(ENTITIES_SONG);
+		}
+		if (SYNTHETIC_LONG_TITLE.equals(name)) {
+			return makeLongTitlePage();
+		}
+		return readResource("/corpus/" + name + ".html");
+	}
+
+	/**
+	 * A small page with the song.
+	 */
+	private static String makePage(String song) {
+		StringBuilder page = new StringBuilder("<html>\n<head><title>Icecast Streaming Media Server</title></head>\n<body>\n");
+		page.append("<table>\n<tr>\n<td>Stream Title:</td>\n<td class=\"streamdata\">ShoutingFire</td>\n</tr>\n");
+		page.append("<tr>\n<td>Current Song:</td>\n<td class=\"streamdata\">").append(song).append("</td>\n</tr>\n");
+		page.append("</table>\n</body>\n</html>\n");
+		return page.toString();
+	}
+
+	/**
+	 * A page where thousands of listener rows come before the song, so that extraction scans far.
+	 */
+	private static String makeListenersPage() {
+		StringBuilder page = new StringBuilder("<html>\n<head><title>Icecast Streaming Media Server</title></head>\n<body>\n<table>\n");
+		for (int i = 0; 2000 > i; i++) {
+			page.append("<tr><td>Listener ").append(i).append(":</td><td class=\"streamdata\">connected ").append(i * 37 % 1000).append(" s</td></tr>\n");
+		}
+		page.append("<tr>\n<td>Current Song:</td>\n<td class=\"streamdata\">Orbital - Halcyon On And On</td>\n</tr>\n");
+		page.append("</table>\n</body>\n</html>\n");
+		return page.toString();
+	}
+
+	/**
+	 * A page whose song is a long file name, so that nuisance stripping and truncation both apply.
+	 */
+	private static String makeLongTitlePage() {
+		StringBuilder song = new StringBuilder();
+		for (int i = 0; 12 > i; i++) {
+			song.append("Extended Sunrise Set Part ").append(i).append(" ");
+		}
+		song.append("Final.MP3 - ");
+		return makePage(song.toString());
+	}
+
+	private static String readResource(String path) throws IOException {
+		InputStream in = StatusPageCorpus.class.getResourceAsStream(path);
+		if (null == in) {
+			throw new IOException("No corpus page " + path);
+		}
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int count;
+			while (-1 != (count = in.read(buffer))) {
+				bytes.write(buffer, 0, count);
+			}
+			return bytes.toString("UTF-8");
+		}
+		finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/**
+ * Synthetic audio streams for the frame parser benchmarks.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * The corpus.  Each stream is exactly STREAM_BYTES long, so that a walk per second is a MiB per second.
+ * Frame payloads are random, as in a real stream, so the walk meets false syncs in them.
+ */
+public class StreamCorpus {
+
+	public static final int STREAM_BYTES = 1024 * 1024;
+
+	/**
+	 * Stream names, as the JMH parameter values.
+	 */
+	public static final String MP3_128 = "mp3-128";
+	public static final String ADTS_64 = "adts-64";
+	public static final String MP3_GARBLED = "mp3-garbled";
+
+	/**
+	 * Bytes of random garbage every GARBLE_INTERVAL bytes of the garbled stream, as after a lost network packet.
+	 */
+	static final int GARBLE_INTERVAL = 64 * 1024;
+	static final int GARBLE_BYTES = 200;
+
+	/**
+	 * Returns the named stream, from a fixed seed.
+	 */
+	public static ByteBuffer get(String name) {
+		Random random = new Random(name.hashCode());
+		byte[] stream = new byte[STREAM_BYTES];
+		int offset = 0;
+		int frame = 0;
+		int nextGarble = GARBLE_INTERVAL;
+		while (offset < STREAM_BYTES) {
+			if (MP3_GARBLED.equals(name) && offset >= nextGarble) {
+				offset = fillRandom(stream, offset, GARBLE_BYTES, random);
+				nextGarble += GARBLE_INTERVAL;
+			}
+			if (ADTS_64.equals(name)) {
+				offset = writeAdtsFrame(stream, offset, random);
+			}
+			else {
+				offset = writeMp3Frame(stream, offset, frame, random);
+			}
+			frame++;
+		}
+		return ByteBuffer.wrap(stream);
+	}
+
+	/**
+	 * Writes an MPEG-1 Layer III frame at 128 kbit/s, 44.1 kHz, stereo, padded as an encoder would
+	 * to hold the bitrate.  Stops at the end of the stream.  Returns the offset after the frame.
+	 */
+	private static int writeMp3Frame(byte[] stream, int offset, int frame, Random random) {
+		// 417.96 bytes per frame: padding on all but one frame in 25.
+		int padding = (0 == frame % 25) ? 0 : 1;
+		int frameBytes = 417 + padding;
+		if (offset + 4 <= stream.length) {
+			stream[offset] = (byte) 0xFF;
+			stream[offset + 1] = (byte) 0xFB;
+			stream[offset + 2] = (byte) (0x90 | (padding << 1));
+			stream[offset + 3] = (byte) 0x00;
+		}
+		return fillRandom(stream, offset + 4, frameBytes - 4, random);
+	}
+
+	/**
+	 * Writes an ADTS frame of AAC LC, 44.1 kHz, stereo, with no CRC, about 64 kbit/s.
+	 */
+	private static int writeAdtsFrame(byte[] stream, int offset, Random random) {
+		int frameBytes = 180 + random.nextInt(12);
+		if (offset + 7 <= stream.length) {
+			stream[offset] = (byte) 0xFF;
+			stream[offset + 1] = (byte) 0xF1;
+			stream[offset + 2] = (byte) ((1 << 6) | (4 << 2));
+			stream[offset + 3] = (byte) ((2 << 6) | ((frameBytes >> 11) & 0x03));
+			stream[offset + 4] = (byte) (frameBytes >> 3);
+			stream[offset + 5] = (byte) (((frameBytes & 0x07) << 5) | 0x1F);
+			stream[offset + 6] = (byte) 0xFC;
+		}
+		return fillRandom(stream, offset + 7, frameBytes - 7, random);
+	}
+
+	private static int fillRandom(byte[] stream, int offset, int length, Random random) {
+		int end = Math.min(stream.length, offset + length);
+		for (int i = offset; i < end; i++) {
+			stream[i] = (byte) random.nextInt(256);
+		}
+		return offset + length;
+	}
+}
@@ -0,0 +1,83 @@
+/**
+ * Tests of EventDecoder.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+/**
+ * Round trip from EventRecorder through its dump file to the decoded timeline.
+ */
+public class EventDecoderTest {
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		File directory = Files.createTempDirectory("events").toFile();
+		EventRecorder recorder = EventRecorder.get();
+		recorder.start(directory);
+		recorder.record(EventRecorder.EVT_PREPARE, 1);
+		recorder.record(EventRecorder.EVT_PREPARED, 1234, 2);
+		recorder.record(EventRecorder.EVT_HANDOVER, 567, 1);
+		recorder.record(EventRecorder.EVT_TLS, 3, 7);
+		recorder.record(99, -1, -2);
+		recorder.flush();
+
+		File file = recorder.getFile();
+		long expected = EventRecorder.HEADER_BYTES + 5L * EventRecorder.RECORD_BYTES;
+		long deadline = System.currentTimeMillis() + 10000;
+		while (file.length() < expected && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(expected, file.length());
+
+		String[] lines = decode(new FileInputStream(file)).split("\n");
+		assertEquals(5, lines.length);
+		assertTrue(lines[0], lines[0].endsWith(" PREPARE 1 0"));
+		assertTrue(lines[1], lines[1].endsWith(" PREPARED 1234 2"));
+		assertTrue(lines[2], lines[2].endsWith(" HANDOVER 567 1"));
+		assertTrue(lines[3], lines[3].endsWith(" TLS 3 7"));
+		assertTrue(lines[4], lines[4].endsWith(" Unknown(99) -1 -2"));
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotADump() throws IOException {
+		decode(new ByteArrayInputStream(new byte[EventRecorder.HEADER_BYTES]));
+	}
+
+	private static String decode(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			EventDecoder.decode(in, new PrintStream(bytes, true, "UTF-8"));
+		}
+		finally {
+			in.close();
+		}
+		return bytes.toString("UTF-8").trim();
+	}
+}
@@ -0,0 +1,70 @@
+/**
+ * Tests of FrameScan over the stream corpus.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * The benchmark streams must be what they claim, or the benchmark measures something else.
+ */
+public class FrameScanTest {
+
+	@Test
+	public void testMp3() {
+		FrameScan.Result result = walk(StreamCorpus.MP3_128);
+		assertEquals(0, result.firstFrame);
+		assertEquals(0, result.syncLosses);
+		assertEquals(StreamCorpus.STREAM_BYTES / 418, result.frames, 20);
+		assertEquals(128, result.frameBytes * 8 * 1000 / result.micros);
+	}
+
+	@Test
+	public void testAdts() {
+		FrameScan.Result result = walk(StreamCorpus.ADTS_64);
+		assertEquals(0, result.firstFrame);
+		assertEquals(0, result.syncLosses);
+		assertEquals(64, result.frameBytes * 8 * 1000 / result.micros, 2);
+	}
+
+	@Test
+	public void testGarbledResyncs() {
+		FrameScan.Result result = walk(StreamCorpus.MP3_GARBLED);
+		assertEquals(StreamCorpus.STREAM_BYTES / StreamCorpus.GARBLE_INTERVAL - 1, result.syncLosses, 1);
+		assertTrue("frames=" + result.frames, StreamCorpus.STREAM_BYTES / 420 < result.frames);
+	}
+
+	@Test
+	public void testScanReport() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		FrameScan.scan(StreamCorpus.get(StreamCorpus.MP3_128), new PrintStream(bytes, true, "UTF-8"));
+		String report = bytes.toString("UTF-8");
+		assertTrue(report, report.contains(" avgKbps=128 syncLosses=0 "));
+	}
+
+	private static FrameScan.Result walk(String name) {
+		ByteBuffer buffer = StreamCorpus.get(name);
+		return FrameScan.walk(buffer, new FrameParser.Header(), new FrameParser.Header());
+	}
+}
@@ -0,0 +1,45 @@
+/**
+ * Short load of the stream relay.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Every listener of a relay at the stream rate must be served, whole and in time, and get its titles.
+ */
+public class RelayBenchTest {
+
+	private static final int LISTENERS = StreamRelay.MAX_LISTENERS;
+	private static final int SECONDS = 3;
+	private static final int KBPS = 128;
+
+	@Test
+	public void testRelayAtStreamRate() throws Exception {
+		RelayBench.Report report = RelayBench.run(LISTENERS, SECONDS, KBPS);
+		String message = report.toString();
+		assertEquals(message, LISTENERS, report.served);
+		assertEquals(message, 0, report.closed);
+		assertEquals(message, 0, report.errors);
+		// Listeners connect while the first second is fed, so allow them a little less than the rate.
+		assertTrue(message, KBPS * 3 / 4 <= report.minKbps);
+		assertTrue(message, 0 < report.titles);
+	}
+}
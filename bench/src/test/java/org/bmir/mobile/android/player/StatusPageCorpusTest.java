@@ -0,0 +1,53 @@
+/**
+ * Tests of StatusPageCorpus.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks that each corpus page takes the path through the parser which its benchmark means to measure.
+ */
+public class StatusPageCorpusTest {
+
+	@Test
+	public void testIcecast23() throws Exception {
+		assertEquals("Simon & Garfunkel - The Boxer (Live at \"Central Park\")",
+				NowPlayingParser.parse(StatusPageCorpus.get(StatusPageCorpus.ICECAST23_SINGLE)));
+		// The first mount on the page is the one read.  Its file name is stripped.
+		assertEquals("Tosca - Suzuki", NowPlayingParser.parse(StatusPageCorpus.get(StatusPageCorpus.ICECAST23_MULTIMOUNT)));
+	}
+
+	@Test
+	public void testIcecast24HasNoCurrentSong() throws Exception {
+		assertNull(NowPlayingParser.parse(StatusPageCorpus.get(StatusPageCorpus.ICECAST24)));
+	}
+
+	@Test
+	public void testSynthetic() throws Exception {
+		assertEquals("Orbital - Halcyon On And On", NowPlayingParser.parse(StatusPageCorpus.get(StatusPageCorpus.SYNTHETIC_LISTENERS)));
+		assertEquals("<b>Rock &amp; Roll</b> \"Live\" at the '99 Burn &lt;remix&gt;",
+				NowPlayingParser.parse(StatusPageCorpus.get(StatusPageCorpus.SYNTHETIC_ENTITIES)));
+		String title = NowPlayingParser.parse(StatusPageCorpus.get(StatusPageCorpus.SYNTHETIC_LONG_TITLE));
+		assertEquals(Tuning.get().maxToastChars + 3, title.length());
+		assertTrue(title, title.endsWith("..."));
+	}
+}
@@ -0,0 +1,74 @@
+/**
+ * Races redirects of the stream endpoints against readers.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE;
+import static org.openjdk.jcstress.annotations.Expect.FORBIDDEN;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.I_Result;
+
+/**
+ * Debug or the soak test redirects while NowPlayingThread polls read the endpoints.
+ */
+public class EndpointsStress {
+
+	static final Endpoints A = new Endpoints("a.example.org", "http://a.example.org/live", "http://a.example.org/status.xsl");
+	static final Endpoints B = new Endpoints("b.example.org", "http://b.example.org/live", "http://b.example.org/status.xsl");
+	static final Endpoints C = new Endpoints("c.example.org", "http://c.example.org/live", "http://c.example.org/status.xsl");
+
+	/**
+	 * Returns 1, 2 or 3 for endpoints whose URLs are all of host a, b or c, or -1 for a mix.
+	 */
+	static int check(Endpoints endpoints) {
+		String host = "http://" + endpoints.mediaHostname + "/";
+		if (!endpoints.mediaURLString.startsWith(host) || !endpoints.statusURLString.startsWith(host)) {
+			return -1;
+		}
+		return 1 + endpoints.mediaHostname.charAt(0) - 'a';
+	}
+
+	/**
+	 * A poll reads while two redirects race.  Result: the endpoints read, or -1 for a mix of redirects.
+	 */
+	@JCStressTest
+	@Outcome(id = { "1", "2", "3" }, expect = ACCEPTABLE, desc = "The first endpoints, or one redirect.")
+	@Outcome(id = "-1", expect = FORBIDDEN, desc = "The media URL of one redirect with the status URL of another.")
+	@State
+	public static class Redirect {
+		private final Endpoints.Current _current = new Endpoints.Current(A);
+
+		@Actor
+		public void redirectB() {
+			_current.set(B);
+		}
+
+		@Actor
+		public void redirectC() {
+			_current.set(C);
+		}
+
+		@Actor
+		public void poll(I_Result r) {
+			r.r1 = check(_current.get());
+		}
+	}
+}
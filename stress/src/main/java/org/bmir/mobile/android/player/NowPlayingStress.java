@@ -0,0 +1,72 @@
+/**
+ * Races writers publishing titles against a reader of NowPlaying.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE;
+import static org.openjdk.jcstress.annotations.Expect.FORBIDDEN;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.II_Result;
+
+/**
+ * Two polls publish titles on two streams while the activity reads.
+ * Each title names its stream, so the reader can tell a torn snapshot.
+ * Results: what the reader saw, 0 for nothing yet, 1 for a whole snapshot, -1 for a torn one;
+ * then the final sequence, which must count both changes.
+ */
+@JCStressTest
+@Outcome(id = { "0, 2", "1, 2" }, expect = ACCEPTABLE, desc = "Whole snapshots, and no change lost.")
+@Outcome(id = { "0, 1", "1, 1" }, expect = FORBIDDEN, desc = "Racing writers lost a change.")
+@Outcome(id = { "-1, 1", "-1, 2" }, expect = FORBIDDEN, desc = "The reader saw a title under another stream.")
+@State
+public class NowPlayingStress {
+
+	private final NowPlaying _nowPlaying = new NowPlaying();
+
+	@Actor
+	public void writer0() {
+		_nowPlaying.publishSnapshot(0, "stream0 song");
+	}
+
+	@Actor
+	public void writer1() {
+		_nowPlaying.publishSnapshot(1, "stream1 song");
+	}
+
+	@Actor
+	public void reader(II_Result r) {
+		NowPlaying.Snapshot snapshot = _nowPlaying.getSnapshot();
+		if (null == snapshot) {
+			r.r1 = 0;
+			return;
+		}
+		String title = _nowPlaying.getSnapshotTitle(snapshot.streamId);
+		boolean whole = snapshot.title.startsWith("stream" + snapshot.streamId + " ")
+				&& (null == title || title.startsWith("stream" + snapshot.streamId + " "));
+		r.r1 = whole ? 1 : -1;
+	}
+
+	@Arbiter
+	public void arbiter(II_Result r) {
+		r.r2 = _nowPlaying.getSnapshot().sequence;
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ * Races status polls through the poll gate.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE;
+import static org.openjdk.jcstress.annotations.Expect.FORBIDDEN;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.II_Result;
+import org.openjdk.jcstress.infra.results.III_Result;
+
+/**
+ * Two NowPlayingThread polls, as when the activity and the service both ask for the song.
+ */
+public class PollGateStress {
+
+	private static final long DEBOUNCE_MILLIS = 60 * 60 * 1000;
+
+	/**
+	 * Each poll which gets in updates plain state.  Results: whether each got in, then the count of updates.
+	 */
+	@JCStressTest
+	@Outcome(id = { "1, 1, 2", "1, 0, 1", "0, 1, 1" }, expect = ACCEPTABLE, desc = "One at a time.")
+	@Outcome(id = "1, 1, 1", expect = FORBIDDEN, desc = "Both polls ran at once, and one lost the other's update.")
+	@State
+	public static class Exclusion {
+		private final PollGate _gate = new PollGate();
+		private int _count = 0;
+
+		@Actor
+		public void poll1(III_Result r) {
+			r.r1 = poll() ? 1 : 0;
+		}
+
+		@Actor
+		public void poll2(III_Result r) {
+			r.r2 = poll() ? 1 : 0;
+		}
+
+		@Arbiter
+		public void arbiter(III_Result r) {
+			r.r3 = _count;
+		}
+
+		private boolean poll() {
+			if (!_gate.tryBegin()) {
+				return false;
+			}
+			int count = _count;
+			_count = count + 1;
+			_gate.end();
+			return true;
+		}
+	}
+
+	/**
+	 * The first poll writes plain state, then notes its query.  A later poll must see both or neither.
+	 * Results: what the second poll saw of the state, and whether it found a query due; -1, -1 if it did not get in.
+	 */
+	@JCStressTest
+	@Outcome(id = "0, 1", expect = ACCEPTABLE, desc = "The second poll went first.")
+	@Outcome(id = "1, 0", expect = ACCEPTABLE, desc = "The second poll saw the first, and debounced.")
+	@Outcome(id = "-1, -1", expect = ACCEPTABLE, desc = "The second poll found the first in flight, and skipped.")
+	@Outcome(id = "1, 1", expect = FORBIDDEN, desc = "Saw the first poll's state, but not its query timestamp.")
+	@Outcome(id = "0, 0", expect = FORBIDDEN, desc = "Saw the first poll's query timestamp, but not its state.")
+	@State
+	public static class Handoff {
+		private final PollGate _gate = new PollGate();
+		private int _state = 0;
+
+		@Actor
+		public void first() {
+			if (_gate.tryBegin()) {
+				_state = 1;
+				_gate.markQueried();
+				_gate.end();
+			}
+		}
+
+		@Actor
+		public void second(II_Result r) {
+			if (_gate.tryBegin()) {
+				r.r1 = _state;
+				r.r2 = _gate.isDue(DEBOUNCE_MILLIS) ? 1 : 0;
+				_gate.end();
+			}
+			else {
+				r.r1 = -1;
+				r.r2 = -1;
+			}
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * Races lookups of the title cache.
+ *
+ * Copyright bmir.org and shoutingfire.com 2018
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bmir.mobile.android.player;
+
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE;
+import static org.openjdk.jcstress.annotations.Expect.FORBIDDEN;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.II_Result;
+import org.openjdk.jcstress.infra.results.I_Result;
+
+/**
+ * The title cache is shared by every NowPlayingThread poll.
+ */
+public class TitleCacheStress {
+
+	/**
+	 * A poll caches a title while another looks it up.  Results: 0 for a miss, 1 for the title, -1 for anything else.
+	 */
+	@JCStressTest
+	@Outcome(id = { "0", "1" }, expect = ACCEPTABLE, desc = "A miss, or the whole title.")
+	@Outcome(id = "-1", expect = FORBIDDEN, desc = "Some other title.")
+	@State
+	public static class PutGet {
+		private final TitleCache _cache = new TitleCache(4);
+
+		@Actor
+		public void put() {
+			_cache.put("Orbital - Halcyon.mp3 - ", "Orbital - Halcyon", 98);
+		}
+
+		@Actor
+		public void get(I_Result r) {
+			String title = _cache.get("Orbital - Halcyon.mp3 - ", 98);
+			r.r1 = (null == title) ? 0 : ("Orbital - Halcyon".equals(title) ? 1 : -1);
+		}
+	}
+
+	/**
+	 * A poll caches a title truncated to the old limit while a poll after a tuning reload looks it up with the new one.
+	 * Results: 0 for a miss, 1 for the old title.
+	 */
+	@JCStressTest
+	@Outcome(id = "0", expect = ACCEPTABLE, desc = "A miss, so the title is cleaned up again with the new limit.")
+	@Outcome(id = "1", expect = FORBIDDEN, desc = "The title truncated to the old limit.")
+	@State
+	public static class Reload {
+		private final TitleCache _cache = new TitleCache(4);
+
+		public Reload() {
+			_cache.put("Orbital - Halcyon On And On.mp3 - ", "Orbital - ...", 10);
+		}
+
+		@Actor
+		public void put() {
+			_cache.put("Orbital - Halcyon On And On.mp3 - ", "Orbital - ...", 10);
+		}
+
+		@Actor
+		public void get(I_Result r) {
+			r.r1 = (null == _cache.get("Orbital - Halcyon On And On.mp3 - ", 98)) ? 0 : 1;
+		}
+	}
+
+	/**
+	 * Two polls parse the same new page, both missing the process's cache, or one hitting what the other put.
+	 * Results: 1 for each poll which got the cleaned-up title.
+	 */
+	@JCStressTest
+	@Outcome(id = "1, 1", expect = ACCEPTABLE, desc = "Both got the title.")
+	@Outcome(expect = FORBIDDEN, desc = "A poll got something else.")
+	@State
+	public static class Parse {
+		private static final AtomicInteger _pages = new AtomicInteger();
+		private final String _page;
+		private final String _title;
+
+		public Parse() {
+			int n = _pages.incrementAndGet();
+			_title = "Artist " + n + " & Friends - Song " + n;
+			_page = "<tr>\n<td>Current Song:</td>\n<td class=\"streamdata\">Artist " + n + " &amp; Friends - Song " + n + ".mp3 - </td>\n</tr>\n";
+		}
+
+		@Actor
+		public void poll1(II_Result r) {
+			r.r1 = _title.equals(NowPlayingParser.parse(_page)) ? 1 : 0;
+		}
+
+		@Actor
+		public void poll2(II_Result r) {
+			r.r2 = _title.equals(NowPlayingParser.parse(_page)) ? 1 : 0;
+		}
+	}
+}